@@ -0,0 +1,88 @@
+package com.guild.interview.messengerapi.benchmark;
+
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates mailboxes for the benchmarks. Messages are spread evenly over the past SPAN_DAYS days across SENDERS
+ * senders, and one in UNREAD_EVERY is still unread. Large bodies are JSON payloads of about LARGE_BODY_BYTES, like the
+ * ones integrations send, which differ in their values but share their structure.
+ */
+public final class BenchmarkMessages {
+    public static final String RECIPIENT = "colorado";
+    public static final int SENDERS = 10;
+    public static final int SPAN_DAYS = 90;
+    public static final int UNREAD_EVERY = 100;
+    public static final int LARGE_BODY_BYTES = 4096;
+
+    private static final long SPAN_MILLIS = SPAN_DAYS * 24L * 60 * 60 * 1000;
+    private static final String TEXT = "Hey, are we still on for lunch tomorrow? Let me know what time works for you.";
+
+    private BenchmarkMessages() {
+    }
+
+    public static String sender(int index) {
+        return "sender-" + (index % SENDERS);
+    }
+
+    public static List<SimpleMessageDocument> mailbox(String recipient, int size) {
+        return mailbox(recipient, size, false);
+    }
+
+    public static List<SimpleMessageDocument> mailbox(String recipient, int size, boolean largeBodies) {
+        final long now = System.currentTimeMillis();
+        final List<SimpleMessageDocument> documents = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final Date timestamp = new Date(now - (SPAN_MILLIS * i / Math.max(size, 1)));
+            documents.add(new SimpleMessageDocument(new ObjectId(timestamp).toHexString(), largeBodies ? largeBody(i) : TEXT, recipient, sender(i),
+                    i % UNREAD_EVERY == 0 ? MessageStatus.UNREAD : MessageStatus.READ, timestamp, null));
+        }
+        return documents;
+    }
+
+    public static String largeBody(int index) {
+        final Random random = new Random(index);
+        final StringBuilder body = new StringBuilder(LARGE_BODY_BYTES + 256);
+        body.append("{\"event\":\"order.updated\",\"orderId\":\"ORD-").append(100_000 + random.nextInt(900_000))
+                .append("\",\"customer\":{\"id\":").append(random.nextInt(1_000_000))
+                .append(",\"tier\":\"").append(random.nextBoolean() ? "gold" : "standard")
+                .append("\"},\"items\":[");
+        for (int item = 0; body.length() < LARGE_BODY_BYTES; item++) {
+            if (item > 0) {
+                body.append(',');
+            }
+            body.append("{\"sku\":\"SKU-").append(random.nextInt(10_000))
+                    .append("\",\"name\":\"Product ").append(random.nextInt(500))
+                    .append("\",\"quantity\":").append(1 + random.nextInt(5))
+                    .append(",\"unitPrice\":").append(random.nextInt(20_000) / 100.0)
+                    .append(",\"currency\":\"USD\",\"warehouse\":\"WH-").append(random.nextInt(20))
+                    .append("\",\"status\":\"").append(random.nextBoolean() ? "ALLOCATED" : "BACKORDERED").append("\"}");
+        }
+        return body.append("]}").toString();
+    }
+
+    // A few large bodies that aren't in any mailbox, to train the compression dictionary with
+    public static byte[] largeBodyDictionary() {
+        final StringBuilder dictionary = new StringBuilder();
+        for (int i = 1; i <= 4; i++) {
+            dictionary.append(largeBody(-i));
+        }
+        return dictionary.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static List<SimpleMessage> messages(int size) {
+        final List<SimpleMessage> messages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            messages.add(new SimpleMessage(sender(i), RECIPIENT, TEXT));
+        }
+        return messages;
+    }
+}
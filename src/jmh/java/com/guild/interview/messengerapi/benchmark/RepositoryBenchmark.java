@@ -0,0 +1,173 @@
+package com.guild.interview.messengerapi.benchmark;
+
+import com.guild.interview.messengerapi.MessengerApiApplication;
+import com.guild.interview.messengerapi.dao.MessengerApiRepository;
+import com.guild.interview.messengerapi.model.MessageBucketDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Every read query of MessengerApiRepository against flapdoodle embedded Mongo, the same server MessengerApiIT uses.
+ * The application context is started without a web server, so indexes are created by MessengerApiIndexInitializer as in
+ * production. The recipient's mailbox holds mailboxSize messages plus a tenth as many for another recipient.
+ *
+ * Queries that write (markAsRead, claimUnread, insertAll) are left out, since repeating them would change the data
+ * being measured. The storage parameter compares one document per message with bucketed storage, see MessageBucketStore.
+ *
+ * The body parameter switches to multi-KB bodies and compression to storing them compressed (none, deflate, or deflate
+ * with a dictionary), see MessageTextCompressor. The size of the collection and of the WiredTiger cache is printed after
+ * seeding and the cache hit ratio after each trial. WiredTiger keeps pages uncompressed in its cache, so only compressing
+ * the bodies themselves lets more of the working set fit there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RepositoryBenchmark {
+    private static final int PAGE_SIZE = 100;
+    private static final int SEED_CHUNK_SIZE = 10_000;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    @Param({"100", "10000", "1000000"})
+    private int mailboxSize;
+
+    @Param({"messages", "buckets"})
+    private String storage;
+
+    @Param({"short"})
+    private String body;
+
+    @Param({"none"})
+    private String compression;
+
+    private ConfigurableApplicationContext context;
+    private MessengerApiRepository messengerApiRepository;
+    private MessageCursor middleCursor;
+    private Date thirtyDaysAgo;
+    private Document cacheAtStart;
+
+    @Setup
+    public void setup() throws IOException {
+        context = new SpringApplicationBuilder(MessengerApiApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--messenger.indexes.fail-on-collscan=true",
+                        "--messenger.storage.buckets.enabled=" + "buckets".equals(storage),
+                        "--messenger.compression.enabled=" + !"none".equals(compression),
+                        "--messenger.compression.dictionary=" + dictionaryPath());
+        messengerApiRepository = context.getBean(MessengerApiRepository.class);
+
+        final boolean largeBodies = "large".equals(body);
+        final List<SimpleMessageDocument> mailbox = BenchmarkMessages.mailbox(BenchmarkMessages.RECIPIENT, mailboxSize, largeBodies);
+        seed(mailbox);
+        seed(BenchmarkMessages.mailbox("other-recipient", Math.max(mailboxSize / 10, 1), largeBodies));
+        middleCursor = MessageCursor.of(mailbox.get(mailboxSize / 2));
+        thirtyDaysAgo = new Date(System.currentTimeMillis() - 30 * DAY_MILLIS);
+
+        final MongoTemplate mongoTemplate = context.getBean(MongoTemplate.class);
+        final Document collStats = mongoTemplate.getDb().runCommand(new Document("collStats",
+                mongoTemplate.getCollectionName("buckets".equals(storage) ? MessageBucketDocument.class : SimpleMessageDocument.class)));
+        cacheAtStart = cacheStats(mongoTemplate);
+        System.out.printf("%nStored %d bytes (%d per document, %d on disk), %d bytes in the WiredTiger cache%n",
+                number(collStats, "size"), number(collStats, "avgObjSize"), number(collStats, "storageSize"),
+                number(cacheAtStart, "bytes currently in the cache"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        final Document cache = cacheStats(context.getBean(MongoTemplate.class));
+        final long requested = number(cache, "pages requested from the cache") - number(cacheAtStart, "pages requested from the cache");
+        final long read = number(cache, "pages read into cache") - number(cacheAtStart, "pages read into cache");
+        System.out.printf("%nWiredTiger cache hit ratio %.4f (%d of %d pages read from disk)%n",
+                requested == 0 ? 1.0 : 1.0 - (double) read / requested, read, requested);
+        context.close();
+    }
+
+    @Benchmark
+    public List<SimpleMessageDocument> findAllByRecipientAndMessageStatus() {
+        return messengerApiRepository.findAllByRecipientAndMessageStatus(BenchmarkMessages.RECIPIENT, MessageStatus.UNREAD);
+    }
+
+    @Benchmark
+    public List<SimpleMessageDocument> findPage_firstPage() {
+        return messengerApiRepository.findPage(BenchmarkMessages.RECIPIENT, null, null, null, null, PAGE_SIZE + 1);
+    }
+
+    @Benchmark
+    public List<SimpleMessageDocument> findPage_firstPageFromSender() {
+        return messengerApiRepository.findPage(BenchmarkMessages.RECIPIENT, BenchmarkMessages.sender(0), null, null, null, PAGE_SIZE + 1);
+    }
+
+    // A page halfway through the mailbox, which keyset pagination should serve as quickly as the first one
+    @Benchmark
+    public List<SimpleMessageDocument> findPage_middlePage() {
+        return messengerApiRepository.findPage(BenchmarkMessages.RECIPIENT, null, null, null, middleCursor, PAGE_SIZE + 1);
+    }
+
+    @Benchmark
+    public List<SimpleMessageDocument> findPage_thirtyDays() {
+        return messengerApiRepository.findPage(BenchmarkMessages.RECIPIENT, null, thirtyDaysAgo, null, null, PAGE_SIZE + 1);
+    }
+
+    // Reads the whole 30 day range, a third of the mailbox
+    @Benchmark
+    public void streamRange_thirtyDays(Blackhole blackhole) {
+        try (Stream<SimpleMessageDocument> documents = messengerApiRepository.streamRange(BenchmarkMessages.RECIPIENT, null, thirtyDaysAgo, null)) {
+            documents.forEach(blackhole::consume);
+        }
+    }
+
+    private String dictionaryPath() throws IOException {
+        if (!"dictionary".equals(compression)) {
+            return "";
+        }
+        final Path dictionary = Files.createTempFile("messenger-benchmark", ".dict");
+        dictionary.toFile().deleteOnExit();
+        return Files.write(dictionary, BenchmarkMessages.largeBodyDictionary()).toString();
+    }
+
+    private static Document cacheStats(MongoTemplate mongoTemplate) {
+        return mongoTemplate.getDb().runCommand(new Document("serverStatus", 1))
+                .get("wiredTiger", Document.class)
+                .get("cache", Document.class);
+    }
+
+    private static long number(Document document, String key) {
+        return ((Number) document.get(key)).longValue();
+    }
+
+    // Through the repository, so the messages are stored however the storage parameter says
+    private void seed(List<SimpleMessageDocument> documents) {
+        for (int from = 0; from < documents.size(); from += SEED_CHUNK_SIZE) {
+            messengerApiRepository.insertAll(documents.subList(from, Math.min(from + SEED_CHUNK_SIZE, documents.size())));
+        }
+    }
+}
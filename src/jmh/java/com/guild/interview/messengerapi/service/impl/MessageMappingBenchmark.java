@@ -0,0 +1,61 @@
+package com.guild.interview.messengerapi.service.impl;
+
+import com.guild.interview.messengerapi.benchmark.BenchmarkMessages;
+import com.guild.interview.messengerapi.dao.MessengerApiRepository;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.service.MessengerApiMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of MessengerApiServiceImpl#convertSimpleMessageFromDocument, i.e. mapping a query result to response messages
+ * and collecting the ids to mark READ. The repository is stubbed, so the markAsRead round trip is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageMappingBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    private int mailboxSize;
+
+    private MessengerApiServiceImpl messengerApiService;
+    private List<SimpleMessageDocument> documents;
+
+    @Setup
+    public void setup() {
+        messengerApiService = new MessengerApiServiceImpl();
+        // A bare proxy rather than a Mockito mock, which records every invocation and would dominate small mailboxes
+        final MessengerApiRepository repository = (MessengerApiRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{MessengerApiRepository.class}, (proxy, method, args) -> method.getReturnType() == long.class ? 0L : null);
+        ReflectionTestUtils.setField(messengerApiService, "messengerApiRepository", repository);
+        final MessengerApiMetrics messengerApiMetrics = new MessengerApiMetrics();
+        ReflectionTestUtils.setField(messengerApiMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(messengerApiService, "messengerApiMetrics", messengerApiMetrics);
+        documents = BenchmarkMessages.mailbox(BenchmarkMessages.RECIPIENT, mailboxSize);
+    }
+
+    @Benchmark
+    public List<SimpleMessage> convertSimpleMessageFromDocument() {
+        return messengerApiService.convertSimpleMessageFromDocument(BenchmarkMessages.RECIPIENT, documents);
+    }
+}
@@ -0,0 +1,280 @@
+package com.guild.interview.messengerapi.loadtest;
+
+import com.guild.interview.messengerapi.MessengerApiApplication;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for the /messenger endpoints. Starts the application on a random port, backed by the same embedded
+ * Mongo (flapdoodle) as MessengerApiIT, seeds the recipients' mailboxes, then drives a weighted mix of requests from a
+ * number of worker threads. After a warmup period it reports throughput and HdrHistogram latency percentiles for each
+ * endpoint.
+ *
+ * Options are passed as --loadtest.* arguments, every other argument is passed to the application so modes can be
+ * compared, e.g. --messenger.write-behind.enabled=true --messenger.sync.enabled=false or --spring.profiles.active=reactive:
+ *
+ *   loadtest.target        base URL of an already running instance, skips starting the application
+ *   loadtest.threads       worker threads (16)
+ *   loadtest.duration      measured seconds (60)
+ *   loadtest.warmup        seconds before measuring starts (10)
+ *   loadtest.rate          total requests per second, 0 for as fast as possible (0). With a rate, latency is measured
+ *                          from when the request was due, so a stalled server is not hidden by the workers waiting on it
+ *   loadtest.mix           endpoint weights (getUnreadMessages=80,sendMessage=15,getMessages=3,getMessagesWithinThirtyDays=2)
+ *   loadtest.recipients    distinct recipients (1000)
+ *   loadtest.seed          messages preloaded per recipient (100)
+ */
+public class LoadTest {
+    private static final String OPTION_PREFIX = "--loadtest.";
+    private static final String DEFAULT_MIX = "getUnreadMessages=80,sendMessage=15,getMessages=3,getMessagesWithinThirtyDays=2";
+    private static final int SEED_BATCH_SIZE = 500;
+    // Latencies are recorded in microseconds, up to a minute
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    enum Endpoint {
+        getUnreadMessages, getUnreadCount, sendMessage, getMessages, getMessagesWithinThirtyDays
+    }
+
+    private final String baseUrl;
+    private final int recipients;
+    private final Endpoint[] endpoints;
+    private final int[] cumulativeWeights;
+    private final Map<Endpoint, Histogram> histograms = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, AtomicLong> errors = new EnumMap<>(Endpoint.class);
+
+    LoadTest(String baseUrl, int recipients, Map<Endpoint, Integer> mix) {
+        this.baseUrl = baseUrl;
+        this.recipients = recipients;
+        this.endpoints = mix.keySet().toArray(new Endpoint[0]);
+        this.cumulativeWeights = new int[endpoints.length];
+        int total = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            total += mix.get(endpoints[i]);
+            cumulativeWeights[i] = total;
+        }
+        for (Endpoint endpoint : Endpoint.values()) {
+            histograms.put(endpoint, new ConcurrentHistogram(MAX_LATENCY_MICROS, 3));
+            errors.put(endpoint, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        final List<String> applicationArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(OPTION_PREFIX) && arg.contains("=")) {
+                options.put(arg.substring(OPTION_PREFIX.length(), arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                applicationArgs.add(arg);
+            }
+        }
+        final int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        final int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        final double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        final int recipients = Integer.parseInt(options.getOrDefault("recipients", "1000"));
+        final int seed = Integer.parseInt(options.getOrDefault("seed", "100"));
+
+        ConfigurableApplicationContext context = null;
+        String target = options.get("target");
+        if (target == null) {
+            applicationArgs.add("--server.port=0");
+            context = new SpringApplicationBuilder(MessengerApiApplication.class).run(applicationArgs.toArray(new String[0]));
+            target = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+        }
+        try {
+            final LoadTest loadTest = new LoadTest(target, recipients, parseMix(options.getOrDefault("mix", DEFAULT_MIX)));
+            loadTest.seed(seed);
+            loadTest.run(threads, warmup, duration, rate);
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    static Map<Endpoint, Integer> parseMix(String mix) {
+        final Map<Endpoint, Integer> weights = new EnumMap<>(Endpoint.class);
+        for (String entry : mix.split(",")) {
+            final String[] weight = entry.trim().split("=");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            weights.put(Endpoint.valueOf(weight[0]), Integer.parseInt(weight[1]));
+        }
+        return weights;
+    }
+
+    // Preload every mailbox so history requests return realistic pages
+    void seed(int messagesPerRecipient) throws IOException {
+        final long total = (long) messagesPerRecipient * recipients;
+        final StringBuilder batch = new StringBuilder();
+        int batchSize = 0;
+        for (long i = 0; i < total; i++) {
+            batch.append(messageJson("sender-" + ThreadLocalRandom.current().nextInt(recipients), recipient((int) (i % recipients)))).append('\n');
+            if (++batchSize == SEED_BATCH_SIZE || i == total - 1) {
+                if (request("POST", "/messenger/sendMessages", "application/x-ndjson", batch.toString()) / 100 != 2) {
+                    throw new IllegalStateException("Seeding failed");
+                }
+                batch.setLength(0);
+                batchSize = 0;
+            }
+        }
+        System.out.printf("Seeded %d messages for %d recipients%n", total, recipients);
+    }
+
+    void run(int threads, int warmupSeconds, int durationSeconds, double rate) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        // Each worker sends its share of the rate at a fixed interval
+        final long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+        final List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(() -> work(start, measureFrom, end, intervalNanos), "loadtest-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        report(durationSeconds);
+    }
+
+    private void work(long start, long measureFrom, long end, long intervalNanos) {
+        long due = start + (intervalNanos > 0 ? ThreadLocalRandom.current().nextLong(intervalNanos) : 0);
+        while (true) {
+            if (intervalNanos > 0) {
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            } else {
+                due = System.nanoTime();
+            }
+            if (due >= end) {
+                return;
+            }
+            final Endpoint endpoint = nextEndpoint();
+            boolean ok;
+            try {
+                ok = send(endpoint) / 100 == 2;
+            } catch (IOException e) {
+                ok = false;
+            }
+            // Requests started during warmup are not counted even if they finish after it
+            if (due >= measureFrom) {
+                histograms.get(endpoint).recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due), MAX_LATENCY_MICROS));
+                if (!ok) {
+                    errors.get(endpoint).incrementAndGet();
+                }
+            }
+            due += intervalNanos;
+        }
+    }
+
+    private Endpoint nextEndpoint() {
+        final int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return endpoints[i];
+            }
+        }
+        return endpoints[endpoints.length - 1];
+    }
+
+    private int send(Endpoint endpoint) throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String recipient = recipient(random.nextInt(recipients));
+        switch (endpoint) {
+            case getUnreadMessages:
+                return request("GET", "/messenger/getUnreadMessages?recipient=" + recipient, null, null);
+            case getUnreadCount:
+                return request("GET", "/messenger/getUnreadCount?recipient=" + recipient, null, null);
+            case sendMessage:
+                return request("POST", "/messenger/sendMessage", "application/json", messageJson(recipient(random.nextInt(recipients)), recipient));
+            case getMessages:
+                return request("GET", "/messenger/getMessages?recipient=" + recipient, null, null);
+            case getMessagesWithinThirtyDays:
+                return request("GET", "/messenger/getMessagesWithinThirtyDays?recipient=" + recipient, null, null);
+            default:
+                throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    // Sends the request and reads the whole response, so the connection is reused by the next request
+    private int request(String method, String path, String contentType, String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        final int status = connection.getResponseCode();
+        try (InputStream inputStream = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if (inputStream != null) {
+                final byte[] buffer = new byte[8192];
+                while (inputStream.read(buffer) != -1) {
+                    // drain
+                }
+            }
+        }
+        return status;
+    }
+
+    private void report(int durationSeconds) {
+        System.out.printf("%n%-28s %10s %10s %8s %10s %10s %10s %10s%n", "endpoint", "requests", "req/s", "errors",
+                "p50 ms", "p99 ms", "p999 ms", "max ms");
+        final Histogram total = new Histogram(MAX_LATENCY_MICROS, 3);
+        long totalErrors = 0;
+        for (Endpoint endpoint : Endpoint.values()) {
+            final Histogram histogram = histograms.get(endpoint);
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            total.add(histogram);
+            totalErrors += errors.get(endpoint).get();
+            printRow(endpoint.name(), histogram, errors.get(endpoint).get(), durationSeconds);
+        }
+        printRow("total", total, totalErrors, durationSeconds);
+    }
+
+    private static void printRow(String name, Histogram histogram, long errors, int durationSeconds) {
+        System.out.printf(Locale.ROOT, "%-28s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(),
+                (double) histogram.getTotalCount() / durationSeconds, errors,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0);
+    }
+
+    private static String recipient(int index) {
+        return "recipient-" + index;
+    }
+
+    private static String messageJson(String sender, String recipient) {
+        return "{\"sender\":\"" + sender + "\",\"recipient\":\"" + recipient + "\",\"text\":\"load test message\"}";
+    }
+}
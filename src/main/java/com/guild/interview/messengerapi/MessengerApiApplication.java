@@ -2,29 +2,11 @@ package com.guild.interview.messengerapi;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.annotation.Bean;
-import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
-import springfox.documentation.builders.PathSelectors;
-import springfox.documentation.builders.RequestHandlerSelectors;
-import springfox.documentation.spi.DocumentationType;
-import springfox.documentation.spring.web.plugins.Docket;
-import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 @SpringBootApplication(scanBasePackages = "com.guild.interview.messengerapi")
-@EnableSwagger2
 public class MessengerApiApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(MessengerApiApplication.class, args);
 	}
-
-	// Enables swagger-ui at http://<host>:<port>/swagger-ui.html
-	@Bean
-	public Docket api() {
-		return new Docket(DocumentationType.SWAGGER_2)
-				.select()
-				.apis(RequestHandlerSelectors.any())
-				.paths(PathSelectors.any())
-				.build();
-	}
-}
\ No newline at end of file
+}
@@ -1,62 +1,212 @@
 package com.guild.interview.messengerapi;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.SendMessageResult;
 import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SyncPage;
+import com.guild.interview.messengerapi.model.UnreadCount;
+import com.guild.interview.messengerapi.service.MessageNotificationHub;
 import com.guild.interview.messengerapi.service.MessengerApiService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * API for the Messenger API application. This API can be used to send and receive simple messages from one person to
- * another. It is assumed that recipient's device will poll the /messenger/getUnreadMessages endpoint for unread messages
- * at an arbitrary interval. Otherwise, the recipient can request the last 100 messages or all messages within past 30
- * days either from a certain sender or from all senders.
+ * another. A recipient's device can poll the /messenger/getUnreadMessages endpoint for unread messages at an arbitrary
+ * interval, or only for the number of unread messages through /messenger/getUnreadCount, or hold a
+ * /messenger/pollUnreadMessages long-poll or /messenger/streamUnreadMessages event stream open and be notified as
+ * messages arrive. Otherwise, the recipient can list their conversations through /messenger/getInbox, or page through
+ * their latest messages or the messages in a time range (the past 30 days by default) either from a certain sender or
+ * from all senders, or fetch only the messages sent since they last synced through /messenger/sync.
  *
  */
 @RestController
+@Profile("!reactive")
 @Slf4j
 public class MessengerApiController {
 
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String SYNC_CURSOR_HEADER = "X-Sync-Cursor";
+    private static final String MORE_MESSAGES_HEADER = "X-More-Messages";
+
     @Autowired
     private MessengerApiService messengerApiService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MessageNotificationHub messageNotificationHub;
+
+    @Value("${messenger.notifications.long-poll-timeout-ms:30000}")
+    private long longPollTimeoutMillis;
+
+    @Value("${messenger.notifications.sse-timeout-ms:300000}")
+    private long sseTimeoutMillis;
+
+    @Value("${messenger.history.etags.enabled:true}")
+    private boolean etagsEnabled;
+
+    @Value("${messenger.sync.enabled:true}")
+    private boolean syncEnabled;
+
     /**
-     * Return latest 100 messages for a given recipient. If sender is provided, returns list of messages for that recipient
-     * from the sender. If it's empty, all sender messages will be returned. Currently, there is a 100 message limit. In
-     * future iterations this limit should be configurable.
+     * Return the latest messages for a given recipient, newest first. If sender is provided, returns list of messages
+     * for that recipient from the sender. If it's empty, all sender messages will be returned. Results are paged: when
+     * more messages exist the X-Next-Cursor response header holds a cursor to pass back for the next page.
+     *
+     * Responses carry an ETag built from the recipient's message version, which changes whenever a message is sent to
+     * them or one of theirs is marked READ. A request whose If-None-Match holds the current ETag is answered with 304 Not
+     * Modified without reading the messages, so polling clients only download the page when it changed. A response that
+     * marked messages READ changes the version itself, so the next request returns the page once more.
      *
      * @param recipient Query for messages for this recipient
      * @param sender If provided, only return messages from this sender
-     * @return last 100 messages for a given recipient/sender pair
+     * @param limit Page size, defaults to messenger.history.default-page-size (100)
+     * @param cursor If provided, continue after the page that returned this cursor
+     * @return latest messages for a given recipient/sender pair
      */
     @RequestMapping(method = RequestMethod.GET, value = "/messenger/getMessages")
-    public List<SimpleMessage> getMessages(@RequestParam(value = "recipient") String recipient,
-                                           @RequestParam(value = "sender", required = false) String sender) {
+    public ResponseEntity<List<SimpleMessage>> getMessages(@RequestParam(value = "recipient") String recipient,
+                                                           @RequestParam(value = "sender", required = false) String sender,
+                                                           @RequestParam(value = "limit", required = false) Integer limit,
+                                                           @RequestParam(value = "cursor", required = false) String cursor,
+                                                           WebRequest webRequest) {
         log.debug("getMessages request received from: {}, to: {}", sender, recipient);
-        return messengerApiService.getRecentMessages(recipient, sender);
+        final MessageCursor after = decodeCursor(cursor);
+        if (etagsEnabled) {
+            final long version = messengerApiService.getMessagesVersion(recipient);
+            // Negative while the version is unknown, then the page is always returned in full and without an ETag.
+            // Otherwise also sets the ETag header of a full response
+            if (version >= 0 && webRequest.checkNotModified(etagOf(version, recipient, sender, limit, cursor))) {
+                return null;
+            }
+        }
+        return toResponse(messengerApiService.getRecentMessages(recipient, sender, after, limit));
     }
 
     /**
-     * Returns all messages within last 30 days for a given recipient.  If sender is provided, returns list of messages
-     * for that recipient from the given sender for the past 30 days. Otherwise, return all. In future iterations, make the
-     * time range configurable i.e. give me all messages between X date and Y date.
+     * Returns messages within a time range for a given recipient, newest first. If sender is provided, returns list of
+     * messages for that recipient from the given sender. Otherwise, return all. The range defaults to the past 30 days
+     * (messenger.history.default-range-days). Results are paged in the same way as /messenger/getMessages.
      *
      * @param recipient Query for messages for this recipient
      * @param sender If provided, only return messages from this sender
-     * @return all messages in the past 30 days for a given recipient/sender pair
+     * @param from If provided, only return messages sent at or after this ISO-8601 date-time
+     * @param to If provided, only return messages sent before this ISO-8601 date-time
+     * @param limit Page size, defaults to messenger.history.default-page-size (100)
+     * @param cursor If provided, continue after the page that returned this cursor
+     * @return messages in the time range for a given recipient/sender pair
      */
     @RequestMapping(method = RequestMethod.GET, value = "/messenger/getMessagesWithinThirtyDays")
-    public List<SimpleMessage> getMessagesWithinThirtyDays(@RequestParam(value = "recipient") String recipient,
-                                                           @RequestParam(value = "sender", required = false) String sender) {
+    public ResponseEntity<List<SimpleMessage>> getMessagesWithinThirtyDays(@RequestParam(value = "recipient") String recipient,
+                                                                           @RequestParam(value = "sender", required = false) String sender,
+                                                                           @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                                           @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                                           @RequestParam(value = "limit", required = false) Integer limit,
+                                                                           @RequestParam(value = "cursor", required = false) String cursor) {
 
         log.debug("getMessagesWithinThirtyDays request received from: {}, to: {}", sender, recipient);
-        return messengerApiService.getRecentWithinThirtyDays(recipient, sender);
+        return toResponse(messengerApiService.getMessagesInRange(recipient, sender, from, to, decodeCursor(cursor), limit));
+    }
+
+    /**
+     * Streaming variant of /messenger/getMessagesWithinThirtyDays that returns every message in the range, newest first,
+     * without paging. Messages are read from a Mongo cursor and written to the response as they arrive, so memory use
+     * stays constant regardless of how many messages the range holds.
+     *
+     * @param recipient Query for messages for this recipient
+     * @param sender If provided, only return messages from this sender
+     * @param from If provided, only return messages sent at or after this ISO-8601 date-time
+     * @param to If provided, only return messages sent before this ISO-8601 date-time
+     * @return JSON array of all messages in the time range for a given recipient/sender pair
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/streamMessagesInRange")
+    public ResponseEntity<StreamingResponseBody> streamMessagesInRange(@RequestParam(value = "recipient") String recipient,
+                                                                       @RequestParam(value = "sender", required = false) String sender,
+                                                                       @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                                       @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        log.debug("streamMessagesInRange request received from: {}, to: {}", sender, recipient);
+        final StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.writeStartArray();
+                messengerApiService.streamMessagesInRange(recipient, sender, from, to, message -> {
+                    try {
+                        generator.writeObject(message);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /**
+     * Messages for a given recipient sent since the last sync, oldest first, for clients that keep a local copy of their
+     * history and only need what they haven't seen, for example after reconnecting. The X-Sync-Cursor response header
+     * holds the cursor to pass back as cursor next time, and X-More-Messages is true when more messages are waiting and
+     * the client should sync again right away. Without a cursor the recipient's history is returned from the start. Each
+     * request is a range scan on the recipient/id index starting at the cursor. Like the other history endpoints,
+     * returned messages are updated to the READ state.
+     *
+     * Messages are only returned once they are messenger.sync.settle-ms old, so that one written late, behind a newer
+     * message, is never skipped. Newer messages are returned by a later sync; use /messenger/pollUnreadMessages or
+     * /messenger/streamUnreadMessages to be notified of them as they arrive. Answers 404 Not Found when
+     * messenger.sync.enabled is off, which write-behind requires.
+     *
+     * @param recipient Query for messages for this recipient
+     * @param cursor X-Sync-Cursor of the previous sync, if any
+     * @param limit Page size, defaults to messenger.history.default-page-size (100)
+     * @return messages sent since the cursor
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/sync")
+    public ResponseEntity<List<SimpleMessage>> sync(@RequestParam(value = "recipient") String recipient,
+                                                    @RequestParam(value = "cursor", required = false) String cursor,
+                                                    @RequestParam(value = "limit", required = false) Integer limit) {
+        log.debug("sync request received for recipient: {}", recipient);
+        if (!syncEnabled) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Sync is disabled");
+        }
+        final SyncPage page = messengerApiService.sync(recipient, decodeCursor(cursor), limit);
+        final ResponseEntity.BodyBuilder response = ResponseEntity.ok().header(MORE_MESSAGES_HEADER, String.valueOf(page.isMore()));
+        if (page.getCursor() != null) {
+            response.header(SYNC_CURSOR_HEADER, page.getCursor().encode());
+        }
+        return response.body(page.getMessages());
     }
 
     /**
@@ -71,6 +221,24 @@ public class MessengerApiController {
         messengerApiService.sendMessage(message);
     }
 
+    /**
+     * Send a batch of simple messages. The body is either a JSON array of messages or a newline delimited stream of
+     * messages (application/x-ndjson). The body is read incrementally and written in chunks, so arbitrarily large batches
+     * can be sent without being held in memory. Each message gets a result in request order; messages missing recipient
+     * or sender are rejected individually.
+     *
+     * @param request request whose body holds the messages to send
+     * @return result for each message in the batch
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/messenger/sendMessages", consumes = {MediaType.APPLICATION_JSON_VALUE, NDJSON_VALUE})
+    public List<SendMessageResult> sendMessages(HttpServletRequest request) throws IOException {
+        log.debug("sendMessages request received with content type: {}", request.getContentType());
+        // readValues iterates the elements of a root level array as well as a sequence of root level values
+        try (MappingIterator<SimpleMessage> messages = objectMapper.readerFor(SimpleMessage.class).readValues(request.getInputStream())) {
+            return messengerApiService.sendMessages(messages);
+        }
+    }
+
     /**
      * Retrieve a list of all unread messages for a given recipient. Consuming this will update each unread message to the
      * READ state.
@@ -82,4 +250,144 @@ public class MessengerApiController {
         log.debug("getUnreadMessages request received for recipient: {}", recipient);
         return messengerApiService.getUnreadMessages(recipient);
     }
+
+    /**
+     * Number of unread messages for a given recipient, for clients that only need to know whether new messages arrived.
+     * Reads a single counter document and, unlike /messenger/getUnreadMessages, leaves the messages UNREAD.
+     *
+     * @param recipient recipient to count unread messages for
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getUnreadCount")
+    public UnreadCount getUnreadCount(@RequestParam(value = "recipient") String recipient) {
+        log.debug("getUnreadCount request received for recipient: {}", recipient);
+        return new UnreadCount(recipient, messengerApiService.getUnreadCount(recipient));
+    }
+
+    /**
+     * The recipient's inbox: one entry per sender with the latest message from them and how many of their messages are
+     * unread, most recent conversation first. Served from a per-conversation summary kept up to date on every send, so
+     * the recipient's message history is not read. Messages stay UNREAD.
+     *
+     * @param recipient recipient to list conversations for
+     * @param limit Number of conversations, defaults to messenger.inbox.default-size (100)
+     * @return latest conversations for the recipient
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getInbox")
+    public List<ConversationSummary> getInbox(@RequestParam(value = "recipient") String recipient,
+                                              @RequestParam(value = "limit", required = false) Integer limit) {
+        log.debug("getInbox request received for recipient: {}", recipient);
+        return messengerApiService.getInbox(recipient, limit);
+    }
+
+    /**
+     * Long-poll variant of /messenger/getUnreadMessages. Returns immediately if the recipient has unread messages,
+     * otherwise holds the request until a message for the recipient is stored or the timeout passes, in which case an
+     * empty list is returned. Messages returned are updated to the READ state.
+     *
+     * @param recipient recipient to retrieve unread messages for
+     * @param timeoutMillis how long to wait for a message, defaults to and is capped at
+     *                      messenger.notifications.long-poll-timeout-ms
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/pollUnreadMessages")
+    public DeferredResult<List<SimpleMessage>> pollUnreadMessages(@RequestParam(value = "recipient") String recipient,
+                                                                  @RequestParam(value = "timeoutMillis", required = false) Long timeoutMillis) {
+        log.debug("pollUnreadMessages request received for recipient: {}", recipient);
+        final DeferredResult<List<SimpleMessage>> result = new DeferredResult<>(pollTimeout(timeoutMillis));
+        // Every delivery attempt and the timeout run under the result's lock, so messages are only marked READ when
+        // they can still be returned
+        final Runnable deliver = () -> {
+            synchronized (result) {
+                if (result.isSetOrExpired()) {
+                    return;
+                }
+                final List<SimpleMessage> unread = messengerApiService.getUnreadMessages(recipient);
+                if (!unread.isEmpty()) {
+                    result.setResult(unread);
+                }
+            }
+        };
+        result.onTimeout(() -> {
+            synchronized (result) {
+                result.setResult(Collections.emptyList());
+            }
+        });
+        // Subscribe before the first check so a message stored in between is not missed
+        result.onCompletion(messageNotificationHub.subscribe(recipient, deliver));
+        deliver.run();
+        return result;
+    }
+
+    /**
+     * Server-Sent Events stream of unread messages for a recipient. Any unread messages are sent when the stream opens
+     * and new ones as they are stored, one "message" event per message. Messages are updated to the READ state once
+     * they were sent, so ones not yet sent when the client disconnects stay unread.
+     *
+     * @param recipient recipient to stream unread messages for
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/streamUnreadMessages", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamUnreadMessages(@RequestParam(value = "recipient") String recipient) {
+        log.debug("streamUnreadMessages request received for recipient: {}", recipient);
+        final SseEmitter emitter = new SseEmitter(sseTimeoutMillis);
+        final AtomicBoolean open = new AtomicBoolean(true);
+        final Runnable deliver = () -> {
+            synchronized (emitter) {
+                if (!open.get()) {
+                    return;
+                }
+                try {
+                    messengerApiService.streamUnreadMessages(recipient, message -> {
+                        try {
+                            emitter.send(SseEmitter.event().name("message").data(message, MediaType.APPLICATION_JSON));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException | IllegalStateException e) {
+                    log.debug("Closing unread message stream for recipient: {}", recipient, e);
+                    open.set(false);
+                    emitter.completeWithError(e);
+                }
+            }
+        };
+        final Runnable unsubscribe = messageNotificationHub.subscribe(recipient, deliver);
+        final Runnable close = () -> {
+            open.set(false);
+            unsubscribe.run();
+        };
+        emitter.onCompletion(close);
+        emitter.onTimeout(close);
+        emitter.onError(error -> close.run());
+        deliver.run();
+        return emitter;
+    }
+
+    // A client can ask for a shorter wait but not hold the request longer than the configured timeout
+    private long pollTimeout(Long timeoutMillis) {
+        return timeoutMillis == null ? longPollTimeoutMillis : Math.max(1, Math.min(timeoutMillis, longPollTimeoutMillis));
+    }
+
+    private static MessageCursor decodeCursor(String cursor) {
+        if (StringUtils.isEmpty(cursor)) {
+            return null;
+        }
+        try {
+            return MessageCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor", e);
+        }
+    }
+
+    // The version, and a hash of the parameters so that an ETag passed to another page of the recipient's messages doesn't
+    // match
+    static String etagOf(long version, String recipient, String sender, Integer limit, String cursor) {
+        return "\"" + version + "-" + Integer.toHexString(Objects.hash(recipient, sender, limit, cursor)) + "\"";
+    }
+
+    private static ResponseEntity<List<SimpleMessage>> toResponse(MessagePage page) {
+        final ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.getNextCursor() != null) {
+            response.header(NEXT_CURSOR_HEADER, page.getNextCursor().encode());
+        }
+        return response.body(page.getMessages());
+    }
 }
@@ -0,0 +1,22 @@
+package com.guild.interview.messengerapi;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics wiring that Spring Boot doesn't do on its own. Endpoint timers (http.server.requests) are recorded by Boot for
+ * both the servlet and the reactive controller, and everything is exported at /actuator/prometheus.
+ */
+@Configuration
+public class MetricsConfiguration {
+
+    // Times every command sent to Mongo as mongodb.driver.commands, tagged by command, collection and outcome. Applies
+    // to the blocking and the reactive client
+    @Bean
+    public MongoClientSettingsBuilderCustomizer mongoMetricsCustomizer(MeterRegistry meterRegistry) {
+        return settings -> settings.addCommandListener(new MongoMetricsCommandListener(meterRegistry));
+    }
+}
@@ -0,0 +1,295 @@
+package com.guild.interview.messengerapi;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.SendMessageResult;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.UnreadCount;
+import com.guild.interview.messengerapi.service.MessageNotificationHub;
+import com.guild.interview.messengerapi.service.ReactiveMessengerApiService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reactive variant of MessengerApiController, active with the reactive profile. Serves the same endpoints with the same
+ * parameters and responses, except /messenger/sync which is not served with this profile, backed by
+ * ReactiveMessengerApiService, so requests never hold a thread while waiting on Mongo or for new messages.
+ *
+ */
+@RestController
+@Profile("reactive")
+@Slf4j
+public class ReactiveMessengerApiController {
+
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final byte[] ARRAY_START = "[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ARRAY_SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ARRAY_END = "]".getBytes(StandardCharsets.UTF_8);
+
+    @Autowired
+    private ReactiveMessengerApiService reactiveMessengerApiService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MessageNotificationHub messageNotificationHub;
+
+    @Value("${messenger.notifications.long-poll-timeout-ms:30000}")
+    private long longPollTimeoutMillis;
+
+    @Value("${messenger.notifications.sse-timeout-ms:300000}")
+    private long sseTimeoutMillis;
+
+    @Value("${messenger.history.etags.enabled:true}")
+    private boolean etagsEnabled;
+
+    /**
+     * Return the latest messages for a given recipient, newest first. See MessengerApiController#getMessages.
+     *
+     * @param recipient Query for messages for this recipient
+     * @param sender If provided, only return messages from this sender
+     * @param limit Page size, defaults to messenger.history.default-page-size (100)
+     * @param cursor If provided, continue after the page that returned this cursor
+     * @return latest messages for a given recipient/sender pair
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getMessages")
+    public Mono<ResponseEntity<List<SimpleMessage>>> getMessages(@RequestParam(value = "recipient") String recipient,
+                                                                 @RequestParam(value = "sender", required = false) String sender,
+                                                                 @RequestParam(value = "limit", required = false) Integer limit,
+                                                                 @RequestParam(value = "cursor", required = false) String cursor,
+                                                                 ServerWebExchange exchange) {
+        log.debug("getMessages request received from: {}, to: {}", sender, recipient);
+        final MessageCursor after = decodeCursor(cursor);
+        final Mono<ResponseEntity<List<SimpleMessage>>> page = Mono.defer(() -> reactiveMessengerApiService.getRecentMessages(recipient, sender, after, limit))
+                .map(ReactiveMessengerApiController::toResponse);
+        if (!etagsEnabled) {
+            return page;
+        }
+        // See MessengerApiController#getMessages. Also sets the ETag header of a full response
+        return reactiveMessengerApiService.getMessagesVersion(recipient)
+                .flatMap(version -> version >= 0 && exchange.checkNotModified(MessengerApiController.etagOf(version, recipient, sender, limit, cursor))
+                        ? Mono.empty() : page);
+    }
+
+    /**
+     * Returns messages within a time range for a given recipient, newest first. See
+     * MessengerApiController#getMessagesWithinThirtyDays.
+     *
+     * @param recipient Query for messages for this recipient
+     * @param sender If provided, only return messages from this sender
+     * @param from If provided, only return messages sent at or after this ISO-8601 date-time
+     * @param to If provided, only return messages sent before this ISO-8601 date-time
+     * @param limit Page size, defaults to messenger.history.default-page-size (100)
+     * @param cursor If provided, continue after the page that returned this cursor
+     * @return messages in the time range for a given recipient/sender pair
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getMessagesWithinThirtyDays")
+    public Mono<ResponseEntity<List<SimpleMessage>>> getMessagesWithinThirtyDays(@RequestParam(value = "recipient") String recipient,
+                                                                                 @RequestParam(value = "sender", required = false) String sender,
+                                                                                 @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                                                 @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                                                 @RequestParam(value = "limit", required = false) Integer limit,
+                                                                                 @RequestParam(value = "cursor", required = false) String cursor) {
+        log.debug("getMessagesWithinThirtyDays request received from: {}, to: {}", sender, recipient);
+        return reactiveMessengerApiService.getMessagesInRange(recipient, sender, from, to, decodeCursor(cursor), limit)
+                .map(ReactiveMessengerApiController::toResponse);
+    }
+
+    /**
+     * Streaming variant of /messenger/getMessagesWithinThirtyDays that returns every message in the range as one JSON
+     * array, written to the response as messages are read from Mongo.
+     *
+     * @param recipient Query for messages for this recipient
+     * @param sender If provided, only return messages from this sender
+     * @param from If provided, only return messages sent at or after this ISO-8601 date-time
+     * @param to If provided, only return messages sent before this ISO-8601 date-time
+     * @param response response the array is written to
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/streamMessagesInRange")
+    public Mono<Void> streamMessagesInRange(@RequestParam(value = "recipient") String recipient,
+                                            @RequestParam(value = "sender", required = false) String sender,
+                                            @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                            ServerHttpResponse response) {
+        log.debug("streamMessagesInRange request received from: {}, to: {}", sender, recipient);
+        // The Jackson encoder collects a Flux into a list before writing application/json, so write the array by hand
+        final ObjectWriter writer = objectMapper.writerFor(SimpleMessage.class);
+        final Flux<byte[]> elements = reactiveMessengerApiService.streamMessagesInRange(recipient, sender, from, to)
+                .index()
+                .concatMap(indexed -> {
+                    try {
+                        final byte[] element = writer.writeValueAsBytes(indexed.getT2());
+                        return indexed.getT1() == 0 ? Flux.just(element) : Flux.just(ARRAY_SEPARATOR, element);
+                    } catch (JsonProcessingException e) {
+                        return Flux.error(e);
+                    }
+                });
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        return response.writeWith(Flux.concat(Flux.just(ARRAY_START), elements, Flux.just(ARRAY_END))
+                .map(bytes -> response.bufferFactory().wrap(bytes)));
+    }
+
+    /**
+     * Send a simple message. Body should contain recipient, sender, and body. Message will be in UNREAD state until the
+     * recipient invokes /messenger/getUnreadMessages.
+     *
+     * @param message message to send
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/messenger/sendMessage")
+    public Mono<Void> sendMessage(@RequestBody SimpleMessage message) {
+        log.debug("sendMessage request received with body: \n{}", message.toString());
+        return reactiveMessengerApiService.sendMessage(message);
+    }
+
+    /**
+     * Send a batch of simple messages, either a JSON array or application/x-ndjson. The body is decoded incrementally
+     * and written in chunks. See MessengerApiController#sendMessages.
+     *
+     * @param messages messages to send
+     * @return result for each message in the batch
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/messenger/sendMessages", consumes = {MediaType.APPLICATION_JSON_VALUE, NDJSON_VALUE})
+    public Flux<SendMessageResult> sendMessages(@RequestBody Flux<SimpleMessage> messages) {
+        log.debug("sendMessages request received");
+        return reactiveMessengerApiService.sendMessages(messages);
+    }
+
+    /**
+     * Retrieve a list of all unread messages for a given recipient. Consuming this will update each unread message to the
+     * READ state.
+     *
+     * @param recipient recipient to retrieve unread messages for
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getUnreadMessages")
+    public Flux<SimpleMessage> getUnreadMessages(@RequestParam(value = "recipient") String recipient) {
+        log.debug("getUnreadMessages request received for recipient: {}", recipient);
+        return reactiveMessengerApiService.getUnreadMessages(recipient);
+    }
+
+    /**
+     * Number of unread messages for a given recipient. See MessengerApiController#getUnreadCount.
+     *
+     * @param recipient recipient to count unread messages for
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getUnreadCount")
+    public Mono<UnreadCount> getUnreadCount(@RequestParam(value = "recipient") String recipient) {
+        log.debug("getUnreadCount request received for recipient: {}", recipient);
+        return reactiveMessengerApiService.getUnreadCount(recipient).map(unread -> new UnreadCount(recipient, unread));
+    }
+
+    /**
+     * The recipient's inbox, most recent conversation first. See MessengerApiController#getInbox.
+     *
+     * @param recipient recipient to list conversations for
+     * @param limit Number of conversations, defaults to messenger.inbox.default-size (100)
+     * @return latest conversations for the recipient
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/getInbox")
+    public Flux<ConversationSummary> getInbox(@RequestParam(value = "recipient") String recipient,
+                                              @RequestParam(value = "limit", required = false) Integer limit) {
+        log.debug("getInbox request received for recipient: {}", recipient);
+        return reactiveMessengerApiService.getInbox(recipient, limit);
+    }
+
+    /**
+     * Long-poll variant of /messenger/getUnreadMessages. Returns immediately if the recipient has unread messages,
+     * otherwise waits until a message for the recipient is stored or the timeout passes, in which case an empty list is
+     * returned. Messages returned are updated to the READ state.
+     *
+     * @param recipient recipient to retrieve unread messages for
+     * @param timeoutMillis how long to wait for a message, defaults to and is capped at
+     *                      messenger.notifications.long-poll-timeout-ms
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/pollUnreadMessages")
+    public Mono<List<SimpleMessage>> pollUnreadMessages(@RequestParam(value = "recipient") String recipient,
+                                                        @RequestParam(value = "timeoutMillis", required = false) Long timeoutMillis) {
+        log.debug("pollUnreadMessages request received for recipient: {}", recipient);
+        // The timeout only stops new checks, a check already in flight completes so messages it marked READ are returned
+        return unreadSignals(recipient, pollTimeout(timeoutMillis))
+                .concatMap(signal -> reactiveMessengerApiService.getUnreadMessages(recipient).collectList(), 1)
+                .filter(unread -> !unread.isEmpty())
+                .next()
+                .defaultIfEmpty(Collections.emptyList());
+    }
+
+    /**
+     * Server-Sent Events stream of unread messages for a recipient. Any unread messages are sent when the stream opens
+     * and new ones as they are stored, one "message" event per message. Messages are updated to the READ state once
+     * they were sent, so ones not yet sent when the client disconnects stay unread.
+     *
+     * @param recipient recipient to stream unread messages for
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/messenger/streamUnreadMessages", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<SimpleMessage>> streamUnreadMessages(@RequestParam(value = "recipient") String recipient) {
+        log.debug("streamUnreadMessages request received for recipient: {}", recipient);
+        return unreadSignals(recipient, sseTimeoutMillis)
+                .concatMap(signal -> reactiveMessengerApiService.streamUnreadMessages(recipient), 1)
+                .map(message -> ServerSentEvent.builder(message).event("message").build());
+    }
+
+    // Emits once straight away and again whenever messages for the recipient are stored, until the timeout. Subscribing
+    // to the hub happens before the first signal so a message stored in between is not missed. Signals arriving while a
+    // check is running collapse into one
+    private Flux<Boolean> unreadSignals(String recipient, long timeoutMillis) {
+        return Flux.<Boolean>create(sink -> {
+            sink.onDispose(messageNotificationHub.subscribe(recipient, () -> sink.next(Boolean.TRUE))::run);
+            sink.next(Boolean.TRUE);
+        })
+                .onBackpressureLatest()
+                .take(Duration.ofMillis(timeoutMillis));
+    }
+
+    // A client can ask for a shorter wait but not hold the request longer than the configured timeout
+    private long pollTimeout(Long timeoutMillis) {
+        return timeoutMillis == null ? longPollTimeoutMillis : Math.max(1, Math.min(timeoutMillis, longPollTimeoutMillis));
+    }
+
+    private static MessageCursor decodeCursor(String cursor) {
+        if (StringUtils.isEmpty(cursor)) {
+            return null;
+        }
+        try {
+            return MessageCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor", e);
+        }
+    }
+
+    private static ResponseEntity<List<SimpleMessage>> toResponse(MessagePage page) {
+        final ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.getNextCursor() != null) {
+            response.header(NEXT_CURSOR_HEADER, page.getNextCursor().encode());
+        }
+        return response.body(page.getMessages());
+    }
+}
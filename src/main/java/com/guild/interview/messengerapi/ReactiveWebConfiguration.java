@@ -0,0 +1,28 @@
+package com.guild.interview.messengerapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/**
+ * WebFlux configuration for the reactive profile.
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveWebConfiguration implements WebFluxConfigurer {
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // The default Jackson decoder does not accept application/x-ndjson, which /messenger/sendMessages takes
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        configurer.customCodecs().register(new Jackson2JsonDecoder(objectMapper,
+                MediaType.APPLICATION_JSON, MediaType.valueOf("application/x-ndjson")));
+    }
+}
@@ -0,0 +1,27 @@
+package com.guild.interview.messengerapi;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import springfox.documentation.builders.PathSelectors;
+import springfox.documentation.builders.RequestHandlerSelectors;
+import springfox.documentation.spi.DocumentationType;
+import springfox.documentation.spring.web.plugins.Docket;
+import springfox.documentation.swagger2.annotations.EnableSwagger2;
+
+// Springfox 2.x only supports Spring MVC, so swagger is not available with the reactive profile
+@Configuration
+@Profile("!reactive")
+@EnableSwagger2
+public class SwaggerConfiguration {
+
+	// Enables swagger-ui at http://<host>:<port>/swagger-ui.html
+	@Bean
+	public Docket api() {
+		return new Docket(DocumentationType.SWAGGER_2)
+				.select()
+				.apis(RequestHandlerSelectors.any())
+				.paths(PathSelectors.any())
+				.build();
+	}
+}
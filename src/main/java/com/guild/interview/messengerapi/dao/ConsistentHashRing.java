@@ -0,0 +1,48 @@
+package com.guild.interview.messengerapi.dao;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring mapping keys to named nodes, used by MessengerPartitionRouter to place recipients on partitions.
+ * Each node is hashed onto the ring at virtualNodes points and a key belongs to the node of the first point at or after
+ * its own hash. Adding a node only moves the keys that now land on one of its points, about 1/n of them, and all of
+ * them move to the new node.
+ *
+ * Points are the first 8 bytes of the MD5 of the node name or key, so placement is the same in every JVM and only
+ * changes when the set of node names does.
+ */
+public final class ConsistentHashRing<T> {
+    private final NavigableMap<Long, T> ring = new TreeMap<>();
+
+    public ConsistentHashRing(Map<String, T> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A hash ring needs at least one node and one point per node");
+        }
+        for (Map.Entry<String, T> node : nodes.entrySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node.getKey() + "#" + i), node.getValue());
+            }
+        }
+    }
+
+    public T nodeFor(String key) {
+        final Map.Entry<Long, T> point = ring.ceilingEntry(hash(key));
+        // Past the last point the ring wraps around to the first
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    static long hash(String value) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Builds the conversation summaries from the messages collection when there are none yet, i.e. the first time the
+ * application starts against messages written before the inbox existed. Once any summary exists they are only ever
+ * maintained incrementally, so this does nothing.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.conversations.backfill.enabled", matchIfMissing = true)
+@Slf4j
+public class ConversationSummaryBackfill implements ApplicationRunner {
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${messenger.conversations.backfill.batch-size:1000}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (mongoTemplate.exists(new Query(), ConversationSummaryDocument.class)) {
+            return;
+        }
+        backfill();
+    }
+
+    /**
+     * Group the messages by recipient and sender on the server and insert a summary for each conversation that doesn't
+     * have one yet.
+     *
+     * @return number of conversations inserted
+     */
+    public long backfill() {
+        // Newest first, so $first picks each conversation's latest message
+        final Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.sort(Sort.Direction.DESC, "_id"),
+                Aggregation.group("recipient", "sender")
+                        .first("_id").as("lastMessageId")
+                        .first("text").as("lastText")
+                        .first("timestamp").as("lastTimestamp")
+                        .sum(ConditionalOperators.when(where("messageStatus").is(MessageStatus.UNREAD.name())).then(1).otherwise(0)).as("unread"))
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        long inserted = 0;
+        final List<ConversationSummaryDocument> batch = new ArrayList<>(batchSize);
+        try (CloseableIterator<Document> conversations = mongoTemplate.aggregateStream(aggregation,
+                mongoTemplate.getCollectionName(SimpleMessageDocument.class), Document.class)) {
+            while (conversations.hasNext()) {
+                final Document conversation = conversations.next();
+                final Document key = conversation.get("_id", Document.class);
+                // Ids are kept as hex strings so they compare in send order, see ConversationSummaryDocument
+                batch.add(new ConversationSummaryDocument(null, key.getString("recipient"), key.getString("sender"),
+                        conversation.get("lastMessageId").toString(), conversation.getString("lastText"),
+                        conversation.get("lastTimestamp", Date.class), conversation.get("unread", Number.class).longValue()));
+                if (batch.size() >= batchSize) {
+                    inserted += insertIgnoringDuplicates(batch);
+                    batch.clear();
+                }
+            }
+        }
+        inserted += insertIgnoringDuplicates(batch);
+        log.info("Built {} conversation summaries", inserted);
+        return inserted;
+    }
+
+    // A conversation summarised by a send since startup keeps its summary
+    private long insertIgnoringDuplicates(List<ConversationSummaryDocument> summaries) {
+        if (summaries.isEmpty()) {
+            return 0;
+        }
+        try {
+            return mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ConversationSummaryDocument.class)
+                    .insert(summaries)
+                    .execute()
+                    .getInsertedCount();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+            return e.getResult().getInsertedCount();
+        }
+    }
+}
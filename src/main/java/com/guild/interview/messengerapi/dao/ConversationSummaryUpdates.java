@@ -0,0 +1,135 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Queries and updates that keep the conversations collection in step with the messages collection. Shared by
+ * MessengerApiRepositoryImpl, ReactiveMessengerApiRepositoryImpl, MessageWriteBuffer and MessagePartitionRebalancer.
+ *
+ * Sent messages are recorded with two writes per conversation. An upsert adds to the unread count and sets the last
+ * message only when it creates the summary. A conditional update replaces the last message only when the stored one is
+ * older. Either can run first, so concurrent sends and unordered bulk writes always leave the newest message in place.
+ */
+final class ConversationSummaryUpdates {
+
+    private ConversationSummaryUpdates() {
+    }
+
+    // The messages of one conversation within a batch of stored messages
+    static final class Sent {
+        final String recipient;
+        final String sender;
+        long count;
+        SimpleMessageDocument newest;
+
+        private Sent(SimpleMessageDocument document) {
+            this.recipient = document.getRecipient();
+            this.sender = document.getSender();
+            this.newest = document;
+        }
+    }
+
+    static Collection<Sent> groupByConversation(List<SimpleMessageDocument> stored) {
+        final Map<List<String>, Sent> conversations = new LinkedHashMap<>();
+        for (SimpleMessageDocument document : stored) {
+            final Sent sent = conversations.computeIfAbsent(Arrays.asList(document.getRecipient(), document.getSender()),
+                    key -> new Sent(document));
+            sent.count++;
+            if (document.getId().compareTo(sent.newest.getId()) > 0) {
+                sent.newest = document;
+            }
+        }
+        return conversations.values();
+    }
+
+    // Record stored messages with one unordered bulk write
+    static void recordSent(MongoTemplate mongoTemplate, List<SimpleMessageDocument> stored) {
+        if (stored.isEmpty()) {
+            return;
+        }
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ConversationSummaryDocument.class);
+        for (Sent sent : groupByConversation(stored)) {
+            bulkOperations.upsert(conversationQuery(sent.recipient, sent.sender), sentUpdate(sent));
+            bulkOperations.updateOne(olderQuery(sent), lastMessageUpdate(sent.newest));
+        }
+        bulkOperations.execute();
+    }
+
+    // Take messages that were flipped to READ off the unread count of each sender's conversation
+    static void recordRead(MongoTemplate mongoTemplate, String recipient, Map<String, Long> readBySender) {
+        BulkOperations bulkOperations = null;
+        for (Map.Entry<String, Long> read : readBySender.entrySet()) {
+            if (read.getValue() == 0) {
+                continue;
+            }
+            if (bulkOperations == null) {
+                bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ConversationSummaryDocument.class);
+            }
+            bulkOperations.updateOne(conversationQuery(recipient, read.getKey()), readUpdate(read.getValue()));
+        }
+        if (bulkOperations != null) {
+            bulkOperations.execute();
+        }
+    }
+
+    // Add a conversation moved from another partition to the one this partition has kept since, leaving the newer last
+    // message in place. Used by MessagePartitionRebalancer
+    static void recordMoved(MongoTemplate mongoTemplate, ConversationSummaryDocument moved) {
+        final Sent sent = new Sent(new SimpleMessageDocument(moved.getLastMessageId(), moved.getLastText(), moved.getRecipient(),
+                moved.getSender(), null, moved.getLastTimestamp(), null));
+        sent.count = moved.getUnread();
+        mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ConversationSummaryDocument.class)
+                .upsert(conversationQuery(sent.recipient, sent.sender), sentUpdate(sent))
+                .updateOne(olderQuery(sent), lastMessageUpdate(sent.newest))
+                .execute();
+    }
+
+    static Query conversationQuery(String recipient, String sender) {
+        return Query.query(where("recipient").is(recipient).and("sender").is(sender));
+    }
+
+    // Matches the conversation only while its last message is older than the newest one sent. Ids are hex strings of
+    // time-ordered ObjectIds, so string order is send order
+    static Query olderQuery(Sent sent) {
+        return Query.query(where("recipient").is(sent.recipient).and("sender").is(sent.sender)
+                .and("lastMessageId").lt(sent.newest.getId()));
+    }
+
+    static Update sentUpdate(Sent sent) {
+        return new Update().inc("unread", sent.count)
+                .setOnInsert("lastMessageId", sent.newest.getId())
+                .setOnInsert("lastText", sent.newest.getText())
+                .setOnInsert("lastTimestamp", sent.newest.getTimestamp());
+    }
+
+    static Update lastMessageUpdate(SimpleMessageDocument newest) {
+        return new Update().set("lastMessageId", newest.getId())
+                .set("lastText", newest.getText())
+                .set("lastTimestamp", newest.getTimestamp());
+    }
+
+    static Update readUpdate(long read) {
+        return new Update().inc("unread", -read);
+    }
+
+    // Checked by MessengerApiIndexInitializer
+    static Query inboxQuery(String recipient, int limit) {
+        return Query.query(where("recipient").is(recipient))
+                .with(Sort.by(Sort.Direction.DESC, "lastMessageId"))
+                .limit(limit);
+    }
+}
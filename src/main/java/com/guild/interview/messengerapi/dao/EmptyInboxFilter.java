@@ -0,0 +1,215 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Counting Bloom filter over the recipients that have UNREAD messages, enabled with messenger.empty-inbox-filter.enabled,
+ * so that getUnreadMessages polls of an empty inbox return without a query. Each recipient hashes to hashes of the
+ * cells, which are incremented for every message stored for it and decremented for every message flipped to READ. A
+ * recipient with any cell at zero definitely has nothing unread; one with all cells set may, either really or because
+ * other recipients share its cells (a false positive), and is queried as usual.
+ *
+ * The cells are rebuilt from an aggregation of the UNREAD messages in the background at startup and every
+ * rebuild-interval-ms, and polls are queried until the first build completes. Messages stored while a build runs are
+ * counted in it too, and READ transitions are only taken off the cells that were in use before the messages were
+ * flipped, so a build can only overcount, which costs false positives until the next one but never hides a message.
+ * Overcounts and messages stored through other instances, which this instance doesn't see until the next build, are
+ * why it is rebuilt.
+ *
+ * Startup fails with the reactive profile, which doesn't use the filter, and with bucketed storage, which the
+ * aggregation can't count.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.empty-inbox-filter.enabled", havingValue = "true")
+@Slf4j
+public class EmptyInboxFilter {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private Environment environment;
+
+    // Only present when messenger.partitions.enabled is set, every partition is counted
+    @Autowired(required = false)
+    private MessengerPartitionRouter messengerPartitionRouter;
+
+    // 4 bytes each. With 3 hashes, 1M cells keep false positives near 2% for 100k recipients with unread messages
+    @Value("${messenger.empty-inbox-filter.cells:1048576}")
+    private int cellCount;
+
+    @Value("${messenger.empty-inbox-filter.hashes:3}")
+    private int hashes;
+
+    // Like messenger.unread-cache.max-staleness-ms, how long a message sent through another instance can be answered as
+    // missing by this one
+    @Value("${messenger.empty-inbox-filter.rebuild-interval-ms:60000}")
+    private long rebuildIntervalMillis;
+
+    // Null until the first build completes
+    private volatile Cells cells;
+    // Set while a build runs
+    private volatile Cells building;
+    private final AtomicLong generations = new AtomicLong();
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        if (environment.acceptsProfiles(Profiles.of("reactive"))
+                || environment.getProperty("messenger.storage.buckets.enabled", Boolean.class, false)) {
+            throw new IllegalStateException("The empty inbox filter can't be combined with the reactive profile or bucketed storage");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "empty-inbox-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild();
+            } catch (DataAccessException e) {
+                // The previous cells stay in use until a build succeeds
+                log.error("Failed to rebuild the empty inbox filter", e);
+            }
+        }, 0, rebuildIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    // Whether the filter has been built and answers isEmpty
+    public boolean isReady() {
+        return cells != null;
+    }
+
+    // True only when the recipient definitely has no UNREAD messages. Always false before the first build
+    public boolean isEmpty(String recipient) {
+        final Cells current = cells;
+        if (current == null) {
+            return false;
+        }
+        final long hash = ConsistentHashRing.hash(recipient);
+        for (int i = 0; i < hashes; i++) {
+            if (current.counts.get(cellOf(hash, i)) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Count messages just stored as UNREAD for the recipient
+    public void add(String recipient, long count) {
+        // A build published after building is read only starts aggregating after this message was stored, and counts it
+        final Cells next = building;
+        final Cells current = cells;
+        increment(current, recipient, count);
+        if (next != current) {
+            increment(next, recipient, count);
+        }
+    }
+
+    // The cells in use, to pass to remove. Taken before flipping messages to READ
+    public long generation() {
+        final Cells current = cells;
+        return current == null ? 0 : current.generation;
+    }
+
+    // Count messages of the recipient flipped from UNREAD to READ, unless the cells were rebuilt since generation was
+    // taken. The build may not have seen the messages as UNREAD
+    public void remove(long generation, String recipient, long count) {
+        final Cells current = cells;
+        if (current != null && current.generation == generation) {
+            increment(current, recipient, -count);
+        }
+    }
+
+    /**
+     * Replace the cells with a count of the UNREAD messages per recipient, computed by the server.
+     */
+    public void rebuild() {
+        final Cells next = new Cells(generations.incrementAndGet(), cellCount);
+        // Published before the aggregation starts, so every message stored after it is counted in next
+        building = next;
+        try {
+            long recipients = 0;
+            for (MongoTemplate template : templates()) {
+                try (CloseableIterator<UnreadCounterDocument> counts = template.aggregateStream(Aggregation.newAggregation(
+                        Aggregation.match(where("messageStatus").is(MessageStatus.UNREAD)),
+                        Aggregation.group("recipient").count().as("unread"))
+                                .withOptions(AggregationOptions.builder().allowDiskUse(true).build()),
+                        SimpleMessageDocument.class, UnreadCounterDocument.class)) {
+                    while (counts.hasNext()) {
+                        final UnreadCounterDocument count = counts.next();
+                        increment(next, count.getRecipient(), count.getUnread());
+                        recipients++;
+                    }
+                }
+            }
+            cells = next;
+            log.info("Built the empty inbox filter from {} recipients with unread messages", recipients);
+        } finally {
+            building = null;
+        }
+    }
+
+    private List<MongoTemplate> templates() {
+        return messengerPartitionRouter == null ? Collections.singletonList(mongoTemplate)
+                : messengerPartitionRouter.getPartitions().stream()
+                        .map(MessengerPartitionRouter.Partition::getMongoTemplate)
+                        .collect(Collectors.toList());
+    }
+
+    private void increment(Cells target, String recipient, long count) {
+        if (target == null || count == 0) {
+            return;
+        }
+        final long hash = ConsistentHashRing.hash(recipient);
+        for (int i = 0; i < hashes; i++) {
+            target.counts.addAndGet(cellOf(hash, i), (int) count);
+        }
+    }
+
+    // Double hashing over the two halves of the recipient's hash
+    private int cellOf(long hash, int i) {
+        return Math.floorMod((int) hash + i * (int) (hash >>> 32), cellCount);
+    }
+
+    private static final class Cells {
+        private final long generation;
+        private final AtomicIntegerArray counts;
+
+        private Cells(long generation, int size) {
+            this.generation = generation;
+            this.counts = new AtomicIntegerArray(size);
+        }
+    }
+}
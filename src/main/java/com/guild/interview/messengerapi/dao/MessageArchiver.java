@@ -0,0 +1,198 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.CreateCollectionOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Keeps the messages collection down to the hot window by moving READ messages older than hot-days into the archive
+ * collection every interval-ms. UNREAD messages stay in the messages collection however old they are, so the unread
+ * queries, counters and conversations never need the archive, and everything archived is already READ.
+ *
+ * Each batch is copied to the archive before it is removed from the messages collection, so a message is always in at
+ * least one of them. Copies ignore duplicate keys, which makes a batch interrupted between the two steps safe to move
+ * again. Readers merge both collections by id, see MessengerApiServiceImpl.
+ *
+ * The archive is created with its own block compressor, and archived messages expire after retention-days when that is
+ * set.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.archive.enabled", havingValue = "true")
+@Slf4j
+public class MessageArchiver {
+    private static final String RETENTION_INDEX_NAME = "archive_retention";
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${messenger.archive.hot-days:90}")
+    private int hotDays;
+
+    @Value("${messenger.archive.interval-ms:3600000}")
+    private long intervalMillis;
+
+    @Value("${messenger.archive.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${messenger.archive.block-compressor:zlib}")
+    private String blockCompressor;
+
+    // 0 keeps archived messages forever
+    @Value("${messenger.archive.retention-days:0}")
+    private int retentionDays;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        ensureArchiveCollection();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "message-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                archive();
+            } catch (DataAccessException e) {
+                // Whatever was moved stays moved, the rest is picked up by the next run
+                log.error("Failed to archive messages", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Move every READ message sent before the hot window into the archive, batch-size messages at a time.
+     *
+     * @return number of messages moved
+     */
+    public long archive() {
+        final ObjectId cutoff = MessengerApiRepositoryImpl.firstIdAt(
+                (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(hotDays)));
+        long archived = 0;
+        ObjectId after = null;
+        while (true) {
+            final List<SimpleMessageDocument> batch = mongoTemplate.find(archivableQuery(after, cutoff, batchSize), SimpleMessageDocument.class);
+            if (batch.isEmpty()) {
+                break;
+            }
+            copyIgnoringDuplicates(batch);
+            final List<String> ids = batch.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList());
+            archived += mongoTemplate.remove(Query.query(where("id").in(ids).and("messageStatus").is(MessageStatus.READ)),
+                    SimpleMessageDocument.class).getDeletedCount();
+            // Old UNREAD messages are skipped rather than matched again by every batch
+            after = new ObjectId(batch.get(batch.size() - 1).getId());
+        }
+        log.info("Archived {} messages sent before {}", archived, cutoff.getDate());
+        return archived;
+    }
+
+    // READ messages sent before the cutoff, oldest first, continuing after the last message of the previous batch. A range
+    // scan on the _id index
+    static Query archivableQuery(ObjectId after, ObjectId before, int limit) {
+        final Criteria id = where("id").lt(before);
+        if (after != null) {
+            id.gt(after);
+        }
+        return Query.query(id.and("messageStatus").is(MessageStatus.READ))
+                .with(Sort.by(Sort.Direction.ASC, "id"))
+                .limit(limit);
+    }
+
+    private void copyIgnoringDuplicates(List<SimpleMessageDocument> batch) {
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimpleMessageDocument.class, MessengerApiRepositoryImpl.ARCHIVE_COLLECTION)
+                    .insert(batch)
+                    .execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+            log.debug("Skipped {} already archived messages", e.getErrors().size());
+        }
+    }
+
+    // The compressor can only be chosen when the collection is created, so create it before anything writes to it
+    void ensureArchiveCollection() {
+        if (!mongoTemplate.collectionExists(MessengerApiRepositoryImpl.ARCHIVE_COLLECTION)) {
+            final CreateCollectionOptions options = new CreateCollectionOptions();
+            if (!StringUtils.isEmpty(blockCompressor)) {
+                options.storageEngineOptions(new Document("wiredTiger", new Document("configString", "block_compressor=" + blockCompressor)));
+            }
+            mongoTemplate.getDb().createCollection(MessengerApiRepositoryImpl.ARCHIVE_COLLECTION, options);
+            log.info("Created collection {} with block compressor {}", MessengerApiRepositoryImpl.ARCHIVE_COLLECTION, blockCompressor);
+        }
+        // Archived history is paged with the same queries as the messages collection, so it needs the same indexes
+        final IndexOperations indexOperations = mongoTemplate.indexOps(MessengerApiRepositoryImpl.ARCHIVE_COLLECTION);
+        for (IndexDefinition indexDefinition : IndexResolver.create(mongoTemplate.getConverter().getMappingContext())
+                .resolveIndexFor(SimpleMessageDocument.class)) {
+            indexOperations.ensureIndex(indexDefinition);
+        }
+        ensureRetention(indexOperations);
+    }
+
+    // A TTL index on timestamp. An existing one is changed in place with collMod, or dropped when retention is turned off
+    private void ensureRetention(IndexOperations indexOperations) {
+        final IndexInfo existing = indexOperations.getIndexInfo().stream()
+                .filter(indexInfo -> RETENTION_INDEX_NAME.equals(indexInfo.getName()))
+                .findFirst()
+                .orElse(null);
+        if (retentionDays <= 0) {
+            if (existing != null) {
+                indexOperations.dropIndex(RETENTION_INDEX_NAME);
+                log.info("Dropped archive retention index, archived messages are kept forever");
+            }
+            return;
+        }
+        final Duration retention = Duration.ofDays(retentionDays);
+        if (existing == null) {
+            indexOperations.ensureIndex(new Index().on("timestamp", Sort.Direction.ASC)
+                    .named(RETENTION_INDEX_NAME)
+                    .expire(retention));
+        } else if (!existing.getExpireAfter().filter(retention::equals).isPresent()) {
+            mongoTemplate.getDb().runCommand(new Document("collMod", MessengerApiRepositoryImpl.ARCHIVE_COLLECTION)
+                    .append("index", new Document("name", RETENTION_INDEX_NAME).append("expireAfterSeconds", retention.getSeconds())));
+        }
+        log.info("Archived messages expire {} days after they were sent", retentionDays);
+    }
+}
@@ -0,0 +1,360 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageBucketDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.data.util.StreamUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Bucket-pattern storage for messages, enabled with messenger.storage.buckets.enabled. Instead of one document per
+ * message, a recipient's messages are appended to one document per period (an hour or a day) of up to max-messages, so
+ * a page of history is a few sequential bucket reads and the indexes hold an entry per bucket rather than per message.
+ * MessengerApiRepositoryImpl hands every messages collection operation to this store when it is enabled. The unread
+ * counters and conversations are maintained the same way in both modes.
+ *
+ * READ transitions are findAndModify calls that return the bucket as it was before the update, which tells exactly
+ * which messages the call flipped. That keeps markAsRead counts exact and claims exclusive, as with one document per
+ * message.
+ *
+ * Only MessengerApiRepositoryImpl reads buckets. Startup fails with the reactive profile, write-behind or archiving, as
+ * those read or write the messages collection directly.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.storage.buckets.enabled", havingValue = "true")
+@Slf4j
+public class MessageBucketStore {
+    // Hex ObjectIds compare as strings in send order
+    private static final Comparator<SimpleMessageDocument> NEWEST_FIRST = Comparator.comparing(SimpleMessageDocument::getId).reversed();
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private Environment environment;
+
+    // Pushed messages aren't entity writes, so compress is called before appending
+    @Autowired
+    private MessageTextCompressor messageTextCompressor;
+
+    // HOURS or DAYS
+    @Value("${messenger.storage.buckets.period:HOURS}")
+    private ChronoUnit period;
+
+    @Value("${messenger.storage.buckets.max-messages:200}")
+    private int maxMessages;
+
+    @PostConstruct
+    public void start() {
+        if (period != ChronoUnit.HOURS && period != ChronoUnit.DAYS) {
+            throw new IllegalStateException("messenger.storage.buckets.period must be HOURS or DAYS, was " + period);
+        }
+        if (environment.acceptsProfiles(Profiles.of("reactive"))
+                || environment.getProperty("messenger.write-behind.enabled", Boolean.class, false)
+                || environment.getProperty("messenger.archive.enabled", Boolean.class, false)) {
+            throw new IllegalStateException("Bucketed storage can't be combined with the reactive profile, write-behind or archiving");
+        }
+        final IndexOperations indexOperations = mongoTemplate.indexOps(MessageBucketDocument.class);
+        for (IndexDefinition indexDefinition : IndexResolver.create(mongoTemplate.getConverter().getMappingContext())
+                .resolveIndexFor(MessageBucketDocument.class)) {
+            indexOperations.ensureIndex(indexDefinition);
+        }
+    }
+
+    void insert(SimpleMessageDocument document) {
+        mongoTemplate.upsert(appendQuery(document.getRecipient(), periodStart(document.getTimestamp(), period), maxMessages),
+                appendUpdate(messageTextCompressor.compress(document)), MessageBucketDocument.class);
+    }
+
+    // One upsert per message with one unordered bulk write. Returns the error for each message that failed, keyed by its
+    // position in documents
+    Map<Integer, String> insertAll(List<SimpleMessageDocument> documents) {
+        final Map<Integer, String> failures = new HashMap<>();
+        if (documents.isEmpty()) {
+            return failures;
+        }
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MessageBucketDocument.class);
+        for (SimpleMessageDocument document : documents) {
+            bulkOperations.upsert(appendQuery(document.getRecipient(), periodStart(document.getTimestamp(), period), maxMessages),
+                    appendUpdate(messageTextCompressor.compress(document)));
+        }
+        try {
+            bulkOperations.execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                failures.put(error.getIndex(), error.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    List<SimpleMessageDocument> findByStatus(String recipient, MessageStatus messageStatus) {
+        final List<SimpleMessageDocument> matching = new ArrayList<>();
+        for (MessageBucketDocument bucket : mongoTemplate.find(statusQuery(recipient, messageStatus), MessageBucketDocument.class)) {
+            for (SimpleMessageDocument message : bucket.getMessages()) {
+                if (message.getMessageStatus() == messageStatus) {
+                    matching.add(withRecipient(message, recipient));
+                }
+            }
+        }
+        return matching;
+    }
+
+    // Flip the given UNREAD messages to READ and return the ones this call flipped
+    List<SimpleMessageDocument> markAsRead(String recipient, List<SimpleMessageDocument> documents) {
+        final Set<String> ids = documents.stream().map(SimpleMessageDocument::getId).collect(Collectors.toSet());
+        // Array filters are passed to the driver as they are, so they need the stored types
+        final Criteria unread = where("m._id").in(ids.stream().map(ObjectId::new).collect(Collectors.toList()))
+                .and("m.messageStatus").is(MessageStatus.UNREAD.name());
+        final List<SimpleMessageDocument> read = new ArrayList<>();
+        for (MessageBucketDocument bucket : mongoTemplate.find(markAsReadQuery(recipient, ids), MessageBucketDocument.class)) {
+            read.addAll(flipToRead(recipient, bucket.getId(), unread, message -> ids.contains(message.getId())));
+        }
+        return read;
+    }
+
+    // Flip every UNREAD message of the recipient to READ and return them. Concurrent callers never get the same message
+    List<SimpleMessageDocument> claimUnread(String recipient) {
+        final Query query = statusQuery(recipient, MessageStatus.UNREAD);
+        query.fields().include("id");
+        final Criteria unread = where("m.messageStatus").is(MessageStatus.UNREAD.name());
+        final List<SimpleMessageDocument> claimed = new ArrayList<>();
+        for (MessageBucketDocument bucket : mongoTemplate.find(query, MessageBucketDocument.class)) {
+            claimed.addAll(flipToRead(recipient, bucket.getId(), unread, message -> true));
+        }
+        return claimed;
+    }
+
+    // The bucket as it was before the update holds exactly the messages this update flipped
+    private List<SimpleMessageDocument> flipToRead(String recipient, String bucketId, Criteria arrayFilter, Predicate<SimpleMessageDocument> selected) {
+        final MessageBucketDocument before = mongoTemplate.findAndModify(Query.query(where("id").is(bucketId)),
+                new Update().set("messages.$[m].messageStatus", MessageStatus.READ).filterArray(arrayFilter), MessageBucketDocument.class);
+        if (before == null) {
+            return Collections.emptyList();
+        }
+        final List<SimpleMessageDocument> flipped = new ArrayList<>();
+        for (SimpleMessageDocument message : before.getMessages()) {
+            if (message.getMessageStatus() == MessageStatus.UNREAD && selected.test(message)) {
+                message.setMessageStatus(MessageStatus.READ);
+                flipped.add(withRecipient(message, recipient));
+            }
+        }
+        return flipped;
+    }
+
+    // Same arguments and order as MessengerApiRepositoryCustom#findPage. A limit of 0 returns every match
+    List<SimpleMessageDocument> findPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit) {
+        try (Stream<SimpleMessageDocument> messages = streamRange(recipient, sender, from, to, after)) {
+            return (limit > 0 ? messages.limit(limit) : messages).collect(Collectors.toList());
+        }
+    }
+
+    // Buckets are read newest period first. A period's messages are sorted once all of its buckets have been read, as
+    // neither appends nor the buckets of a full period are in send order. The stream must be closed
+    Stream<SimpleMessageDocument> streamRange(String recipient, String sender, Date from, Date to, MessageCursor after) {
+        final CloseableIterator<MessageBucketDocument> buckets = mongoTemplate.stream(historyQuery(recipient, sender, from, to, after, period),
+                MessageBucketDocument.class);
+        final Predicate<SimpleMessageDocument> matches = message -> (StringUtils.isEmpty(sender) || sender.equals(message.getSender()))
+                && (from == null || !message.getTimestamp().before(from))
+                && (to == null || message.getTimestamp().before(to))
+                && (after == null || message.getId().compareTo(after.getId()) < 0);
+        return StreamUtils.createStreamFromIterator(new CloseableIterator<SimpleMessageDocument>() {
+            private final Deque<SimpleMessageDocument> periodMessages = new ArrayDeque<>();
+            // First bucket of the next period, read while looking for the end of the current one
+            private MessageBucketDocument nextPeriod;
+
+            @Override
+            public boolean hasNext() {
+                while (periodMessages.isEmpty() && (nextPeriod != null || buckets.hasNext())) {
+                    readPeriod();
+                }
+                return !periodMessages.isEmpty();
+            }
+
+            @Override
+            public SimpleMessageDocument next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return periodMessages.removeFirst();
+            }
+
+            @Override
+            public void close() {
+                buckets.close();
+            }
+
+            private void readPeriod() {
+                final List<SimpleMessageDocument> messages = new ArrayList<>();
+                MessageBucketDocument bucket = nextPeriod != null ? nextPeriod : buckets.next();
+                nextPeriod = null;
+                final Date start = bucket.getStart();
+                while (true) {
+                    for (SimpleMessageDocument message : bucket.getMessages()) {
+                        if (matches.test(message)) {
+                            messages.add(withRecipient(message, recipient));
+                        }
+                    }
+                    if (!buckets.hasNext()) {
+                        break;
+                    }
+                    bucket = buckets.next();
+                    if (!start.equals(bucket.getStart())) {
+                        nextPeriod = bucket;
+                        break;
+                    }
+                }
+                messages.sort(NEWEST_FIRST);
+                periodMessages.addAll(messages);
+            }
+        });
+    }
+
+    // Same arguments and order as MessengerApiRepositoryCustom#findSince. Buckets are read oldest period first, and like
+    // streamRange a period's messages are only sorted once all of its buckets were read, so whole periods are read until
+    // the page is full
+    List<SimpleMessageDocument> findSince(String recipient, MessageCursor after, Date before, int limit) {
+        final String end = MessengerApiRepositoryImpl.firstIdAt((int) TimeUnit.MILLISECONDS.toSeconds(before.getTime())).toHexString();
+        final List<SimpleMessageDocument> since = new ArrayList<>();
+        final List<SimpleMessageDocument> periodMessages = new ArrayList<>();
+        Date start = null;
+        try (CloseableIterator<MessageBucketDocument> buckets = mongoTemplate.stream(sinceQuery(recipient, after, before, period),
+                MessageBucketDocument.class)) {
+            while (buckets.hasNext()) {
+                final MessageBucketDocument bucket = buckets.next();
+                if (!bucket.getStart().equals(start)) {
+                    addPeriod(since, periodMessages);
+                    if (since.size() >= limit) {
+                        break;
+                    }
+                    start = bucket.getStart();
+                }
+                for (SimpleMessageDocument message : bucket.getMessages()) {
+                    // Hex ObjectIds compare as strings in send order
+                    if ((after == null || message.getId().compareTo(after.getId()) > 0) && message.getId().compareTo(end) < 0) {
+                        periodMessages.add(withRecipient(message, recipient));
+                    }
+                }
+            }
+        }
+        addPeriod(since, periodMessages);
+        return since.size() > limit ? new ArrayList<>(since.subList(0, limit)) : since;
+    }
+
+    private static void addPeriod(List<SimpleMessageDocument> since, List<SimpleMessageDocument> periodMessages) {
+        periodMessages.sort(Comparator.comparing(SimpleMessageDocument::getId));
+        since.addAll(periodMessages);
+        periodMessages.clear();
+    }
+
+    private static SimpleMessageDocument withRecipient(SimpleMessageDocument message, String recipient) {
+        message.setRecipient(recipient);
+        return message;
+    }
+
+    static Date periodStart(Date date, ChronoUnit period) {
+        return Date.from(date.toInstant().truncatedTo(period));
+    }
+
+    // The queries below are shared with MessengerApiIndexInitializer, which checks that each one is served by an index
+
+    // A bucket of the period that still has room. When there is none the upsert starts a new one
+    static Query appendQuery(String recipient, Date start, int maxMessages) {
+        return Query.query(where("recipient").is(recipient).and("start").is(start).and("count").lt(maxMessages));
+    }
+
+    // The recipient is stored on the bucket only. A compressed body is pushed as it is
+    static Update appendUpdate(SimpleMessageDocument document) {
+        final SimpleMessageDocument message = new SimpleMessageDocument(document.getId(), null, null,
+                document.getSender(), document.getMessageStatus(), document.getTimestamp(), null);
+        if (document.getCompressedText() != null) {
+            message.compressText(document.getCompressedText(), document.getTextCodec());
+        } else {
+            message.setText(document.getText());
+        }
+        return new Update().push("messages", message).inc("count", 1);
+    }
+
+    static Query statusQuery(String recipient, MessageStatus messageStatus) {
+        return Query.query(where("recipient").is(recipient).and("messages.messageStatus").is(messageStatus));
+    }
+
+    // Ids of the buckets holding any of the messages while they are UNREAD
+    static Query markAsReadQuery(String recipient, Set<String> ids) {
+        final Query query = Query.query(where("recipient").is(recipient)
+                .and("messages").elemMatch(where("id").in(ids).and("messageStatus").is(MessageStatus.UNREAD)));
+        query.fields().include("id");
+        return query;
+    }
+
+    // Buckets whose period overlaps the part of history between the cursor and before, oldest period first
+    static Query sinceQuery(String recipient, MessageCursor after, Date before, ChronoUnit period) {
+        final Criteria start = where("recipient").is(recipient).and("start").lt(before);
+        if (after != null) {
+            start.gte(periodStart(new ObjectId(after.getId()).getDate(), period));
+        }
+        return Query.query(start).with(Sort.by(Sort.Direction.ASC, "start"));
+    }
+
+    // Buckets whose period overlaps the range and the part of history before the cursor, newest period first
+    static Query historyQuery(String recipient, String sender, Date from, Date to, MessageCursor after, ChronoUnit period) {
+        final Criteria criteria = where("recipient").is(recipient);
+        if (!StringUtils.isEmpty(sender)) {
+            criteria.and("messages.sender").is(sender);
+        }
+        if (from != null || to != null || after != null) {
+            final Criteria start = criteria.and("start");
+            if (from != null) {
+                start.gte(periodStart(from, period));
+            }
+            if (to != null) {
+                start.lt(to);
+            }
+            if (after != null) {
+                start.lte(periodStart(new ObjectId(after.getId()).getDate(), period));
+            }
+        }
+        return Query.query(criteria).with(Sort.by(Sort.Direction.DESC, "start"));
+    }
+}
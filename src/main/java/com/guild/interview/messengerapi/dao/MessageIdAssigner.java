@@ -0,0 +1,25 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+/**
+ * Gives messages saved without an id one generated from their timestamp rather than leaving it to the driver, which
+ * would use the time of the insert. Keeps id order and send order the same for every write path.
+ */
+@Component
+public class MessageIdAssigner extends AbstractMongoEventListener<SimpleMessageDocument> {
+
+    @Override
+    public void onBeforeConvert(BeforeConvertEvent<SimpleMessageDocument> event) {
+        final SimpleMessageDocument document = event.getSource();
+        if (document.getId() == null) {
+            document.setId(new ObjectId(document.getTimestamp() != null ? document.getTimestamp() : new Date()).toHexString());
+        }
+    }
+}
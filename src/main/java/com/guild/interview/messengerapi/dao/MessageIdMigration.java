@@ -0,0 +1,112 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Rewrites messages stored with the old random UUID string ids to time-ordered ObjectIds at startup, so they sort and
+ * page with the rest of the history. Until a message is migrated it is left out of cursor pages and range queries,
+ * which compare ids as ObjectIds.
+ *
+ * A document's _id can't be changed in place, so each batch is inserted under the new ids and the originals are then
+ * removed. The new id is derived from the message timestamp and the old id, so a migration interrupted between the two
+ * steps, or running on several instances at once, inserts the same ids again and the duplicates are ignored.
+ *
+ * Runs before every other ApplicationRunner, so the backfills only ever see the new ids. ConversationSummaryBackfill
+ * would otherwise keep a legacy id as a conversation's last message, which later sends compare against as a string.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@ConditionalOnProperty(value = "messenger.id-migration.enabled", matchIfMissing = true)
+@Slf4j
+public class MessageIdMigration implements ApplicationRunner {
+    private static final int BSON_STRING_TYPE = 2;
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${messenger.id-migration.batch-size:1000}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        migrate();
+    }
+
+    /**
+     * Migrate every message that still has a string id.
+     *
+     * @return number of messages migrated
+     */
+    public long migrate() {
+        long migrated = 0;
+        while (true) {
+            final List<SimpleMessageDocument> legacy = mongoTemplate.find(
+                    Query.query(where("id").type(BSON_STRING_TYPE)).limit(batchSize), SimpleMessageDocument.class);
+            if (legacy.isEmpty()) {
+                break;
+            }
+            final List<String> legacyIds = legacy.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList());
+            final List<SimpleMessageDocument> replacements = new ArrayList<>(legacy.size());
+            for (SimpleMessageDocument document : legacy) {
+                replacements.add(new SimpleMessageDocument(replacementId(document).toHexString(), document.getText(),
+                        document.getRecipient(), document.getSender(), document.getMessageStatus(), document.getTimestamp(),
+                        document.getClaimToken()));
+            }
+            insertIgnoringDuplicates(replacements);
+            mongoTemplate.remove(Query.query(where("id").in(legacyIds)), SimpleMessageDocument.class);
+            migrated += legacy.size();
+            log.info("Migrated {} messages to time-ordered ids", migrated);
+        }
+        return migrated;
+    }
+
+    // Message time in the timestamp bytes, a hash of the old id in the rest
+    static ObjectId replacementId(SimpleMessageDocument document) {
+        final Date timestamp = document.getTimestamp() != null ? document.getTimestamp() : new Date(0);
+        final long hash = UUID.nameUUIDFromBytes(document.getId().getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        return new ObjectId(ByteBuffer.allocate(12)
+                .putInt((int) Math.floorDiv(timestamp.getTime(), 1000L))
+                .putLong(hash)
+                .array());
+    }
+
+    private void insertIgnoringDuplicates(List<SimpleMessageDocument> documents) {
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimpleMessageDocument.class)
+                    .insert(documents)
+                    .execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Moves every recipient that is no longer on the partition that owns it, at startup when
+ * messenger.partitions.rebalance.enabled is set. Run it after adding a partition, once every instance routes with the
+ * new messenger.partitions.names: until a recipient has been moved, the messages still on its old partition are not
+ * visible to it.
+ *
+ * Messages are moved batch-size at a time, oldest first. Each batch is copied to the new partition before it is removed
+ * from the old one, and copies ignore duplicate keys, so a move interrupted between the two steps is safe to run again.
+ * The recipient's unread counter and conversations are then merged into the ones its new partition has kept since the
+ * change. They are removed before they are merged, so an interrupted move can lose a count but never adds one twice.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.partitions.rebalance.enabled", havingValue = "true")
+@Slf4j
+public class MessagePartitionRebalancer implements ApplicationRunner {
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final List<Class<?>> RECIPIENT_COLLECTIONS = Arrays.asList(SimpleMessageDocument.class,
+            UnreadCounterDocument.class, ConversationSummaryDocument.class);
+
+    @Autowired
+    private MessengerPartitionRouter messengerPartitionRouter;
+
+    @Value("${messenger.partitions.rebalance.batch-size:1000}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebalance();
+    }
+
+    /**
+     * Move every recipient found on a partition other than its own.
+     *
+     * @return number of messages moved
+     */
+    public long rebalance() {
+        long moved = 0;
+        int recipients = 0;
+        for (MessengerPartitionRouter.Partition source : messengerPartitionRouter.getPartitions()) {
+            // A counter or conversation can be left without messages by an interrupted move, so those are looked at as well.
+            // A recipient found again in a later collection has nothing left to move
+            for (Class<?> entityClass : RECIPIENT_COLLECTIONS) {
+                try (CloseableIterator<Document> found = recipientsOf(source.getMongoTemplate(), entityClass)) {
+                    while (found.hasNext()) {
+                        final String recipient = found.next().getString("_id");
+                        final MessengerPartitionRouter.Partition owner = messengerPartitionRouter.partitionFor(recipient);
+                        if (owner != source) {
+                            final long messages = move(recipient, source.getMongoTemplate(), owner.getMongoTemplate());
+                            log.debug("Moved {} messages for recipient: {} from partition {} to {}", messages, recipient, source, owner);
+                            moved += messages;
+                            recipients++;
+                        }
+                    }
+                }
+            }
+        }
+        log.info("Moved {} messages of {} recipients to their partitions", moved, recipients);
+        return moved;
+    }
+
+    // Every recipient of the collection, grouped on the server and read from a cursor rather than returned as a single
+    // distinct reply, which can't exceed 16MB. The grouping completes before the first result, so moving recipients while
+    // reading doesn't disturb it
+    private static CloseableIterator<Document> recipientsOf(MongoTemplate mongoTemplate, Class<?> entityClass) {
+        return mongoTemplate.aggregateStream(Aggregation.newAggregation(entityClass, Aggregation.group("recipient"))
+                        .withOptions(AggregationOptions.builder().allowDiskUse(true).build()),
+                Document.class);
+    }
+
+    private long move(String recipient, MongoTemplate source, MongoTemplate target) {
+        long moved = 0;
+        while (true) {
+            // Read from the recipient/id index. Every batch is removed once copied, so the next one starts at the front again
+            final List<SimpleMessageDocument> batch = source.find(Query.query(where("recipient").is(recipient))
+                    .with(Sort.by(Sort.Direction.ASC, "id"))
+                    .limit(batchSize), SimpleMessageDocument.class);
+            if (batch.isEmpty()) {
+                break;
+            }
+            insertIgnoringDuplicates(target, batch);
+            final List<String> ids = batch.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList());
+            moved += source.remove(Query.query(where("id").in(ids)), SimpleMessageDocument.class).getDeletedCount();
+        }
+        final UnreadCounterDocument counter = source.findAndRemove(MessengerApiRepositoryImpl.unreadCounterQuery(recipient), UnreadCounterDocument.class);
+        if (counter != null || moved > 0) {
+            // Past the source's version as well as the target's, so clients holding an ETag from either partition see the
+            // history as changed
+            target.upsert(MessengerApiRepositoryImpl.unreadCounterQuery(recipient),
+                    new Update().inc("unread", counter == null ? 0 : counter.getUnread())
+                            .inc("version", counter == null ? 1 : counter.getVersion() + 1),
+                    UnreadCounterDocument.class);
+        }
+        ConversationSummaryDocument conversation;
+        while ((conversation = source.findAndRemove(Query.query(where("recipient").is(recipient)), ConversationSummaryDocument.class)) != null) {
+            ConversationSummaryUpdates.recordMoved(target, conversation);
+        }
+        return moved;
+    }
+
+    private static void insertIgnoringDuplicates(MongoTemplate mongoTemplate, List<SimpleMessageDocument> documents) {
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimpleMessageDocument.class)
+                    .insert(documents)
+                    .execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageTextCodec;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertCallback;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Stores message bodies of threshold-bytes or more compressed when messenger.compression.enabled is set. Runs as an
+ * entity callback before every message is written, so inserts, bulk inserts and copies between collections are all
+ * covered. ReactiveMessengerApiRepositoryImpl and MessageBucketStore write without it and call compress themselves.
+ *
+ * Messages already stored keep the form they were written in and reads handle both, so compression can be turned on and
+ * off at any time. The dictionaries are registered either way, as messages written with them may still be read.
+ *
+ * The dictionary is a file of text typical of large bodies, such as a few concatenated samples with the most common
+ * content last. Deflate only looks back 32 KB, so only the end of a longer file is used.
+ */
+@Component
+@Slf4j
+public class MessageTextCompressor implements BeforeConvertCallback<SimpleMessageDocument> {
+    private static final int DEFLATE_WINDOW = 32 * 1024;
+
+    @Value("${messenger.compression.enabled:false}")
+    private boolean enabled;
+
+    @Value("${messenger.compression.threshold-bytes:1024}")
+    private int thresholdBytes;
+
+    // 1 (fastest) to 9 (smallest)
+    @Value("${messenger.compression.level:6}")
+    private int level;
+
+    @Value("${messenger.compression.dictionary:}")
+    private String dictionaryPath;
+
+    // Dictionaries that were used before the current one, still needed to read the messages written with them
+    @Value("${messenger.compression.previous-dictionaries:}")
+    private String[] previousDictionaryPaths;
+
+    private byte[] dictionary;
+
+    @PostConstruct
+    public void start() {
+        for (String path : previousDictionaryPaths) {
+            if (!StringUtils.isEmpty(path)) {
+                MessageTextCodec.registerDictionary(readDictionary(path));
+            }
+        }
+        if (!StringUtils.isEmpty(dictionaryPath)) {
+            dictionary = readDictionary(dictionaryPath);
+            MessageTextCodec.registerDictionary(dictionary);
+        }
+        if (enabled) {
+            log.info("Compressing message bodies of {} bytes or more{}", thresholdBytes, dictionary == null ? "" : " with dictionary " + dictionaryPath);
+        }
+    }
+
+    @Override
+    public SimpleMessageDocument onBeforeConvert(SimpleMessageDocument document, String collection) {
+        return compress(document);
+    }
+
+    // Switch the body to its compressed form when it is long enough and actually gets smaller. Returns the document
+    SimpleMessageDocument compress(SimpleMessageDocument document) {
+        if (!enabled || document.getCompressedText() != null || document.getText() == null) {
+            return document;
+        }
+        final String text = document.getText();
+        // Every char is at least one UTF-8 byte and at most three, which settles most bodies without encoding them
+        if (text.length() * 3 < thresholdBytes
+                || (text.length() < thresholdBytes && text.getBytes(StandardCharsets.UTF_8).length < thresholdBytes)) {
+            return document;
+        }
+        final byte[] compressed = MessageTextCodec.deflate(text, dictionary, level);
+        if (compressed.length < text.length()) {
+            document.compressText(compressed, MessageTextCodec.DEFLATE);
+        }
+        return document;
+    }
+
+    private static byte[] readDictionary(String path) {
+        try {
+            final byte[] dictionary = Files.readAllBytes(Paths.get(path));
+            if (dictionary.length > DEFLATE_WINDOW) {
+                log.warn("Only the last {} of the {} bytes in compression dictionary {} are used", DEFLATE_WINDOW, dictionary.length, path);
+            }
+            return dictionary;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read compression dictionary " + path, e);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.guild.interview.messengerapi.model.MessagesStoredEvent;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Write-behind buffer for sent messages. Messages are appended to a local journal segment and held in memory until
+ * either batch-size messages are waiting or max-delay-ms has passed, at which point a single flusher thread writes them
+ * with one unordered bulk insert. Each flush rotates to a new journal segment and the old one is deleted once its
+ * messages are in Mongo, so any segment left on disk at startup holds messages that may not have been written and is
+ * replayed. Inserts ignore duplicate keys, which makes replaying an already flushed segment harmless.
+ *
+ * A message Mongo rejects, for example one too large to store or failing validation, is appended to the dead-letter
+ * file in the journal directory and logged, and the rest of its batch is written as usual. Batches failing for any other
+ * reason, such as Mongo being unreachable, are retried until they are written. While the buffer is at capacity enqueue
+ * waits up to enqueue-timeout-ms and then rejects the message with WriteBufferFullException.
+ *
+ * Buffered messages are not visible to reads until they are flushed. Retried and replayed messages keep the ids they
+ * were given when sent, which can be far older than messenger.sync.settle-ms by the time they are written, so a sync
+ * cursor could already be past them. Startup fails unless messenger.sync.enabled is off.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.write-behind.enabled", havingValue = "true")
+@Slf4j
+public class MessageWriteBuffer {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    static final String DEAD_LETTER_FILE = "dead-letter.journal";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Object lock = new Object();
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    // Only present when the unread cache, recent cache or empty inbox filter are enabled. Buffered messages are added
+    // once they are flushed
+    @Autowired(required = false)
+    private UnreadMessageCache unreadMessageCache;
+
+    @Autowired(required = false)
+    private RecentMessageCache recentMessageCache;
+
+    @Autowired(required = false)
+    private EmptyInboxFilter emptyInboxFilter;
+
+    @Value("${messenger.write-behind.batch-size:500}")
+    private int batchSize;
+
+    @Value("${messenger.write-behind.max-delay-ms:100}")
+    private long maxDelayMillis;
+
+    @Value("${messenger.write-behind.capacity:10000}")
+    private int capacity;
+
+    @Value("${messenger.write-behind.enqueue-timeout-ms:5000}")
+    private long enqueueTimeoutMillis;
+
+    @Value("${messenger.write-behind.journal-dir:journal}")
+    private String journalDir;
+
+    @Value("${messenger.write-behind.fsync:false}")
+    private boolean fsync;
+
+    @Value("${messenger.sync.enabled:true}")
+    private boolean syncEnabled;
+
+    // Guarded by lock
+    private List<SimpleMessageDocument> buffer = new ArrayList<>();
+    private Path segment;
+    private FileChannel journal;
+    private long segmentSequence;
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (syncEnabled) {
+            throw new IllegalStateException("Write-behind can't be combined with /messenger/sync, set messenger.sync.enabled=false");
+        }
+        Files.createDirectories(Paths.get(journalDir));
+        replayJournal();
+        synchronized (lock) {
+            openSegment();
+        }
+        running = true;
+        flusher = new Thread(this::flushLoop, "message-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        // The flusher drains whatever is left before exiting
+        flusher.join(10_000);
+        synchronized (lock) {
+            journal.close();
+            if (buffer.isEmpty()) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    /**
+     * Journal the message and add it to the buffer. Blocks while the buffer is at capacity, for up to
+     * enqueue-timeout-ms.
+     *
+     * @param document message to write
+     * @throws WriteBufferFullException if the buffer is still at capacity after enqueue-timeout-ms
+     */
+    public void enqueue(SimpleMessageDocument document) {
+        final ByteBuffer entry;
+        try {
+            entry = ByteBuffer.wrap((objectMapper.writeValueAsString(document) + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (lock) {
+            final long deadline = System.currentTimeMillis() + enqueueTimeoutMillis;
+            while (buffer.size() >= capacity) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new WriteBufferFullException("Write buffer is full, message not accepted");
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for write buffer capacity", e);
+                }
+            }
+            try {
+                while (entry.hasRemaining()) {
+                    journal.write(entry);
+                }
+                if (fsync) {
+                    journal.force(false);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.add(document);
+            if (buffer.size() >= batchSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            final List<SimpleMessageDocument> batch;
+            final Path flushedSegment;
+            synchronized (lock) {
+                final long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (running && buffer.size() < batchSize) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (buffer.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+                // Everything in the buffer was journaled to the current segment, so swap both together
+                flushedSegment = segment;
+                try {
+                    openSegment();
+                } catch (IOException e) {
+                    log.error("Unable to rotate write-behind journal, keeping messages buffered", e);
+                    continue;
+                }
+                batch = buffer;
+                buffer = new ArrayList<>();
+                lock.notifyAll();
+            }
+            try {
+                persist(batch, flushedSegment);
+            } catch (RuntimeException e) {
+                // Keeps the flusher alive. The segment stays on disk and is replayed on the next start
+                log.error("Failed to flush {} buffered messages, keeping journal segment {}", batch.size(), flushedSegment, e);
+            }
+        }
+    }
+
+    // Retries until the batch is written. On shutdown the segment is kept and replayed on the next start
+    private void persist(List<SimpleMessageDocument> batch, Path flushedSegment) {
+        while (true) {
+            try {
+                insertAll(batch);
+                Files.deleteIfExists(flushedSegment);
+                log.debug("Flushed {} buffered messages", batch.size());
+                return;
+            } catch (DataAccessException e) {
+                log.error("Failed to flush {} buffered messages, retrying", batch.size(), e);
+                if (!running) {
+                    return;
+                }
+                try {
+                    Thread.sleep(maxDelayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } catch (IOException e) {
+                log.warn("Unable to delete flushed journal segment {}", flushedSegment, e);
+                return;
+            }
+        }
+    }
+
+    private void insertAll(List<SimpleMessageDocument> documents) {
+        for (int from = 0; from < documents.size(); from += batchSize) {
+            final List<SimpleMessageDocument> chunk = documents.subList(from, Math.min(from + batchSize, documents.size()));
+            final Set<Integer> alreadyWritten = new HashSet<>();
+            final Map<Integer, String> rejected = new HashMap<>();
+            try {
+                mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimpleMessageDocument.class)
+                        .insert(chunk)
+                        .execute();
+            } catch (BulkOperationException e) {
+                for (BulkWriteError error : e.getErrors()) {
+                    if (error.getCode() == DUPLICATE_KEY_ERROR) {
+                        alreadyWritten.add(error.getIndex());
+                    } else {
+                        rejected.put(error.getIndex(), error.getMessage());
+                    }
+                }
+                log.debug("Skipped {} already written messages", alreadyWritten.size());
+            } catch (DataAccessException e) {
+                // Retried by persist
+                throw e;
+            } catch (RuntimeException e) {
+                // Untranslated, so not reported by the server for one message, e.g. a document too large to encode. Write
+                // the messages one at a time to find the ones at fault
+                log.warn("Bulk insert of {} buffered messages failed, inserting them one at a time", chunk.size(), e);
+                insertEach(chunk, alreadyWritten, rejected);
+            }
+            deadLetter(chunk, rejected);
+            // Messages skipped as duplicates were recorded when they were first written
+            final Set<Integer> notStored = new HashSet<>(alreadyWritten);
+            notStored.addAll(rejected.keySet());
+            final List<SimpleMessageDocument> stored = MessengerApiRepositoryImpl.storedOf(chunk, notStored);
+            MessengerApiRepositoryImpl.recordStored(mongoTemplate, stored);
+            if (unreadMessageCache != null) {
+                unreadMessageCache.addAll(stored);
+            }
+            if (recentMessageCache != null) {
+                recentMessageCache.addAll(stored);
+            }
+            if (emptyInboxFilter != null) {
+                stored.forEach(document -> emptyInboxFilter.add(document.getRecipient(), 1));
+            }
+        }
+        eventPublisher.publishEvent(new MessagesStoredEvent(documents.stream()
+                .map(SimpleMessageDocument::getRecipient)
+                .collect(Collectors.toSet())));
+    }
+
+    private void insertEach(List<SimpleMessageDocument> chunk, Set<Integer> alreadyWritten, Map<Integer, String> rejected) {
+        for (int i = 0; i < chunk.size(); i++) {
+            try {
+                mongoTemplate.insert(chunk.get(i));
+            } catch (DuplicateKeyException e) {
+                alreadyWritten.add(i);
+            } catch (DataAccessException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                rejected.put(i, e.getMessage());
+            }
+        }
+    }
+
+    // Set rejected messages aside so they don't hold up the ones behind them
+    private void deadLetter(List<SimpleMessageDocument> chunk, Map<Integer, String> rejected) {
+        if (rejected.isEmpty()) {
+            return;
+        }
+        final List<String> entries = new ArrayList<>(rejected.size());
+        for (Map.Entry<Integer, String> rejection : rejected.entrySet()) {
+            final SimpleMessageDocument document = chunk.get(rejection.getKey());
+            log.error("Dead-lettering buffered message {} for recipient: {}: {}", document.getId(), document.getRecipient(), rejection.getValue());
+            try {
+                entries.add(objectMapper.writeValueAsString(document));
+            } catch (IOException e) {
+                log.error("Unable to serialize dead-lettered message {}", document.getId(), e);
+            }
+        }
+        try {
+            Files.write(Paths.get(journalDir, DEAD_LETTER_FILE), entries, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("Unable to write {} messages to the dead-letter file", entries.size(), e);
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(journalDir), SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(null);
+        for (Path leftover : segments) {
+            final List<SimpleMessageDocument> documents = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(leftover, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        documents.add(objectMapper.readValue(line, SimpleMessageDocument.class));
+                    } catch (IOException e) {
+                        // A crash mid-append leaves a truncated last line
+                        log.warn("Skipping unreadable journal entry in {}", leftover);
+                    }
+                }
+            }
+            log.info("Replaying {} messages from journal segment {}", documents.size(), leftover);
+            insertAll(documents);
+            Files.delete(leftover);
+        }
+    }
+
+    // Caller must hold lock
+    private void openSegment() throws IOException {
+        final Path next = Paths.get(journalDir, String.format("%s%d-%06d%s", SEGMENT_PREFIX, System.currentTimeMillis(),
+                segmentSequence++, SEGMENT_SUFFIX));
+        final FileChannel nextJournal = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (journal != null) {
+            journal.close();
+        }
+        segment = next;
+        journal = nextJournal;
+    }
+}
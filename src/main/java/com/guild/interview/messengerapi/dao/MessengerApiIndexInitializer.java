@@ -0,0 +1,216 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageBucketDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Creates the indexes backing every MessengerApiRepository query at startup and then uses explain() to verify that
+ * none of those queries is answered by a collection scan or an in-memory sort. Verification failures are logged, or
+ * abort startup when messenger.indexes.fail-on-collscan is set.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.indexes.enabled", matchIfMissing = true)
+@Slf4j
+public class MessengerApiIndexInitializer implements ApplicationRunner {
+    private static final String UNREAD_INDEX_NAME = "recipient_unread";
+    // Replaced by the recipient/id indexes once ids became time-ordered
+    private static final List<String> OBSOLETE_INDEX_NAMES = Arrays.asList("recipient_timestamp_id", "recipient_sender_timestamp_id");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // Only present when messenger.partitions.enabled is set
+    @Autowired(required = false)
+    private MessengerPartitionRouter messengerPartitionRouter;
+
+    @Value("${messenger.indexes.verify-on-startup:true}")
+    private boolean verifyOnStartup;
+
+    @Value("${messenger.indexes.fail-on-collscan:false}")
+    private boolean failOnCollscan;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        ensureIndexes();
+        if (verifyOnStartup) {
+            verifyQueryPlans();
+        }
+    }
+
+    void ensureIndexes() {
+        ensureIndexes(mongoTemplate);
+        // Every other partition serves the same queries. Plans are only verified on the application's own connection
+        if (messengerPartitionRouter != null) {
+            for (MessengerPartitionRouter.Partition partition : messengerPartitionRouter.getPartitions()) {
+                if (partition.getMongoTemplate() != mongoTemplate) {
+                    ensureIndexes(partition.getMongoTemplate());
+                }
+            }
+        }
+    }
+
+    private static void ensureIndexes(MongoTemplate mongoTemplate) {
+        final IndexOperations indexOperations = mongoTemplate.indexOps(SimpleMessageDocument.class);
+        for (IndexInfo indexInfo : indexOperations.getIndexInfo()) {
+            if (OBSOLETE_INDEX_NAMES.contains(indexInfo.getName())) {
+                indexOperations.dropIndex(indexInfo.getName());
+                log.info("Dropped obsolete index {}", indexInfo.getName());
+            }
+        }
+        // Compound indexes declared on SimpleMessageDocument and ConversationSummaryDocument
+        final IndexResolver indexResolver = IndexResolver.create(mongoTemplate.getConverter().getMappingContext());
+        for (IndexDefinition indexDefinition : indexResolver.resolveIndexFor(SimpleMessageDocument.class)) {
+            indexOperations.ensureIndex(indexDefinition);
+        }
+        for (IndexDefinition indexDefinition : indexResolver.resolveIndexFor(ConversationSummaryDocument.class)) {
+            mongoTemplate.indexOps(ConversationSummaryDocument.class).ensureIndex(indexDefinition);
+        }
+        // Only UNREAD messages are ever looked up by status, so keep that index small by leaving READ messages out
+        indexOperations.ensureIndex(new Index().on("recipient", Sort.Direction.ASC)
+                .named(UNREAD_INDEX_NAME)
+                .partial(PartialIndexFilter.of(where("messageStatus").is(MessageStatus.UNREAD.name()))));
+        log.info("Ensured indexes on collections {} and {}", mongoTemplate.getCollectionName(SimpleMessageDocument.class),
+                mongoTemplate.getCollectionName(ConversationSummaryDocument.class));
+    }
+
+    void verifyQueryPlans() {
+        final List<String> uncovered = new ArrayList<>();
+        verifyQueryPlans(SimpleMessageDocument.class, mongoTemplate.getCollectionName(SimpleMessageDocument.class), queryProbes(), uncovered);
+        verifyQueryPlans(ConversationSummaryDocument.class, mongoTemplate.getCollectionName(ConversationSummaryDocument.class),
+                Collections.singletonMap("findInbox", ConversationSummaryUpdates.inboxQuery("recipient", 100)), uncovered);
+        // The archive and its indexes are created by MessageArchiver, so there is only something to check once it has run
+        if (mongoTemplate.collectionExists(MessengerApiRepositoryImpl.ARCHIVE_COLLECTION)) {
+            final Map<String, Query> archiveProbes = new LinkedHashMap<>();
+            archiveProbes.put("findArchivedPage", MessengerApiRepositoryImpl.pageQuery("recipient", null, new Date(), null, null, 100));
+            archiveProbes.put("findArchivedSince", MessengerApiRepositoryImpl.sinceQuery("recipient", null, new Date(), 100));
+            verifyQueryPlans(SimpleMessageDocument.class, MessengerApiRepositoryImpl.ARCHIVE_COLLECTION, archiveProbes, uncovered);
+        }
+        // Likewise the buckets and their indexes are created by MessageBucketStore
+        if (mongoTemplate.collectionExists(MessageBucketDocument.class)) {
+            verifyQueryPlans(MessageBucketDocument.class, mongoTemplate.getCollectionName(MessageBucketDocument.class), bucketQueryProbes(), uncovered);
+        }
+        if (!uncovered.isEmpty() && failOnCollscan) {
+            throw new IllegalStateException("Queries not covered by an index: " + uncovered);
+        }
+    }
+
+    private void verifyQueryPlans(Class<?> entityClass, String collectionName, Map<String, Query> probes, List<String> uncovered) {
+        for (Map.Entry<String, Query> probe : probes.entrySet()) {
+            final Document explain = mongoTemplate.getDb().runCommand(new Document("explain", find(entityClass, collectionName, probe.getValue()))
+                    .append("verbosity", "queryPlanner"));
+            final Document winningPlan = explain.get("queryPlanner", Document.class).get("winningPlan", Document.class);
+            if (containsStage(winningPlan, "COLLSCAN") || containsStage(winningPlan, "SORT")) {
+                log.warn("Query {} is not covered by an index, winning plan: {}", probe.getKey(), winningPlan.toJson());
+                uncovered.add(probe.getKey());
+            } else {
+                log.debug("Query {} is covered by an index", probe.getKey());
+            }
+        }
+    }
+
+    // Every query shape MessengerApiRepository issues against the messages collection, using placeholder values
+    private Map<String, Query> queryProbes() {
+        final Date now = new Date();
+        final MessageCursor cursor = new MessageCursor(new ObjectId(now).toHexString());
+        final Map<String, Query> probes = new LinkedHashMap<>();
+        // findAllByRecipientAndMessageStatus has the same shape as the claim's update filter
+        probes.put("findAllByRecipientAndMessageStatus", MessengerApiRepositoryImpl.unreadQuery("recipient"));
+        probes.put("claimUnread", MessengerApiRepositoryImpl.claimedQuery("claimToken"));
+        probes.put("markAsRead", MessengerApiRepositoryImpl.markAsReadQuery("recipient", Collections.singletonList(cursor.getId())));
+        probes.put("findPage", MessengerApiRepositoryImpl.pageQuery("recipient", null, null, null, null, 100));
+        probes.put("findPage(sender)", MessengerApiRepositoryImpl.pageQuery("recipient", "sender", null, null, null, 100));
+        probes.put("findPage(range, cursor)", MessengerApiRepositoryImpl.pageQuery("recipient", null, now, now, cursor, 100));
+        probes.put("findPage(sender, range, cursor)", MessengerApiRepositoryImpl.pageQuery("recipient", "sender", now, now, cursor, 100));
+        probes.put("findSince", MessengerApiRepositoryImpl.sinceQuery("recipient", null, now, 100));
+        probes.put("findSince(cursor)", MessengerApiRepositoryImpl.sinceQuery("recipient", cursor, now, 100));
+        return probes;
+    }
+
+    // Every query shape MessageBucketStore issues against the buckets collection
+    private Map<String, Query> bucketQueryProbes() {
+        final Date now = new Date();
+        final MessageCursor cursor = new MessageCursor(new ObjectId(now).toHexString());
+        final Map<String, Query> probes = new LinkedHashMap<>();
+        probes.put("insertMessage(buckets)", MessageBucketStore.appendQuery("recipient", now, 100));
+        probes.put("findAllByRecipientAndMessageStatus(buckets)", MessageBucketStore.statusQuery("recipient", MessageStatus.UNREAD));
+        probes.put("markAsRead(buckets)", MessageBucketStore.markAsReadQuery("recipient", Collections.singleton(cursor.getId())));
+        probes.put("findPage(buckets)", MessageBucketStore.historyQuery("recipient", null, null, null, null, ChronoUnit.HOURS));
+        probes.put("findPage(buckets, sender)", MessageBucketStore.historyQuery("recipient", "sender", null, null, null, ChronoUnit.HOURS));
+        probes.put("findPage(buckets, range, cursor)", MessageBucketStore.historyQuery("recipient", null, now, now, cursor, ChronoUnit.HOURS));
+        probes.put("findSince(buckets, cursor)", MessageBucketStore.sinceQuery("recipient", cursor, now, ChronoUnit.HOURS));
+        return probes;
+    }
+
+    // Build the find command the driver would send for the query, with property names mapped to field names
+    private Document find(Class<?> entityClass, String collectionName, Query query) {
+        final MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext()
+                .getRequiredPersistentEntity(entityClass);
+        final QueryMapper queryMapper = new QueryMapper(mongoTemplate.getConverter());
+        final Document find = new Document("find", collectionName)
+                .append("filter", queryMapper.getMappedObject(query.getQueryObject(), entity));
+        if (!query.getSortObject().isEmpty()) {
+            find.append("sort", queryMapper.getMappedSort(query.getSortObject(), entity));
+        }
+        if (query.getLimit() > 0) {
+            find.append("limit", query.getLimit());
+        }
+        return find;
+    }
+
+    // Walks the plan tree (inputStage/inputStages) looking for the given stage
+    @SuppressWarnings("unchecked")
+    private static boolean containsStage(Document plan, String stage) {
+        if (plan == null) {
+            return false;
+        }
+        if (stage.equals(plan.getString("stage"))) {
+            return true;
+        }
+        if (containsStage(plan.get("inputStage", Document.class), stage)) {
+            return true;
+        }
+        final List<Document> inputStages = (List<Document>) plan.get("inputStages");
+        if (inputStages != null) {
+            for (Document inputStage : inputStages) {
+                if (containsStage(inputStage, stage)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,70 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Operations on messages, implemented by MessengerApiRepositoryImpl over either the messages collection or
+ * MessageBucketStore, and exposed through MessengerApiRepository.
+ */
+public interface MessengerApiRepositoryCustom {
+
+    // Every message for the recipient in the given status
+    List<SimpleMessageDocument> findAllByRecipientAndMessageStatus(String recipient, MessageStatus messageStatus);
+
+    // Flip the given messages of the recipient from UNREAD to READ, with one update per sender, and take the ones flipped
+    // off the recipient's unread counter and conversations. Returns the number of documents modified
+    long markAsRead(String recipient, List<SimpleMessageDocument> documents);
+
+    // Messages for the recipient, newest first, optionally from one sender and within [from, to). Continues after the
+    // cursor when one is given. Any of sender, from, to and after may be null. Only the fields needed to answer history
+    // requests are read; claimToken is never populated
+    List<SimpleMessageDocument> findPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit);
+
+    // Same order and filters as findPage without a limit, backed by a Mongo cursor. The stream must be closed
+    Stream<SimpleMessageDocument> streamRange(String recipient, String sender, Date from, Date to);
+
+    // findPage against the archive of READ messages older than the hot window, see MessageArchiver
+    List<SimpleMessageDocument> findArchivedPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit);
+
+    // streamRange against the archive. The stream must be closed
+    Stream<SimpleMessageDocument> streamArchivedRange(String recipient, String sender, Date from, Date to);
+
+    // Messages for the recipient after the cursor and sent before the given time, oldest first, from the start of their
+    // history when after is null. Reads the same fields as findPage
+    List<SimpleMessageDocument> findSince(String recipient, MessageCursor after, Date before, int limit);
+
+    // findSince against the archive
+    List<SimpleMessageDocument> findArchivedSince(String recipient, MessageCursor after, Date before, int limit);
+
+    // Atomically flip every UNREAD message for the recipient to READ, stamping them with a claim token, and return the
+    // claimed messages. The token is cleared once they are read back. Concurrent callers never receive the same message
+    List<SimpleMessageDocument> claimUnread(String recipient);
+
+    // Insert a new message and add it to its recipient's unread counter and conversation with the sender
+    void insertMessage(SimpleMessageDocument document);
+
+    // Insert all documents with one unordered bulk insert and add the ones written to their recipients' unread counters
+    // and conversations. Returns the error for each document that failed, keyed by its position in documents
+    Map<Integer, String> insertAll(List<SimpleMessageDocument> documents);
+
+    // Number of UNREAD messages for the recipient, read from the recipient's counter document rather than counted
+    long countUnread(String recipient);
+
+    // Returned by findVersion while a change to the recipient's counter is waiting to be written, see UnreadCounterBacklog
+    long UNKNOWN_VERSION = -1;
+
+    // Version of the recipient's messages, read from the same counter document. Bumped whenever messages are stored for
+    // the recipient or flipped to READ, 0 when none ever were and UNKNOWN_VERSION when the last bump failed
+    long findVersion(String recipient);
+
+    // The recipient's conversations, most recent message first
+    List<ConversationSummaryDocument> findInbox(String recipient, int limit);
+}
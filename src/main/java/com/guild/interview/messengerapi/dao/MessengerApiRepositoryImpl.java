@@ -0,0 +1,430 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import com.mongodb.bulk.BulkWriteError;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.StreamUtils;
+import org.springframework.util.StringUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * MongoTemplate backed implementation of MessengerApiRepositoryCustom. Spring Data picks this up by naming convention.
+ * Message operations go to MessageBucketStore instead of the messages collection when bucketed storage is enabled.
+ * MessengerPartitionRouter creates one more instance per partition over that partition's connection.
+ */
+@Slf4j
+public class MessengerApiRepositoryImpl implements MessengerApiRepositoryCustom {
+    // READ messages older than the hot window, moved there by MessageArchiver
+    static final String ARCHIVE_COLLECTION = "messages_archive";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // Only present when messenger.storage.buckets.enabled is set
+    @Autowired(required = false)
+    private MessageBucketStore messageBucketStore;
+
+    public MessengerApiRepositoryImpl() {
+    }
+
+    // A repository over one partition's connection, see MessengerPartitionRouter
+    MessengerApiRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public List<SimpleMessageDocument> findAllByRecipientAndMessageStatus(String recipient, MessageStatus messageStatus) {
+        if (messageBucketStore != null) {
+            return messageBucketStore.findByStatus(recipient, messageStatus);
+        }
+        return mongoTemplate.find(Query.query(where("recipient").is(recipient).and("messageStatus").is(messageStatus)), SimpleMessageDocument.class);
+    }
+
+    @Override
+    public long markAsRead(String recipient, List<SimpleMessageDocument> documents) {
+        if (documents.isEmpty()) {
+            return 0;
+        }
+        if (messageBucketStore != null) {
+            final List<SimpleMessageDocument> read = messageBucketStore.markAsRead(recipient, documents);
+            recordRead(mongoTemplate, recipient, countBySender(read));
+            return read.size();
+        }
+        // Only match UNREAD so that messages already marked READ are not rewritten, and only the modified count comes off
+        // the counters so concurrent readers of the same messages don't both decrement them. The whole page is flipped
+        // with one update whatever the number of senders
+        final long modified = mongoTemplate.updateMulti(markAsReadQuery(recipient, idsOf(documents)),
+                Update.update("messageStatus", MessageStatus.READ), SimpleMessageDocument.class).getModifiedCount();
+        recordRead(mongoTemplate, recipient, readBySender(documents, modified));
+        return modified;
+    }
+
+    @Override
+    public List<SimpleMessageDocument> findPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit) {
+        if (messageBucketStore != null) {
+            return messageBucketStore.findPage(recipient, sender, from, to, after, limit);
+        }
+        final List<SimpleMessageDocument> documents = mongoTemplate.find(pageQuery(recipient, sender, from, to, after, limit), SimpleMessageDocument.class);
+        documents.forEach(document -> restoreProjectedFields(document, recipient, sender));
+        return documents;
+    }
+
+    @Override
+    public Stream<SimpleMessageDocument> streamRange(String recipient, String sender, Date from, Date to) {
+        if (messageBucketStore != null) {
+            return messageBucketStore.streamRange(recipient, sender, from, to, null);
+        }
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(pageQuery(recipient, sender, from, to, null, 0),
+                SimpleMessageDocument.class))
+                .peek(document -> restoreProjectedFields(document, recipient, sender));
+    }
+
+    @Override
+    public List<SimpleMessageDocument> findArchivedPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit) {
+        final List<SimpleMessageDocument> documents = mongoTemplate.find(pageQuery(recipient, sender, from, to, after, limit),
+                SimpleMessageDocument.class, ARCHIVE_COLLECTION);
+        documents.forEach(document -> restoreProjectedFields(document, recipient, sender));
+        return documents;
+    }
+
+    @Override
+    public Stream<SimpleMessageDocument> streamArchivedRange(String recipient, String sender, Date from, Date to) {
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(pageQuery(recipient, sender, from, to, null, 0),
+                SimpleMessageDocument.class, ARCHIVE_COLLECTION))
+                .peek(document -> restoreProjectedFields(document, recipient, sender));
+    }
+
+    @Override
+    public List<SimpleMessageDocument> findSince(String recipient, MessageCursor after, Date before, int limit) {
+        if (messageBucketStore != null) {
+            return messageBucketStore.findSince(recipient, after, before, limit);
+        }
+        final List<SimpleMessageDocument> documents = mongoTemplate.find(sinceQuery(recipient, after, before, limit), SimpleMessageDocument.class);
+        documents.forEach(document -> restoreProjectedFields(document, recipient, null));
+        return documents;
+    }
+
+    @Override
+    public List<SimpleMessageDocument> findArchivedSince(String recipient, MessageCursor after, Date before, int limit) {
+        final List<SimpleMessageDocument> documents = mongoTemplate.find(sinceQuery(recipient, after, before, limit),
+                SimpleMessageDocument.class, ARCHIVE_COLLECTION);
+        documents.forEach(document -> restoreProjectedFields(document, recipient, null));
+        return documents;
+    }
+
+    // The page projection leaves out fields that every match shares, put them back from the query values
+    static void restoreProjectedFields(SimpleMessageDocument document, String recipient, String sender) {
+        document.setRecipient(recipient);
+        if (!StringUtils.isEmpty(sender)) {
+            document.setSender(sender);
+        }
+    }
+
+    @Override
+    public List<SimpleMessageDocument> claimUnread(String recipient) {
+        if (messageBucketStore != null) {
+            final List<SimpleMessageDocument> claimed = messageBucketStore.claimUnread(recipient);
+            recordRead(mongoTemplate, recipient, countBySender(claimed));
+            return claimed;
+        }
+        final String claimToken = UUID.randomUUID().toString();
+        // Each document is updated atomically, so a message can only ever be stamped by one claim
+        final Update claim = new Update().set("messageStatus", MessageStatus.READ).set("claimToken", claimToken);
+        final long claimed = mongoTemplate.updateMulti(unreadQuery(recipient), claim, SimpleMessageDocument.class).getModifiedCount();
+        if (claimed == 0) {
+            return Collections.emptyList();
+        }
+        final List<SimpleMessageDocument> claimedDocuments = mongoTemplate.find(claimedQuery(claimToken), SimpleMessageDocument.class);
+        // The token is only needed to find what this claim stamped. Clearing it keeps the sparse claimToken index down to
+        // claims in flight rather than every message ever claimed
+        mongoTemplate.updateMulti(claimedQuery(claimToken), new Update().unset("claimToken"), SimpleMessageDocument.class);
+        recordRead(mongoTemplate, recipient, countBySender(claimedDocuments));
+        return claimedDocuments;
+    }
+
+    @Override
+    public void insertMessage(SimpleMessageDocument document) {
+        if (messageBucketStore != null) {
+            messageBucketStore.insert(document);
+        } else {
+            mongoTemplate.insert(document);
+        }
+        recordStored(mongoTemplate, Collections.singletonList(document));
+    }
+
+    @Override
+    public Map<Integer, String> insertAll(List<SimpleMessageDocument> documents) {
+        if (messageBucketStore != null) {
+            final Map<Integer, String> failures = messageBucketStore.insertAll(documents);
+            recordStored(mongoTemplate, storedOf(documents, failures.keySet()));
+            return failures;
+        }
+        final Map<Integer, String> failures = new HashMap<>();
+        if (documents.isEmpty()) {
+            return failures;
+        }
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, SimpleMessageDocument.class)
+                    .insert(documents)
+                    .execute();
+        } catch (BulkOperationException e) {
+            // Unordered, so every document without an error was still written
+            for (BulkWriteError error : e.getErrors()) {
+                failures.put(error.getIndex(), error.getMessage());
+            }
+        }
+        recordStored(mongoTemplate, storedOf(documents, failures.keySet()));
+        return failures;
+    }
+
+    @Override
+    public long countUnread(String recipient) {
+        final UnreadCounterDocument counter = mongoTemplate.findById(recipient, UnreadCounterDocument.class);
+        // The counter and the messages aren't written atomically, never report a negative count if they drift
+        return counter == null ? 0 : Math.max(0, counter.getUnread());
+    }
+
+    @Override
+    public long findVersion(String recipient) {
+        if (UnreadCounterBacklog.isPending(mongoTemplate, recipient)) {
+            return UNKNOWN_VERSION;
+        }
+        final Query query = unreadCounterQuery(recipient);
+        query.fields().include("version");
+        final UnreadCounterDocument counter = mongoTemplate.findOne(query, UnreadCounterDocument.class);
+        return counter == null ? 0 : counter.getVersion();
+    }
+
+    @Override
+    public List<ConversationSummaryDocument> findInbox(String recipient, int limit) {
+        return mongoTemplate.find(ConversationSummaryUpdates.inboxQuery(recipient, limit), ConversationSummaryDocument.class);
+    }
+
+    // Add newly stored messages to the unread counters and conversation summaries. The messages are already written, so
+    // a failure here is logged rather than failing the send and having the client send them again. A failed counter
+    // write is retried with the next one, see adjustUnreadCounts. Shared with MessageWriteBuffer
+    static void recordStored(MongoTemplate mongoTemplate, List<SimpleMessageDocument> stored) {
+        try {
+            adjustUnreadCounts(mongoTemplate, unreadCountsOf(stored));
+            ConversationSummaryUpdates.recordSent(mongoTemplate, stored);
+        } catch (DataAccessException e) {
+            log.warn("Failed to record {} stored messages in the unread counters and conversations", stored.size(), e);
+        }
+    }
+
+    // Take messages flipped to READ off the recipient's unread counter and conversations, logging failures as above
+    private static void recordRead(MongoTemplate mongoTemplate, String recipient, Map<String, Long> readBySender) {
+        try {
+            adjustUnreadCounts(mongoTemplate, Collections.singletonMap(recipient,
+                    -readBySender.values().stream().mapToLong(Long::longValue).sum()));
+            ConversationSummaryUpdates.recordRead(mongoTemplate, recipient, readBySender);
+        } catch (DataAccessException e) {
+            log.warn("Failed to record messages read by {} in the unread counters and conversations", recipient, e);
+        }
+    }
+
+    // Apply the change in unread messages for each recipient with one unordered bulk write, bumping their versions.
+    // Increments create the counter when the recipient has none yet, decrements never do. Changes whose write failed
+    // are kept in UnreadCounterBacklog and written with the next call; only the failed ones when the bulk write reports
+    // which, all of them otherwise
+    private static void adjustUnreadCounts(MongoTemplate mongoTemplate, Map<String, Long> deltas) {
+        final Map<String, Long> all = UnreadCounterBacklog.drain(mongoTemplate, deltas);
+        if (all.isEmpty()) {
+            return;
+        }
+        final List<String> recipients = new ArrayList<>(all.keySet());
+        try {
+            final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UnreadCounterDocument.class);
+            for (String recipient : recipients) {
+                final long delta = all.get(recipient);
+                final Query query = unreadCounterQuery(recipient);
+                final Update update = new Update().inc("unread", delta).inc("version", 1);
+                if (delta > 0) {
+                    bulkOperations.upsert(query, update);
+                } else {
+                    bulkOperations.updateOne(query, update);
+                }
+            }
+            bulkOperations.execute();
+        } catch (BulkOperationException e) {
+            final Map<String, Long> failed = new HashMap<>();
+            for (BulkWriteError error : e.getErrors()) {
+                final String recipient = recipients.get(error.getIndex());
+                failed.put(recipient, all.get(recipient));
+            }
+            UnreadCounterBacklog.add(mongoTemplate, failed);
+            throw e;
+        } catch (DataAccessException e) {
+            UnreadCounterBacklog.add(mongoTemplate, all);
+            throw e;
+        }
+    }
+
+    // Stored messages per recipient. This and the helpers below are shared with ReactiveMessengerApiRepositoryImpl
+    static Map<String, Long> unreadCountsOf(List<SimpleMessageDocument> stored) {
+        final Map<String, Long> counts = new HashMap<>();
+        stored.forEach(document -> counts.merge(document.getRecipient(), 1L, Long::sum));
+        return counts;
+    }
+
+    static Map<String, Long> countBySender(List<SimpleMessageDocument> documents) {
+        final Map<String, Long> counts = new HashMap<>();
+        documents.forEach(document -> counts.merge(document.getSender(), 1L, Long::sum));
+        return counts;
+    }
+
+    static List<String> idsOf(List<SimpleMessageDocument> documents) {
+        return documents.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList());
+    }
+
+    // Messages flipped to READ per sender, when modified of the UNREAD documents were. Exact unless a concurrent reader
+    // flipped some of them first; which ones isn't known then, so the difference is taken off the senders in turn. The
+    // recipient's counter stays exact and a conversation is at most off by the messages read concurrently, see
+    // MessengerApiServiceImpl#toConversationSummary
+    static Map<String, Long> readBySender(List<SimpleMessageDocument> documents, long modified) {
+        final Map<String, Long> readBySender = countBySender(documents);
+        long notModified = documents.size() - modified;
+        for (Map.Entry<String, Long> read : readBySender.entrySet()) {
+            if (notModified <= 0) {
+                break;
+            }
+            final long skipped = Math.min(notModified, read.getValue());
+            read.setValue(read.getValue() - skipped);
+            notModified -= skipped;
+        }
+        return readBySender;
+    }
+
+    // The documents that were written, i.e. all but the positions that failed to insert
+    static List<SimpleMessageDocument> storedOf(List<SimpleMessageDocument> documents, Set<Integer> failedPositions) {
+        if (failedPositions.isEmpty()) {
+            return documents;
+        }
+        final List<SimpleMessageDocument> stored = new ArrayList<>(documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            if (!failedPositions.contains(i)) {
+                stored.add(documents.get(i));
+            }
+        }
+        return stored;
+    }
+
+    // The queries below are shared with MessengerApiIndexInitializer, which checks that each one is served by an index
+
+    static Query unreadQuery(String recipient) {
+        return Query.query(where("recipient").is(recipient).and("messageStatus").is(MessageStatus.UNREAD));
+    }
+
+    static Query markAsReadQuery(String recipient, Collection<String> ids) {
+        return Query.query(where("id").in(ids).and("recipient").is(recipient).and("messageStatus").is(MessageStatus.UNREAD));
+    }
+
+    static Query unreadCounterQuery(String recipient) {
+        return Query.query(where("recipient").is(recipient));
+    }
+
+    static Query claimedQuery(String claimToken) {
+        return Query.query(where("claimToken").is(claimToken));
+    }
+
+    static Query pageQuery(String recipient, String sender, Date from, Date to, MessageCursor after, int limit) {
+        final Criteria criteria = where("recipient").is(recipient);
+        if (!StringUtils.isEmpty(sender)) {
+            criteria.and("sender").is(sender);
+        }
+        // Ids carry the message time, so the range and the cursor both become bounds on the recipient/id index scan
+        ObjectId upperBound = to != null ? firstIdAtOrAfter(to) : null;
+        if (after != null) {
+            final ObjectId cursorId = new ObjectId(after.getId());
+            upperBound = upperBound == null || cursorId.compareTo(upperBound) < 0 ? cursorId : upperBound;
+        }
+        if (from != null || upperBound != null) {
+            final Criteria id = criteria.and("id");
+            if (from != null) {
+                id.gte(firstIdAt(secondsOf(from)));
+            }
+            if (upperBound != null) {
+                id.lt(upperBound);
+            }
+        }
+        // The id bounds only have second precision, the timestamp filter makes the range exact
+        if (from != null || to != null) {
+            final Criteria timestamp = criteria.and("timestamp");
+            if (from != null) {
+                timestamp.gte(from);
+            }
+            if (to != null) {
+                timestamp.lt(to);
+            }
+        }
+        final Query query = Query.query(criteria)
+                .with(Sort.by(Sort.Direction.DESC, "id"))
+                .limit(limit);
+        includePageFields(query, sender);
+        return query;
+    }
+
+    // Messages after the cursor and before the given second, oldest first. Both bounds are on the recipient/id index scan
+    static Query sinceQuery(String recipient, MessageCursor after, Date before, int limit) {
+        final Criteria id = where("recipient").is(recipient).and("id").lt(firstIdAt(secondsOf(before)));
+        if (after != null) {
+            id.gt(new ObjectId(after.getId()));
+        }
+        final Query query = Query.query(id)
+                .with(Sort.by(Sort.Direction.ASC, "id"))
+                .limit(limit);
+        includePageFields(query, null);
+        return query;
+    }
+
+    // Only what the response, the READ update and the next cursor need. Recipient, and sender when filtered on, are known
+    // from the query so they aren't read back. The body is in text or, when stored compressed, compressedText
+    private static void includePageFields(Query query, String sender) {
+        query.fields().include("id").include("text").include("compressedText").include("textCodec").include("messageStatus");
+        if (StringUtils.isEmpty(sender)) {
+            query.fields().include("sender");
+        }
+    }
+
+    // Smallest possible id of a message sent at or after the given time, rounded up to the next whole second
+    private static ObjectId firstIdAtOrAfter(Date date) {
+        return firstIdAt(secondsOf(new Date(date.getTime() + 999)));
+    }
+
+    // Smallest possible id within the given second: the timestamp followed by zeros. Shared with MessageArchiver
+    static ObjectId firstIdAt(int seconds) {
+        return new ObjectId(ByteBuffer.allocate(12).putInt(seconds).array());
+    }
+
+    private static int secondsOf(Date date) {
+        return (int) Math.floorDiv(date.getTime(), 1000L);
+    }
+}
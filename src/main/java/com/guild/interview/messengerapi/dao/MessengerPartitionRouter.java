@@ -0,0 +1,145 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.data.mapping.callback.EntityCallbacks;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Application-level partitioning of messages by recipient, enabled with messenger.partitions.enabled. Each partition
+ * is a separate Mongo deployment holding the messages, unread counter and conversations of the recipients placed on it
+ * by a consistent hash of the recipient, so everything a request touches is on one partition. MessengerApiServiceImpl
+ * asks for the repository of the recipient on every read and write.
+ *
+ * The partition named default is the application's own connection (spring.data.mongodb.*), which is where messages
+ * written before partitioning live. Every other partition connects to messenger.partitions.NAME.uri. Adding a partition
+ * moves about 1/n of the recipients to it, which MessagePartitionRebalancer catches up on.
+ *
+ * Startup fails with the reactive profile, write-behind, archiving or bucketed storage, as those always use the
+ * application's own connection.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.partitions.enabled", havingValue = "true")
+@Slf4j
+public class MessengerPartitionRouter {
+    public static final String DEFAULT_PARTITION = "default";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private ObjectProvider<MongoClientSettingsBuilderCustomizer> settingsCustomizers;
+
+    // Renaming a partition moves recipients just like adding or removing one
+    @Value("${messenger.partitions.names:default}")
+    private String[] names;
+
+    // Points per partition on the hash ring. More points spread recipients more evenly
+    @Value("${messenger.partitions.virtual-nodes:128}")
+    private int virtualNodes;
+
+    private final List<MongoClient> clients = new ArrayList<>();
+    private List<Partition> partitions;
+    private ConsistentHashRing<Partition> ring;
+
+    @PostConstruct
+    public void start() {
+        if (environment.acceptsProfiles(Profiles.of("reactive"))
+                || environment.getProperty("messenger.write-behind.enabled", Boolean.class, false)
+                || environment.getProperty("messenger.archive.enabled", Boolean.class, false)
+                || environment.getProperty("messenger.storage.buckets.enabled", Boolean.class, false)) {
+            throw new IllegalStateException("Partitioned storage can't be combined with the reactive profile, write-behind, archiving or bucketed storage");
+        }
+        final Map<String, Partition> byName = new LinkedHashMap<>();
+        for (String name : names) {
+            if (byName.containsKey(name)) {
+                throw new IllegalStateException("Partition " + name + " is listed more than once in messenger.partitions.names");
+            }
+            byName.put(name, new Partition(name, DEFAULT_PARTITION.equals(name) ? mongoTemplate : connect(name)));
+        }
+        partitions = Collections.unmodifiableList(new ArrayList<>(byName.values()));
+        ring = new ConsistentHashRing<>(byName, virtualNodes);
+        log.info("Partitioning recipients across {}", byName.keySet());
+    }
+
+    @PreDestroy
+    public void stop() {
+        clients.forEach(MongoClient::close);
+    }
+
+    public Partition partitionFor(String recipient) {
+        return ring.nodeFor(recipient);
+    }
+
+    // Repository over the partition that owns the recipient's messages, counter and conversations
+    public MessengerApiRepositoryCustom repositoryFor(String recipient) {
+        return partitionFor(recipient).getRepository();
+    }
+
+    public List<Partition> getPartitions() {
+        return partitions;
+    }
+
+    private MongoTemplate connect(String name) {
+        final ConnectionString connectionString = new ConnectionString(environment.getRequiredProperty("messenger.partitions." + name + ".uri"));
+        if (connectionString.getDatabase() == null) {
+            throw new IllegalStateException("messenger.partitions." + name + ".uri must name a database");
+        }
+        // Customized like the default connection, which also times the partition's commands as mongodb.driver.commands
+        final MongoClientSettings.Builder settings = MongoClientSettings.builder().applyConnectionString(connectionString);
+        settingsCustomizers.orderedStream().forEach(customizer -> customizer.customize(settings));
+        final MongoClient client = MongoClients.create(settings.build());
+        clients.add(client);
+        // The default connection's converter and entity callbacks, so documents are written the same way on every partition
+        final MongoTemplate partitionTemplate = new MongoTemplate(new SimpleMongoClientDatabaseFactory(client, connectionString.getDatabase()),
+                mongoTemplate.getConverter());
+        partitionTemplate.setEntityCallbacks(EntityCallbacks.create(applicationContext));
+        return partitionTemplate;
+    }
+
+    @Getter
+    public static final class Partition {
+        private final String name;
+        private final MongoTemplate mongoTemplate;
+        private final MessengerApiRepositoryCustom repository;
+
+        private Partition(String name, MongoTemplate mongoTemplate) {
+            this.name = name;
+            this.mongoTemplate = mongoTemplate;
+            this.repository = new MessengerApiRepositoryImpl(mongoTemplate);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
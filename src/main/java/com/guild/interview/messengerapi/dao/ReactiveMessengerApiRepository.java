@@ -0,0 +1,14 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+// Reactive counterpart of MessengerApiRepository, used by the reactive profile
+@Repository
+public interface ReactiveMessengerApiRepository extends ReactiveMongoRepository<SimpleMessageDocument, String>, ReactiveMessengerApiRepositoryCustom {
+
+    Flux<SimpleMessageDocument> findAllByRecipientAndMessageStatus(String recipient, MessageStatus messageStatus);
+}
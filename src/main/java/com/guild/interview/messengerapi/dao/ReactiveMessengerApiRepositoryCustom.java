@@ -0,0 +1,46 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reactive counterpart of MessengerApiRepositoryCustom. Implemented by ReactiveMessengerApiRepositoryImpl with the same
+ * queries as MessengerApiRepositoryImpl.
+ */
+public interface ReactiveMessengerApiRepositoryCustom {
+
+    // See MessengerApiRepositoryCustom#markAsRead. Emits the number of documents modified
+    Mono<Long> markAsRead(String recipient, List<SimpleMessageDocument> documents);
+
+    // See MessengerApiRepositoryCustom#findPage. A limit of 0 emits every match
+    Flux<SimpleMessageDocument> findPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit);
+
+    // See MessengerApiRepositoryCustom#findArchivedPage. A limit of 0 emits every match
+    Flux<SimpleMessageDocument> findArchivedPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit);
+
+    // See MessengerApiRepositoryCustom#claimUnread
+    Flux<SimpleMessageDocument> claimUnread(String recipient);
+
+    // See MessengerApiRepositoryCustom#insertMessage
+    Mono<Void> insertMessage(SimpleMessageDocument document);
+
+    // Insert all documents with one unordered insert and add the ones written to their recipients' unread counters and
+    // conversations. Emits the error for each document that failed, keyed by its position in documents
+    Mono<Map<Integer, String>> insertAll(List<SimpleMessageDocument> documents);
+
+    // See MessengerApiRepositoryCustom#countUnread
+    Mono<Long> countUnread(String recipient);
+
+    // See MessengerApiRepositoryCustom#findVersion
+    Mono<Long> findVersion(String recipient);
+
+    // See MessengerApiRepositoryCustom#findInbox
+    Flux<ConversationSummaryDocument> findInbox(String recipient, int limit);
+}
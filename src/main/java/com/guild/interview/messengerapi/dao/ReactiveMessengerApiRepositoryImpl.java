@@ -0,0 +1,188 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.concurrent.Queues;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * ReactiveMongoTemplate backed implementation of ReactiveMessengerApiRepositoryCustom. Queries are built by
+ * MessengerApiRepositoryImpl so both stacks use the same, index checked, query shapes.
+ */
+@Slf4j
+public class ReactiveMessengerApiRepositoryImpl implements ReactiveMessengerApiRepositoryCustom {
+
+    @Autowired
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    // Its entity callback only runs for the blocking template, so compress is called before writing
+    @Autowired
+    private MessageTextCompressor messageTextCompressor;
+
+    @Override
+    public Mono<Long> markAsRead(String recipient, List<SimpleMessageDocument> documents) {
+        if (documents.isEmpty()) {
+            return Mono.just(0L);
+        }
+        // See MessengerApiRepositoryImpl#markAsRead
+        return reactiveMongoTemplate.updateMulti(MessengerApiRepositoryImpl.markAsReadQuery(recipient, MessengerApiRepositoryImpl.idsOf(documents)),
+                        Update.update("messageStatus", MessageStatus.READ), SimpleMessageDocument.class)
+                .flatMap(result -> recordRead(recipient, MessengerApiRepositoryImpl.readBySender(documents, result.getModifiedCount()))
+                        .thenReturn(result.getModifiedCount()));
+    }
+
+    @Override
+    public Flux<SimpleMessageDocument> findPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit) {
+        return reactiveMongoTemplate.find(MessengerApiRepositoryImpl.pageQuery(recipient, sender, from, to, after, limit), SimpleMessageDocument.class)
+                .doOnNext(document -> MessengerApiRepositoryImpl.restoreProjectedFields(document, recipient, sender));
+    }
+
+    @Override
+    public Flux<SimpleMessageDocument> findArchivedPage(String recipient, String sender, Date from, Date to, MessageCursor after, int limit) {
+        return reactiveMongoTemplate.find(MessengerApiRepositoryImpl.pageQuery(recipient, sender, from, to, after, limit),
+                SimpleMessageDocument.class, MessengerApiRepositoryImpl.ARCHIVE_COLLECTION)
+                .doOnNext(document -> MessengerApiRepositoryImpl.restoreProjectedFields(document, recipient, sender));
+    }
+
+    @Override
+    public Flux<SimpleMessageDocument> claimUnread(String recipient) {
+        final String claimToken = UUID.randomUUID().toString();
+        final Update claim = new Update().set("messageStatus", MessageStatus.READ).set("claimToken", claimToken);
+        return reactiveMongoTemplate.updateMulti(MessengerApiRepositoryImpl.unreadQuery(recipient), claim, SimpleMessageDocument.class)
+                .flatMapMany(result -> result.getModifiedCount() == 0
+                        ? Flux.empty()
+                        : reactiveMongoTemplate.find(MessengerApiRepositoryImpl.claimedQuery(claimToken), SimpleMessageDocument.class)
+                                .collectList()
+                                // See MessengerApiRepositoryImpl#claimUnread
+                                .flatMap(claimed -> reactiveMongoTemplate.updateMulti(MessengerApiRepositoryImpl.claimedQuery(claimToken),
+                                        new Update().unset("claimToken"), SimpleMessageDocument.class).thenReturn(claimed))
+                                .flatMapMany(claimed -> recordRead(recipient, MessengerApiRepositoryImpl.countBySender(claimed))
+                                        .thenMany(Flux.fromIterable(claimed))));
+    }
+
+    @Override
+    public Mono<Void> insertMessage(SimpleMessageDocument document) {
+        return reactiveMongoTemplate.insert(messageTextCompressor.compress(document))
+                .then(recordStored(Collections.singletonList(document)));
+    }
+
+    @Override
+    public Mono<Map<Integer, String>> insertAll(List<SimpleMessageDocument> documents) {
+        if (documents.isEmpty()) {
+            return Mono.just(Collections.emptyMap());
+        }
+        // Spring Data 3.0 has no reactive bulk operations, so convert and call insertMany with ordered=false directly
+        final List<Document> converted = new ArrayList<>(documents.size());
+        for (SimpleMessageDocument document : documents) {
+            final Document target = new Document();
+            reactiveMongoTemplate.getConverter().write(messageTextCompressor.compress(document), target);
+            converted.add(target);
+        }
+        return reactiveMongoTemplate.getCollection(reactiveMongoTemplate.getCollectionName(SimpleMessageDocument.class))
+                .flatMap(collection -> Mono.from(collection.insertMany(converted, new InsertManyOptions().ordered(false))))
+                .map(result -> Collections.<Integer, String>emptyMap())
+                .onErrorResume(MongoBulkWriteException.class, e -> {
+                    final Map<Integer, String> failures = new HashMap<>();
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        failures.put(error.getIndex(), error.getMessage());
+                    }
+                    return Mono.just(failures);
+                })
+                .flatMap(failures -> recordStored(MessengerApiRepositoryImpl.storedOf(documents, failures.keySet()))
+                        .thenReturn(failures));
+    }
+
+    @Override
+    public Mono<Long> countUnread(String recipient) {
+        return reactiveMongoTemplate.findById(recipient, UnreadCounterDocument.class)
+                .map(counter -> Math.max(0, counter.getUnread()))
+                .defaultIfEmpty(0L);
+    }
+
+    @Override
+    public Mono<Long> findVersion(String recipient) {
+        if (UnreadCounterBacklog.isPending(reactiveMongoTemplate, recipient)) {
+            return Mono.just(MessengerApiRepositoryCustom.UNKNOWN_VERSION);
+        }
+        final Query query = MessengerApiRepositoryImpl.unreadCounterQuery(recipient);
+        query.fields().include("version");
+        return reactiveMongoTemplate.findOne(query, UnreadCounterDocument.class)
+                .map(UnreadCounterDocument::getVersion)
+                .defaultIfEmpty(0L);
+    }
+
+    @Override
+    public Flux<ConversationSummaryDocument> findInbox(String recipient, int limit) {
+        return reactiveMongoTemplate.find(ConversationSummaryUpdates.inboxQuery(recipient, limit), ConversationSummaryDocument.class);
+    }
+
+    // See MessengerApiRepositoryImpl#recordStored. The conversation upsert and conditional update may run in either order
+    private Mono<Void> recordStored(List<SimpleMessageDocument> stored) {
+        return adjustUnreadCounts(MessengerApiRepositoryImpl.unreadCountsOf(stored))
+                .thenMany(Flux.fromIterable(ConversationSummaryUpdates.groupByConversation(stored)))
+                .flatMap(sent -> reactiveMongoTemplate.upsert(ConversationSummaryUpdates.conversationQuery(sent.recipient, sent.sender),
+                        ConversationSummaryUpdates.sentUpdate(sent), ConversationSummaryDocument.class)
+                        .then(reactiveMongoTemplate.updateFirst(ConversationSummaryUpdates.olderQuery(sent),
+                                ConversationSummaryUpdates.lastMessageUpdate(sent.newest), ConversationSummaryDocument.class)))
+                .then()
+                .onErrorResume(DataAccessException.class, e -> {
+                    log.warn("Failed to record {} stored messages in the unread counters and conversations", stored.size(), e);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> recordRead(String recipient, Map<String, Long> readBySender) {
+        return adjustUnreadCounts(Collections.singletonMap(recipient, -readBySender.values().stream().mapToLong(Long::longValue).sum()))
+                .thenMany(Flux.fromIterable(readBySender.entrySet()))
+                .filter(read -> read.getValue() != 0)
+                .flatMap(read -> reactiveMongoTemplate.updateFirst(ConversationSummaryUpdates.conversationQuery(recipient, read.getKey()),
+                        ConversationSummaryUpdates.readUpdate(read.getValue()), ConversationSummaryDocument.class))
+                .then()
+                .onErrorResume(DataAccessException.class, e -> {
+                    log.warn("Failed to record messages read by {} in the unread counters and conversations", recipient, e);
+                    return Mono.empty();
+                });
+    }
+
+    // Same semantics as MessengerApiRepositoryImpl#adjustUnreadCounts, one update per recipient as there are no reactive
+    // bulk operations. The same goes for the conversation updates above. Only the updates that failed are kept for the
+    // next call
+    private Mono<Void> adjustUnreadCounts(Map<String, Long> deltas) {
+        return Flux.defer(() -> Flux.fromIterable(UnreadCounterBacklog.drain(reactiveMongoTemplate, deltas).entrySet()))
+                .flatMapDelayError(delta -> {
+                    final Query query = MessengerApiRepositoryImpl.unreadCounterQuery(delta.getKey());
+                    final Update update = new Update().inc("unread", delta.getValue()).inc("version", 1);
+                    return (delta.getValue() > 0
+                            ? reactiveMongoTemplate.upsert(query, update, UnreadCounterDocument.class)
+                            : reactiveMongoTemplate.updateFirst(query, update, UnreadCounterDocument.class))
+                            .doOnError(DataAccessException.class, e -> UnreadCounterBacklog.add(reactiveMongoTemplate,
+                                    Collections.singletonMap(delta.getKey(), delta.getValue())));
+                }, Queues.SMALL_BUFFER_SIZE, Queues.XS_BUFFER_SIZE)
+                // Every update runs even when one fails, so each failure is kept. Report the first as the callers do
+                .onErrorMap(Exceptions::isMultiple, e -> Exceptions.unwrapMultiple(e).get(0))
+                .then();
+    }
+}
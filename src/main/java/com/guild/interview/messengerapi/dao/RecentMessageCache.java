@@ -0,0 +1,319 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-process ring buffer of each recipient's most recent messages, enabled with messenger.recent-cache.enabled, so that
+ * getRecentMessages is answered without a query. A recipient is loaded with its newest messages-per-recipient messages
+ * the first time its history is asked for, and messages are added as they are written. Mongo stays the source of
+ * truth: pages that reach past the buffered messages, such as a sender's messages when few of the recent ones are
+ * theirs, are read from Mongo as before, and every entry is reloaded max-staleness-ms after its load.
+ *
+ * A buffer that holds fewer than messages-per-recipient messages holds the recipient's whole history and answers every
+ * page, unless archiving is enabled, in which case older messages may be in the archive. Entries are kept in 16
+ * independently locked LRU segments, each evicting its least recently read recipients once it holds more than its share
+ * of max-bytes.
+ *
+ * Like UnreadMessageCache, only messages written by this instance are added, so with several instances a recipient may
+ * not see a message sent through another instance until its entry expires. Startup fails with the reactive profile,
+ * which doesn't use the cache.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.recent-cache.enabled", havingValue = "true")
+@Slf4j
+public class RecentMessageCache {
+    private static final int SEGMENTS = 16;
+    // Rough heap cost of an entry and of a buffered message besides their strings
+    private static final long ENTRY_BYTES = 160;
+    private static final long MESSAGE_BYTES = 240;
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${messenger.recent-cache.messages-per-recipient:200}")
+    private int capacity;
+
+    @Value("${messenger.recent-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${messenger.recent-cache.max-staleness-ms:60000}")
+    private long maxStalenessMillis;
+
+    @Value("${messenger.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong loads = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (environment.acceptsProfiles(Profiles.of("reactive"))) {
+            throw new IllegalStateException("The recent message cache can't be combined with the reactive profile");
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+        log.info("Caching the {} most recent messages per recipient in up to {} bytes", capacity, maxBytes);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Messages for the recipient, newest first, optionally from one sender and after the cursor, like
+     * MessengerApiRepositoryCustom#findPage without a time range.
+     *
+     * @return up to limit messages, or null when the buffer can't tell whether older messages match
+     */
+    public List<SimpleMessageDocument> findPage(String recipient, String sender, MessageCursor after, int limit) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(recipient);
+            if (entry == null || !entry.loaded) {
+                return null;
+            }
+            if (System.currentTimeMillis() >= entry.expiresAt) {
+                segment.remove(recipient);
+                return null;
+            }
+            final List<SimpleMessageDocument> page = new ArrayList<>(Math.min(limit, entry.size));
+            for (int i = 0; i < entry.size && page.size() < limit; i++) {
+                final SimpleMessageDocument document = entry.get(i);
+                // Hex ObjectIds compare as strings in send order
+                if ((after == null || document.getId().compareTo(after.getId()) < 0)
+                        && (sender == null || sender.equals(document.getSender()))) {
+                    page.add(copyOf(document));
+                }
+            }
+            return page.size() == limit || entry.complete ? page : null;
+        }
+    }
+
+    // Whether the recipient is buffered, or being loaded
+    public boolean contains(String recipient) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            return segment.entries.containsKey(recipient);
+        }
+    }
+
+    /**
+     * Start loading the recipient from Mongo. Messages written from now on are collected in the entry, so none are
+     * missed between the query and completeLoad.
+     *
+     * @param recipient recipient being loaded
+     * @return identifies the load to completeLoad
+     */
+    public long beginLoad(String recipient) {
+        final long load = loads.incrementAndGet();
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = new Entry(load, System.currentTimeMillis() + maxStalenessMillis, capacity);
+            segment.remove(recipient);
+            segment.entries.put(recipient, entry);
+            segment.reweigh(recipient, entry);
+        }
+        return load;
+    }
+
+    /**
+     * Fill the buffer with the recipient's newest messages and serve it from now on, unless another load or an
+     * invalidation replaced the entry.
+     *
+     * @param newest the recipient's newest messages-per-recipient messages, newest first
+     */
+    public void completeLoad(String recipient, long load, List<SimpleMessageDocument> newest) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(recipient);
+            if (entry == null || entry.load != load) {
+                return;
+            }
+            entry.complete = newest.size() < capacity && !archiveEnabled;
+            newest.forEach(document -> entry.add(copyOf(document)));
+            entry.loaded = true;
+            segment.reweigh(recipient, entry);
+        }
+    }
+
+    // Write-through of messages just stored. Recipients that aren't buffered are left to be loaded
+    public void addAll(Collection<SimpleMessageDocument> documents) {
+        for (SimpleMessageDocument document : documents) {
+            final Segment segment = segmentFor(document.getRecipient());
+            synchronized (segment) {
+                final Entry entry = segment.entries.get(document.getRecipient());
+                if (entry != null) {
+                    entry.add(copyOf(document));
+                    segment.reweigh(document.getRecipient(), entry);
+                }
+            }
+        }
+    }
+
+    // Record that messages of the recipient were marked READ
+    public void markRead(String recipient, Collection<SimpleMessageDocument> documents) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(recipient);
+            if (entry != null) {
+                final Set<String> ids = documents.stream().map(SimpleMessageDocument::getId).collect(Collectors.toSet());
+                for (int i = 0; i < entry.size; i++) {
+                    if (ids.contains(entry.get(i).getId())) {
+                        entry.get(i).setMessageStatus(MessageStatus.READ);
+                    }
+                }
+            }
+        }
+    }
+
+    // Forget the recipient, its next history request loads it from Mongo
+    public void invalidate(String recipient) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            segment.remove(recipient);
+        }
+    }
+
+    // Estimated size of every entry, in bytes
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(String recipient) {
+        // Spread the hash so recipients that differ only in their last characters land in different segments
+        final int hash = recipient.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    // Buffered messages are never handed out, so the status only changes under the segment lock. The body keeps the form
+    // it was read or written in
+    private static SimpleMessageDocument copyOf(SimpleMessageDocument document) {
+        final SimpleMessageDocument copy = new SimpleMessageDocument(document.getId(), null, document.getRecipient(),
+                document.getSender(), document.getMessageStatus(), document.getTimestamp(), null);
+        if (document.getCompressedText() != null) {
+            copy.compressText(document.getCompressedText(), document.getTextCodec());
+        } else {
+            copy.setText(document.getText());
+        }
+        return copy;
+    }
+
+    private static long weigh(String recipient, Entry entry) {
+        long bytes = ENTRY_BYTES + 2L * recipient.length() + 8L * entry.ring.length;
+        for (int i = 0; i < entry.size; i++) {
+            final SimpleMessageDocument document = entry.get(i);
+            bytes += MESSAGE_BYTES + (document.getCompressedText() != null ? document.getCompressedText().length
+                    : document.getText() == null ? 0 : 2L * document.getText().length());
+        }
+        return bytes;
+    }
+
+    private static final class Segment {
+        // Access order, so iteration starts at the least recently used recipient
+        private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxBytes;
+        private long bytes;
+
+        private Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private void reweigh(String recipient, Entry entry) {
+            final long weight = weigh(recipient, entry);
+            bytes += weight - entry.bytes;
+            entry.bytes = weight;
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+
+        private void remove(String recipient) {
+            final Entry removed = entries.remove(recipient);
+            if (removed != null) {
+                bytes -= removed.bytes;
+            }
+        }
+    }
+
+    // Fixed-size ring of messages kept newest first. Adding to a full ring drops the oldest message
+    private static final class Entry {
+        private final long load;
+        private final long expiresAt;
+        private final SimpleMessageDocument[] ring;
+        // Position of the newest message
+        private int head = -1;
+        private int size;
+        private boolean loaded;
+        // Whether the ring holds every message of the recipient
+        private boolean complete;
+        private long bytes;
+
+        private Entry(long load, long expiresAt, int capacity) {
+            this.load = load;
+            this.expiresAt = expiresAt;
+            this.ring = new SimpleMessageDocument[capacity];
+        }
+
+        // The i-th newest message
+        private SimpleMessageDocument get(int i) {
+            return ring[Math.floorMod(head - i, ring.length)];
+        }
+
+        private void set(int i, SimpleMessageDocument document) {
+            ring[Math.floorMod(head - i, ring.length)] = document;
+        }
+
+        private void add(SimpleMessageDocument document) {
+            for (int i = 0; i < size; i++) {
+                if (get(i).getId().equals(document.getId())) {
+                    return;
+                }
+            }
+            if (size == ring.length) {
+                complete = false;
+                if (document.getId().compareTo(get(size - 1).getId()) < 0) {
+                    return;
+                }
+                size--;
+            }
+            head = (head + 1) % ring.length;
+            size++;
+            set(0, document);
+            // Messages written concurrently can arrive slightly out of order, move this one back to its place
+            for (int i = 0; i + 1 < size && get(i).getId().compareTo(get(i + 1).getId()) < 0; i++) {
+                final SimpleMessageDocument newer = get(i + 1);
+                set(i + 1, get(i));
+                set(i, newer);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Builds the unread counters from the messages collection when there are none yet, i.e. the first time the application
+ * starts against messages written before counters existed. Once any counter exists they are only ever maintained
+ * incrementally, so this does nothing.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.unread-counters.backfill.enabled", matchIfMissing = true)
+@Slf4j
+public class UnreadCounterBackfill implements ApplicationRunner {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (mongoTemplate.exists(new Query(), UnreadCounterDocument.class)) {
+            return;
+        }
+        backfill();
+    }
+
+    /**
+     * Replace the unread counters with a count of the UNREAD messages per recipient, computed by the server.
+     */
+    public void backfill() {
+        // group emits {_id: recipient, unread: n}, which is exactly a counter document
+        mongoTemplate.aggregate(Aggregation.newAggregation(
+                Aggregation.match(where("messageStatus").is(MessageStatus.UNREAD)),
+                Aggregation.group("recipient").count().as("unread"),
+                Aggregation.out(mongoTemplate.getCollectionName(UnreadCounterDocument.class))),
+                SimpleMessageDocument.class, UnreadCounterDocument.class);
+        log.info("Built unread counters for {} recipients", mongoTemplate.count(new Query(), UnreadCounterDocument.class));
+    }
+}
@@ -0,0 +1,55 @@
+package com.guild.interview.messengerapi.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Changes to the unread counters whose write failed, kept per MongoTemplate or ReactiveMongoTemplate. Shared by
+ * MessengerApiRepositoryImpl and ReactiveMessengerApiRepositoryImpl.
+ *
+ * The messages behind a change are already written when its counter write fails, so the change is kept here and
+ * written with the next counter write through the same template rather than lost. That write also bumps the
+ * recipient's version. Until it succeeds the recipient's version is reported as unknown, so a conditional getMessages
+ * can't answer 304 with a page the failed write should have invalidated.
+ */
+final class UnreadCounterBacklog {
+    private static final ConcurrentMap<Object, ConcurrentMap<String, Long>> PENDING = new ConcurrentHashMap<>();
+
+    private UnreadCounterBacklog() {
+    }
+
+    // The deltas to write next: the non-zero ones given plus every one left by failed writes, which are taken off the
+    // backlog. A recipient left by a failed write is included even when its deltas add up to 0, as its version still
+    // has to be bumped
+    static Map<String, Long> drain(Object template, Map<String, Long> deltas) {
+        final Map<String, Long> all = new HashMap<>();
+        deltas.forEach((recipient, delta) -> {
+            if (delta != 0) {
+                all.put(recipient, delta);
+            }
+        });
+        final ConcurrentMap<String, Long> pending = PENDING.get(template);
+        if (pending != null) {
+            for (String recipient : pending.keySet()) {
+                final Long delta = pending.remove(recipient);
+                if (delta != null) {
+                    all.merge(recipient, delta, Long::sum);
+                }
+            }
+        }
+        return all;
+    }
+
+    // Keep deltas whose write failed for the next write through the template
+    static void add(Object template, Map<String, Long> deltas) {
+        final ConcurrentMap<String, Long> pending = PENDING.computeIfAbsent(template, key -> new ConcurrentHashMap<>());
+        deltas.forEach((recipient, delta) -> pending.merge(recipient, delta, Long::sum));
+    }
+
+    static boolean isPending(Object template, String recipient) {
+        final ConcurrentMap<String, Long> pending = PENDING.get(template);
+        return pending != null && pending.containsKey(recipient);
+    }
+}
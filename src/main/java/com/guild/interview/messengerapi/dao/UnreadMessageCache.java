@@ -0,0 +1,227 @@
+package com.guild.interview.messengerapi.dao;
+
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-process cache of each recipient's unread messages, enabled with messenger.unread-cache.enabled, so that
+ * getUnreadMessages polls, most of which find nothing new, are answered without a query. Mongo stays the source of
+ * truth: a recipient that isn't cached is loaded from it, and every entry is reloaded max-staleness-ms after its load.
+ *
+ * Messages are added as they are written (write-through), and removed as they are marked READ. A load collects the
+ * messages written while its query runs, so the entry is exact once the load completes. Entries are kept in 16
+ * independently locked LRU segments, each evicting its least recently polled recipients once it holds more than its
+ * share of max-bytes, as estimated from the message texts.
+ *
+ * Only messages written by this instance are added, so with several instances behind a load balancer a recipient may
+ * not see a message sent through another instance until its entry expires. Startup fails with the reactive profile,
+ * which doesn't use the cache, and with atomic claims, which have to go to Mongo to be exclusive.
+ */
+@Component
+@ConditionalOnProperty(value = "messenger.unread-cache.enabled", havingValue = "true")
+@Slf4j
+public class UnreadMessageCache {
+    private static final int SEGMENTS = 16;
+    // Rough heap cost of an entry and of a cached message besides their strings
+    private static final long ENTRY_BYTES = 160;
+    private static final long MESSAGE_BYTES = 240;
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${messenger.unread-cache.max-bytes:33554432}")
+    private long maxBytes;
+
+    @Value("${messenger.unread-cache.max-staleness-ms:60000}")
+    private long maxStalenessMillis;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong loads = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (environment.acceptsProfiles(Profiles.of("reactive"))
+                || environment.getProperty("messenger.unread.atomic-claim", Boolean.class, false)) {
+            throw new IllegalStateException("The unread message cache can't be combined with the reactive profile or atomic claims");
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+        log.info("Caching unread messages in up to {} bytes", maxBytes);
+    }
+
+    /**
+     * Take the recipient's unread messages, leaving the entry empty so a concurrent poll doesn't receive them too.
+     *
+     * @param recipient recipient to look up
+     * @return the cached unread messages, or null when the recipient has to be loaded
+     */
+    public List<SimpleMessageDocument> take(String recipient) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(recipient);
+            if (entry == null || !entry.loaded) {
+                return null;
+            }
+            if (System.currentTimeMillis() >= entry.expiresAt) {
+                segment.remove(recipient);
+                return null;
+            }
+            final List<SimpleMessageDocument> unread = entry.unread;
+            entry.unread = new ArrayList<>();
+            segment.reweigh(recipient, entry);
+            return unread;
+        }
+    }
+
+    /**
+     * Start loading the recipient from Mongo. Messages written from now on are collected in the entry, and the ones the
+     * load marks READ are removed again, so the entry holds the messages still unread when completeLoad is called.
+     *
+     * @param recipient recipient being loaded
+     * @return identifies the load to completeLoad
+     */
+    public long beginLoad(String recipient) {
+        final long load = loads.incrementAndGet();
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = new Entry(load, System.currentTimeMillis() + maxStalenessMillis);
+            segment.remove(recipient);
+            segment.entries.put(recipient, entry);
+            segment.reweigh(recipient, entry);
+        }
+        return load;
+    }
+
+    // Serve the recipient from the cache from now on, unless another load or an invalidation replaced the entry
+    public void completeLoad(String recipient, long load) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(recipient);
+            if (entry != null && entry.load == load) {
+                entry.loaded = true;
+            }
+        }
+    }
+
+    // Write-through of messages just stored as UNREAD. Recipients that aren't cached are left to be loaded
+    public void addAll(Collection<SimpleMessageDocument> documents) {
+        for (SimpleMessageDocument document : documents) {
+            final Segment segment = segmentFor(document.getRecipient());
+            synchronized (segment) {
+                final Entry entry = segment.entries.get(document.getRecipient());
+                if (entry != null) {
+                    entry.unread.add(document);
+                    segment.reweigh(document.getRecipient(), entry);
+                }
+            }
+        }
+    }
+
+    // Drop messages of the recipient that were marked READ
+    public void removeRead(String recipient, Collection<SimpleMessageDocument> documents) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            final Entry entry = segment.entries.get(recipient);
+            if (entry != null && !entry.unread.isEmpty()) {
+                final Set<String> ids = documents.stream().map(SimpleMessageDocument::getId).collect(Collectors.toSet());
+                if (entry.unread.removeIf(document -> ids.contains(document.getId()))) {
+                    segment.reweigh(recipient, entry);
+                }
+            }
+        }
+    }
+
+    // Forget the recipient, the next poll loads it from Mongo
+    public void invalidate(String recipient) {
+        final Segment segment = segmentFor(recipient);
+        synchronized (segment) {
+            segment.remove(recipient);
+        }
+    }
+
+    // Estimated size of every entry, in bytes
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(String recipient) {
+        // Spread the hash so recipients that differ only in their last characters land in different segments
+        final int hash = recipient.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static long weigh(String recipient, Entry entry) {
+        long bytes = ENTRY_BYTES + 2L * recipient.length();
+        for (SimpleMessageDocument document : entry.unread) {
+            final String text = document.getText();
+            bytes += MESSAGE_BYTES + (text == null ? 0 : 2L * text.length());
+        }
+        return bytes;
+    }
+
+    private static final class Segment {
+        // Access order, so iteration starts at the least recently used recipient
+        private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxBytes;
+        private long bytes;
+
+        private Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private void reweigh(String recipient, Entry entry) {
+            final long weight = weigh(recipient, entry);
+            bytes += weight - entry.bytes;
+            entry.bytes = weight;
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+
+        private void remove(String recipient) {
+            final Entry removed = entries.remove(recipient);
+            if (removed != null) {
+                bytes -= removed.bytes;
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final long load;
+        private final long expiresAt;
+        private boolean loaded;
+        private List<SimpleMessageDocument> unread = new ArrayList<>();
+        private long bytes;
+
+        private Entry(long load, long expiresAt) {
+            this.load = load;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
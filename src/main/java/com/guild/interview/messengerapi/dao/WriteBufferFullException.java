@@ -0,0 +1,15 @@
+package com.guild.interview.messengerapi.dao;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// Thrown by MessageWriteBuffer#enqueue when the buffer stayed at capacity for enqueue-timeout-ms, because Mongo can't
+// keep up or is unavailable. The message was not accepted and can be sent again
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class WriteBufferFullException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public WriteBufferFullException(String message) {
+        super(message);
+    }
+}
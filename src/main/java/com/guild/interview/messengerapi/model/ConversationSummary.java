@@ -0,0 +1,18 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+// One entry of /messenger/getInbox: the latest message from a sender and the number of unread messages from them
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class ConversationSummary {
+    private String sender;
+    private String lastText;
+    private Date lastTimestamp;
+    private long unread;
+}
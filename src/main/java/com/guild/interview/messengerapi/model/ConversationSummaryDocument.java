@@ -0,0 +1,34 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+// One conversation in a recipient's inbox: the latest message from a sender and how many of the sender's messages are
+// unread. Maintained on every send and READ transition, see ConversationSummaryUpdates. The unique index lets the send
+// path upsert by recipient and sender, the other one serves the inbox newest conversation first
+@CompoundIndexes({
+        @CompoundIndex(name = "recipient_sender", def = "{'recipient': 1, 'sender': 1}", unique = true),
+        @CompoundIndex(name = "recipient_last_message", def = "{'recipient': 1, 'lastMessageId': -1}")
+})
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@Document(collection = "conversations")
+public class ConversationSummaryDocument {
+    @Id
+    private String id;
+    private String recipient;
+    private String sender;
+    // Hex string of the latest message's time-ordered id, so string order is send order
+    private String lastMessageId;
+    private String lastText;
+    private Date lastTimestamp;
+    private long unread;
+}
@@ -0,0 +1,36 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.List;
+
+// The messages sent to a recipient within one bucket period, used instead of the messages collection when
+// messenger.storage.buckets.enabled is set, see MessageBucketStore. A period that receives more than max-messages
+// continues in another bucket with the same start. History is read a period at a time from the recipient/start indexes;
+// the multikey status index finds the buckets still holding UNREAD messages
+@CompoundIndexes({
+        @CompoundIndex(name = "recipient_start", def = "{'recipient': 1, 'start': -1}"),
+        @CompoundIndex(name = "recipient_sender_start", def = "{'recipient': 1, 'messages.sender': 1, 'start': -1}"),
+        @CompoundIndex(name = "recipient_status", def = "{'recipient': 1, 'messages.messageStatus': 1}")
+})
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@Document(collection = "message_buckets")
+public class MessageBucketDocument {
+    @Id
+    private String id;
+    private String recipient;
+    // Start of the period every message in the bucket was sent in
+    private Date start;
+    private int count;
+    // In the order they were appended, which is not necessarily send order. Recipient is kept on the bucket only
+    private List<SimpleMessageDocument> messages;
+}
@@ -0,0 +1,39 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.Data;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a recipient's history. Message ids are time-ordered ObjectIds, so a page continues past the message with
+ * this id and paging is a range scan on the recipient/id index rather than a skip: towards older messages for the
+ * newest first history pages, and towards newer ones for sync, which reads oldest first. Clients only see the opaque
+ * encoded form.
+ */
+@Data
+public class MessageCursor {
+    private final String id;
+
+    public static MessageCursor of(SimpleMessageDocument document) {
+        return new MessageCursor(document.getId());
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param encoded value previously returned by encode()
+     * @return the decoded cursor
+     * @throws IllegalArgumentException if the value is not a valid cursor
+     */
+    public static MessageCursor decode(String encoded) {
+        final String id = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+        if (!ObjectId.isValid(id)) {
+            throw new IllegalArgumentException("Invalid cursor: " + encoded);
+        }
+        return new MessageCursor(id);
+    }
+}
@@ -0,0 +1,16 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// One page of a recipient's history. nextCursor is null on the last page
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class MessagePage {
+    private List<SimpleMessage> messages;
+    private MessageCursor nextCursor;
+}
@@ -0,0 +1,92 @@
+package com.guild.interview.messengerapi.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message bodies, used by MessageTextCompressor when storing and by SimpleMessageDocument#getText
+ * when reading. Bodies can be compressed against a preset dictionary of text typical of large messages, which lets
+ * bodies of a few KB compress well too. The compressed data names its dictionary by Adler-32 checksum, so every
+ * dictionary messages were ever written with has to stay registered for them to be read.
+ */
+public final class MessageTextCodec {
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final Map<Long, byte[]> DICTIONARIES = new ConcurrentHashMap<>();
+
+    private MessageTextCodec() {
+    }
+
+    public static void registerDictionary(byte[] dictionary) {
+        DICTIONARIES.put(checksum(dictionary), dictionary);
+    }
+
+    // The dictionary may be null
+    public static byte[] deflate(String text, byte[] dictionary, int level) {
+        final Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            final byte[] input = text.getBytes(StandardCharsets.UTF_8);
+            deflater.setInput(input);
+            deflater.finish();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static String inflate(byte[] data, String codec) {
+        if (!DEFLATE.equals(codec)) {
+            throw new IllegalStateException("Unknown message text codec " + codec);
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary(inflater.getAdler() & 0xFFFFFFFFL));
+                } else if (inflated == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Compressed message text is truncated");
+                }
+                output.write(buffer, 0, inflated);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed message text is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] dictionary(long checksum) {
+        final byte[] dictionary = DICTIONARIES.get(checksum);
+        if (dictionary == null) {
+            throw new IllegalStateException("Message text was compressed with dictionary " + Long.toHexString(checksum)
+                    + ", which is not configured in messenger.compression.dictionary or previous-dictionaries");
+        }
+        return dictionary;
+    }
+
+    static long checksum(byte[] dictionary) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        return adler32.getValue();
+    }
+}
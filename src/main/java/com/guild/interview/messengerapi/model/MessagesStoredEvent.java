@@ -0,0 +1,11 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.Data;
+
+import java.util.Set;
+
+// Published once new messages are persisted and visible to reads, with the recipients they were sent to
+@Data
+public class MessagesStoredEvent {
+    private final Set<String> recipients;
+}
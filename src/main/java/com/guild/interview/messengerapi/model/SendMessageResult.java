@@ -0,0 +1,16 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Outcome of a single message in a /messenger/sendMessages request, in request order
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class SendMessageResult {
+    private int index;
+    private String id;
+    private boolean accepted;
+    private String error;
+}
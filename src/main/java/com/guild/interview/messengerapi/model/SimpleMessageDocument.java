@@ -1,20 +1,34 @@
 package com.guild.interview.messengerapi.model;
 
-import lombok.AllArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.Date;
 
+// Indexes backing the MessengerApiRepository queries. The partial UNREAD index cannot be expressed as an annotation and
+// is created by MessengerApiIndexInitializer alongside these. History is ordered by the time-ordered _id, so no
+// timestamp index is needed.
+@CompoundIndexes({
+        @CompoundIndex(name = "recipient_id", def = "{'recipient': 1, '_id': -1}"),
+        @CompoundIndex(name = "recipient_sender_id", def = "{'recipient': 1, 'sender': 1, '_id': -1}")
+})
 @EqualsAndHashCode
 @NoArgsConstructor
-@AllArgsConstructor
 @Data
 @Document(collection = "messages")
 public class SimpleMessageDocument {
+    // An ObjectId whose time is the message timestamp, stored as a native ObjectId. Documents written before ids were
+    // time-ordered have UUID strings until MessageIdMigration rewrites them
     @Id
     private String id;
     private String text;
@@ -22,4 +36,51 @@ public class SimpleMessageDocument {
     private String sender;
     private MessageStatus messageStatus;
     private Date timestamp;
+    // Set while a getUnreadMessages poll atomically claims this message and cleared once the claim has read it back, see
+    // MessengerApiRepositoryCustom#claimUnread
+    @Indexed(sparse = true)
+    private String claimToken;
+    // Set instead of text when the body was long enough to be stored compressed, see MessageTextCodec. Left out of the
+    // write-behind journal, which holds the plain text
+    @JsonIgnore
+    private byte[] compressedText;
+    @JsonIgnore
+    private String textCodec;
+    // compressedText inflated by the first getText
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient String inflatedText;
+
+    public SimpleMessageDocument(String id, String text, String recipient, String sender, MessageStatus messageStatus, Date timestamp, String claimToken) {
+        this.id = id;
+        this.text = text;
+        this.recipient = recipient;
+        this.sender = sender;
+        this.messageStatus = messageStatus;
+        this.timestamp = timestamp;
+        this.claimToken = claimToken;
+    }
+
+    // The body, however it is stored. Compressed bodies are only inflated once something asks for them
+    public String getText() {
+        if (text == null && compressedText != null && inflatedText == null) {
+            inflatedText = MessageTextCodec.inflate(compressedText, textCodec);
+        }
+        return text != null ? text : inflatedText;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+        this.compressedText = null;
+        this.textCodec = null;
+        this.inflatedText = null;
+    }
+
+    // Store the body compressed from now on. getText still returns it without inflating
+    public void compressText(byte[] compressedText, String textCodec) {
+        this.inflatedText = getText();
+        this.text = null;
+        this.compressedText = compressedText;
+        this.textCodec = textCodec;
+    }
 }
@@ -0,0 +1,18 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// Messages returned by /messenger/sync, oldest first. cursor is the position to sync from next time, null only when the
+// recipient has no messages yet, and more is set when newer messages are waiting beyond this page
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class SyncPage {
+    private List<SimpleMessage> messages;
+    private MessageCursor cursor;
+    private boolean more;
+}
@@ -0,0 +1,14 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Response of /messenger/getUnreadCount
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class UnreadCount {
+    private String recipient;
+    private long unread;
+}
@@ -0,0 +1,25 @@
+package com.guild.interview.messengerapi.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+// Number of UNREAD messages for a recipient, keyed by recipient. Maintained with $inc whenever messages are stored or
+// flipped to READ, see MessengerApiRepositoryCustom#countUnread. The same updates increment version, which only ever grows,
+// so it changes whenever the recipient's history does, see MessengerApiRepositoryCustom#findVersion
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@Document(collection = "unread_counters")
+public class UnreadCounterDocument {
+    @Id
+    private String recipient;
+    private long unread;
+    private long version;
+
+    public UnreadCounterDocument(String recipient, long unread) {
+        this(recipient, unread, 0);
+    }
+}
@@ -0,0 +1,77 @@
+package com.guild.interview.messengerapi.service;
+
+import com.guild.interview.messengerapi.model.MessagesStoredEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process registry of clients waiting for new messages. Long-poll and SSE connections subscribe a listener for their
+ * recipient, and every MessagesStoredEvent runs the listeners of the affected recipients on a small dedicated pool, so
+ * an idle connection costs nothing until a message for its recipient is actually stored.
+ */
+@Component
+@Slf4j
+public class MessageNotificationHub {
+    private final ConcurrentMap<String, Set<Runnable>> listeners = new ConcurrentHashMap<>();
+
+    @Value("${messenger.notifications.threads:4}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "message-notification-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Register a listener to run whenever messages are stored for the recipient.
+     *
+     * @param recipient recipient to listen for
+     * @param listener invoked on the notification pool
+     * @return handle that removes the listener
+     */
+    public Runnable subscribe(String recipient, Runnable listener) {
+        listeners.compute(recipient, (key, recipientListeners) -> {
+            final Set<Runnable> updated = recipientListeners == null ? ConcurrentHashMap.newKeySet() : recipientListeners;
+            updated.add(listener);
+            return updated;
+        });
+        return () -> listeners.computeIfPresent(recipient, (key, recipientListeners) -> {
+            recipientListeners.remove(listener);
+            return recipientListeners.isEmpty() ? null : recipientListeners;
+        });
+    }
+
+    @EventListener
+    public void onMessagesStored(MessagesStoredEvent event) {
+        for (String recipient : event.getRecipients()) {
+            final Set<Runnable> recipientListeners = listeners.get(recipient);
+            if (recipientListeners != null) {
+                log.debug("Notifying {} listeners for recipient: {}", recipientListeners.size(), recipient);
+                recipientListeners.forEach(executor::execute);
+            }
+        }
+    }
+}
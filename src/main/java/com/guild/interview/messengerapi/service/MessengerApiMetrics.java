@@ -0,0 +1,104 @@
+package com.guild.interview.messengerapi.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Application metrics recorded by the service layer. Request timers (http.server.requests) and Mongo command timers
+ * (mongodb.driver.commands) are recorded outside the service, see MetricsConfiguration.
+ */
+@Component
+public class MessengerApiMetrics {
+    public static final String QUERY_RESULTS = "messenger.repository.results";
+    public static final String MESSAGES_READ = "messenger.messages.read";
+    public static final String UNREAD_CACHE = "messenger.unread.cache";
+    public static final String RECENT_CACHE = "messenger.recent.cache";
+    public static final String EMPTY_INBOX_FILTER = "messenger.empty.inbox.filter";
+    public static final String EMPTY_INBOX_FILTER_FALSE_POSITIVE_RATE = "messenger.empty.inbox.filter.false.positive.rate";
+    // Outcomes of a poll checked against the empty inbox filter
+    public static final String FILTER_SKIPPED = "skipped";
+    public static final String FILTER_FALSE_POSITIVE = "false_positive";
+    public static final String FILTER_UNREAD = "unread";
+
+    // Bucket boundaries for result sizes, from a single message up to a very large mailbox. Empty results fall in the
+    // first bucket
+    private static final double[] RESULT_SIZE_BUCKETS = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Registered once rather than from recordEmptyInboxFilter, which runs on every poll. Stays at 0 while the empty inbox
+    // filter is disabled
+    @PostConstruct
+    public void registerGauges() {
+        Gauge.builder(EMPTY_INBOX_FILTER_FALSE_POSITIVE_RATE, this, MessengerApiMetrics::emptyInboxFalsePositiveRate)
+                .description("Share of polls of empty inboxes that the empty inbox filter didn't skip")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Record the number of documents a repository query returned.
+     *
+     * @param query repository method name
+     * @param size number of documents returned
+     */
+    public void recordQueryResults(String query, long size) {
+        DistributionSummary.builder(QUERY_RESULTS)
+                .description("Documents returned per repository query")
+                .baseUnit("documents")
+                .tag("query", query)
+                .serviceLevelObjectives(RESULT_SIZE_BUCKETS)
+                .register(meterRegistry)
+                .record(size);
+    }
+
+    /**
+     * Count messages moved from UNREAD to READ.
+     *
+     * @param source how the messages were marked, markAsRead or claimUnread
+     * @param count number of messages updated
+     */
+    public void recordMarkedRead(String source, long count) {
+        meterRegistry.counter(MESSAGES_READ, "source", source).increment(count);
+    }
+
+    /**
+     * Count a getUnreadMessages poll served by the unread message cache, or loaded because the recipient wasn't cached.
+     *
+     * @param hit whether the recipient was cached
+     */
+    public void recordUnreadCache(boolean hit) {
+        meterRegistry.counter(UNREAD_CACHE, "result", hit ? "hit" : "miss").increment();
+    }
+
+    /**
+     * Count a getRecentMessages page served by the recent message cache, or read from Mongo because it reached past the
+     * buffered messages.
+     *
+     * @param hit whether the page was served from the cache
+     */
+    public void recordRecentCache(boolean hit) {
+        meterRegistry.counter(RECENT_CACHE, "result", hit ? "hit" : "miss").increment();
+    }
+
+    /**
+     * Count a getUnreadMessages poll checked against the empty inbox filter. The share of empty inboxes the filter failed
+     * to rule out is published from these counts.
+     *
+     * @param result FILTER_SKIPPED when the filter answered, FILTER_FALSE_POSITIVE or FILTER_UNREAD when it was queried
+     */
+    public void recordEmptyInboxFilter(String result) {
+        meterRegistry.counter(EMPTY_INBOX_FILTER, "result", result).increment();
+    }
+
+    private double emptyInboxFalsePositiveRate() {
+        final double falsePositives = meterRegistry.counter(EMPTY_INBOX_FILTER, "result", FILTER_FALSE_POSITIVE).count();
+        final double empty = falsePositives + meterRegistry.counter(EMPTY_INBOX_FILTER, "result", FILTER_SKIPPED).count();
+        return empty == 0 ? 0 : falsePositives / empty;
+    }
+}
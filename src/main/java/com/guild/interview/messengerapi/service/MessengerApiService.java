@@ -1,12 +1,28 @@
 package com.guild.interview.messengerapi.service;
 
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.SendMessageResult;
 import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SyncPage;
 
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface MessengerApiService {
     List<SimpleMessage> getUnreadMessages(String recipient);
-    List<SimpleMessage> getRecentMessages(String recipient, String sender);
-    List<SimpleMessage> getRecentWithinThirtyDays(String recipient, String sender);
+    List<SimpleMessage> claimUnreadMessages(String recipient);
+    void streamUnreadMessages(String recipient, Consumer<SimpleMessage> consumer);
+    long getUnreadCount(String recipient);
+    long getMessagesVersion(String recipient);
+    List<ConversationSummary> getInbox(String recipient, Integer limit);
+    MessagePage getRecentMessages(String recipient, String sender, MessageCursor cursor, Integer limit);
+    MessagePage getMessagesInRange(String recipient, String sender, Date from, Date to, MessageCursor cursor, Integer limit);
+    void streamMessagesInRange(String recipient, String sender, Date from, Date to, Consumer<SimpleMessage> consumer);
+    SyncPage sync(String recipient, MessageCursor cursor, Integer limit);
     void sendMessage(SimpleMessage simpleMessage);
+    List<SendMessageResult> sendMessages(Iterator<SimpleMessage> simpleMessages);
 }
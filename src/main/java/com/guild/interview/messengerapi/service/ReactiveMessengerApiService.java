@@ -0,0 +1,26 @@
+package com.guild.interview.messengerapi.service;
+
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.SendMessageResult;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+// Reactive counterpart of MessengerApiService with the same semantics, used by the reactive profile
+public interface ReactiveMessengerApiService {
+    Flux<SimpleMessage> getUnreadMessages(String recipient);
+    Flux<SimpleMessage> claimUnreadMessages(String recipient);
+    Flux<SimpleMessage> streamUnreadMessages(String recipient);
+    Mono<Long> getUnreadCount(String recipient);
+    Mono<Long> getMessagesVersion(String recipient);
+    Flux<ConversationSummary> getInbox(String recipient, Integer limit);
+    Mono<MessagePage> getRecentMessages(String recipient, String sender, MessageCursor cursor, Integer limit);
+    Mono<MessagePage> getMessagesInRange(String recipient, String sender, Date from, Date to, MessageCursor cursor, Integer limit);
+    Flux<SimpleMessage> streamMessagesInRange(String recipient, String sender, Date from, Date to);
+    Mono<Void> sendMessage(SimpleMessage simpleMessage);
+    Flux<SendMessageResult> sendMessages(Flux<SimpleMessage> simpleMessages);
+}
@@ -1,19 +1,49 @@
 package com.guild.interview.messengerapi.service.impl;
 
+import com.guild.interview.messengerapi.dao.EmptyInboxFilter;
+import com.guild.interview.messengerapi.dao.MessageWriteBuffer;
 import com.guild.interview.messengerapi.dao.MessengerApiRepository;
+import com.guild.interview.messengerapi.dao.MessengerApiRepositoryCustom;
+import com.guild.interview.messengerapi.dao.MessengerPartitionRouter;
+import com.guild.interview.messengerapi.dao.RecentMessageCache;
+import com.guild.interview.messengerapi.dao.UnreadMessageCache;
+import com.guild.interview.messengerapi.dao.WriteBufferFullException;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
 import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.MessagesStoredEvent;
+import com.guild.interview.messengerapi.model.SendMessageResult;
 import com.guild.interview.messengerapi.model.SimpleMessage;
 import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.SyncPage;
+import com.guild.interview.messengerapi.service.MessengerApiMetrics;
 import com.guild.interview.messengerapi.service.MessengerApiService;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Manages business logic for the Messenger API application.
@@ -21,76 +51,599 @@ import java.util.stream.Collectors;
 @Service
 @Slf4j
 public class MessengerApiServiceImpl implements MessengerApiService {
-    private static final long SINGLE_DAY_CONVERSION_MILLIS = 1000 * 60 * 60 * 24;
+    static final long SINGLE_DAY_CONVERSION_MILLIS = 1000 * 60 * 60 * 24;
+    static final String MISSING_ADDRESS_ERROR = "recipient and sender are required";
 
     @Autowired
     private MessengerApiRepository messengerApiRepository;
 
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private MessengerApiMetrics messengerApiMetrics;
+
+    // Only present when messenger.write-behind.enabled is set
+    @Autowired(required = false)
+    private MessageWriteBuffer messageWriteBuffer;
+
+    // Only present when messenger.partitions.enabled is set, see repositoryFor
+    @Autowired(required = false)
+    private MessengerPartitionRouter messengerPartitionRouter;
+
+    // Only present when messenger.unread-cache.enabled is set, see getCachedUnreadMessages
+    @Autowired(required = false)
+    private UnreadMessageCache unreadMessageCache;
+
+    // Only present when messenger.recent-cache.enabled is set, see getRecentMessages
+    @Autowired(required = false)
+    private RecentMessageCache recentMessageCache;
+
+    // Only present when messenger.empty-inbox-filter.enabled is set, see getUnreadMessages
+    @Autowired(required = false)
+    private EmptyInboxFilter emptyInboxFilter;
+
+    // Page size used by the history endpoints when the client doesn't ask for one, and the most a client may ask for
+    @Value("${messenger.history.default-page-size:100}")
+    private int defaultPageSize;
+
+    @Value("${messenger.history.max-page-size:1000}")
+    private int maxPageSize;
+
+    // How far back getMessagesInRange looks when no start is given
+    @Value("${messenger.history.default-range-days:30}")
+    private int defaultRangeDays;
+
+    // Number of streamed messages marked READ per update by streamMessagesInRange
+    @Value("${messenger.history.stream-read-batch-size:1000}")
+    private int streamReadBatchSize;
+
+    // Ids are taken from the sending instance's clock before the message is written, so a message can become visible
+    // after a newer one. Sync only returns messages once they are this old, so its cursor never passes one still to come
+    @Value("${messenger.sync.settle-ms:5000}")
+    private long syncSettleMillis;
+
+    // Number of messages written per bulk insert by sendMessages
+    @Value("${messenger.send-batch.chunk-size:500}")
+    private int sendChunkSize;
+
+    // Conversations returned by getInbox when the client doesn't ask for a number, and the most a client may ask for
+    @Value("${messenger.inbox.default-size:100}")
+    private int defaultInboxSize;
+
+    @Value("${messenger.inbox.max-size:1000}")
+    private int maxInboxSize;
+
+    // When the archive is enabled, history reaching back past the last hot-days days also reads the archived messages,
+    // see MessageArchiver
+    @Value("${messenger.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    @Value("${messenger.archive.hot-days:90}")
+    private int hotDays;
+
+    // When enabled, getUnreadMessages claims messages atomically so concurrent polls never receive the same message
+    @Value("${messenger.unread.atomic-claim:false}")
+    private boolean atomicClaim;
+
     @Override
     public List<SimpleMessage> getUnreadMessages(String recipient) {
-        final List<SimpleMessageDocument> dbResponse = messengerApiRepository.findAllByRecipientAndMessageStatus(recipient, MessageStatus.UNREAD);
+        if (emptyInboxFilter == null || !emptyInboxFilter.isReady()) {
+            return readUnreadMessages(recipient);
+        }
+        if (emptyInboxFilter.isEmpty(recipient)) {
+            messengerApiMetrics.recordEmptyInboxFilter(MessengerApiMetrics.FILTER_SKIPPED);
+            return Collections.emptyList();
+        }
+        final List<SimpleMessage> unread = readUnreadMessages(recipient);
+        // The filter couldn't rule out an inbox that turned out to be empty
+        messengerApiMetrics.recordEmptyInboxFilter(unread.isEmpty() ? MessengerApiMetrics.FILTER_FALSE_POSITIVE : MessengerApiMetrics.FILTER_UNREAD);
+        return unread;
+    }
+
+    private List<SimpleMessage> readUnreadMessages(String recipient) {
+        if (atomicClaim) {
+            return claimUnreadMessages(recipient);
+        }
+        if (unreadMessageCache != null) {
+            return getCachedUnreadMessages(recipient);
+        }
+        final List<SimpleMessageDocument> dbResponse = repositoryFor(recipient).findAllByRecipientAndMessageStatus(recipient, MessageStatus.UNREAD);
         log.debug("Found {} unread messages for recipient: {}", dbResponse.size(), recipient);
-        return convertSimpleMessageFromDocument(dbResponse);
+        messengerApiMetrics.recordQueryResults("findAllByRecipientAndMessageStatus", dbResponse.size());
+        return convertSimpleMessageFromDocument(recipient, dbResponse);
+    }
+
+    // Polls of a cached recipient don't query at all, and only write when there is something to mark READ. Otherwise the
+    // recipient is loaded as usual and cached from then on
+    private List<SimpleMessage> getCachedUnreadMessages(String recipient) {
+        try {
+            final List<SimpleMessageDocument> cached = unreadMessageCache.take(recipient);
+            messengerApiMetrics.recordUnreadCache(cached != null);
+            if (cached != null) {
+                return convertSimpleMessageFromDocument(recipient, cached);
+            }
+            final long load = unreadMessageCache.beginLoad(recipient);
+            final List<SimpleMessageDocument> dbResponse = repositoryFor(recipient).findAllByRecipientAndMessageStatus(recipient, MessageStatus.UNREAD);
+            log.debug("Found {} unread messages for recipient: {}", dbResponse.size(), recipient);
+            messengerApiMetrics.recordQueryResults("findAllByRecipientAndMessageStatus", dbResponse.size());
+            final List<SimpleMessage> unread = convertSimpleMessageFromDocument(recipient, dbResponse);
+            unreadMessageCache.completeLoad(recipient, load);
+            return unread;
+        } catch (RuntimeException e) {
+            // Taken messages that couldn't be marked READ are still unread, so reload the recipient next time
+            unreadMessageCache.invalidate(recipient);
+            throw e;
+        }
     }
 
     @Override
-    public List<SimpleMessage> getRecentMessages(String recipient, String sender) {
-        List<SimpleMessageDocument> matchingMessages;
-        // Sender is optional
-        if (StringUtils.isEmpty(sender)) {
-            log.debug("Sender is null for fetch top 100 messages for {}", recipient);
-            matchingMessages = messengerApiRepository.findTop100ByRecipientOrderByTimestampDesc(recipient);
-        } else {
-            log.debug("Finding top 100 for recipient: {} and sender: {}", recipient, sender);
-            matchingMessages = messengerApiRepository.findTop100ByRecipientAndSenderOrderByTimestampDesc(recipient, sender);
+    public long getUnreadCount(String recipient) {
+        return repositoryFor(recipient).countUnread(recipient);
+    }
+
+    // Changes whenever a message is stored for the recipient or one of theirs is marked READ. Read before building a page
+    // that it stands for, so a message written in between changes it again rather than being missed. Negative while a
+    // failed change to it is waiting to be written again, see UnreadCounterBacklog
+    @Override
+    public long getMessagesVersion(String recipient) {
+        return repositoryFor(recipient).findVersion(recipient);
+    }
+
+    @Override
+    public List<ConversationSummary> getInbox(String recipient, Integer limit) {
+        final int size = limit == null ? defaultInboxSize : Math.max(1, Math.min(limit, maxInboxSize));
+        final List<ConversationSummaryDocument> conversations = repositoryFor(recipient).findInbox(recipient, size);
+        log.debug("Found {} conversations for recipient: {}", conversations.size(), recipient);
+        messengerApiMetrics.recordQueryResults("findInbox", conversations.size());
+        return conversations.stream()
+                .map(MessengerApiServiceImpl::toConversationSummary)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<SimpleMessage> claimUnreadMessages(String recipient) {
+        // Messages come back already marked READ so there is nothing left to update
+        final long filterGeneration = emptyInboxFilter != null ? emptyInboxFilter.generation() : 0;
+        final List<SimpleMessageDocument> claimed = repositoryFor(recipient).claimUnread(recipient);
+        log.debug("Claimed {} unread messages for recipient: {}", claimed.size(), recipient);
+        messengerApiMetrics.recordQueryResults("claimUnread", claimed.size());
+        messengerApiMetrics.recordMarkedRead("claimUnread", claimed.size());
+        if (unreadMessageCache != null) {
+            unreadMessageCache.removeRead(recipient, claimed);
+        }
+        if (recentMessageCache != null) {
+            recentMessageCache.markRead(recipient, claimed);
+        }
+        if (emptyInboxFilter != null) {
+            emptyInboxFilter.remove(filterGeneration, recipient, claimed.size());
+        }
+        return claimed.stream()
+                .map(MessengerApiServiceImpl::toSimpleMessage)
+                .collect(Collectors.toList());
+    }
+
+    // Messages are only marked READ once the consumer has taken them, so when it fails, the message it failed on and
+    // those after it are left unread for the next read rather than lost
+    @Override
+    public void streamUnreadMessages(String recipient, Consumer<SimpleMessage> consumer) {
+        if (emptyInboxFilter != null && emptyInboxFilter.isReady() && emptyInboxFilter.isEmpty(recipient)) {
+            messengerApiMetrics.recordEmptyInboxFilter(MessengerApiMetrics.FILTER_SKIPPED);
+            return;
+        }
+        final List<SimpleMessageDocument> unread = repositoryFor(recipient).findAllByRecipientAndMessageStatus(recipient, MessageStatus.UNREAD);
+        log.debug("Found {} unread messages for recipient: {}", unread.size(), recipient);
+        messengerApiMetrics.recordQueryResults("findAllByRecipientAndMessageStatus", unread.size());
+        final List<SimpleMessageDocument> delivered = new ArrayList<>(unread.size());
+        try {
+            for (SimpleMessageDocument document : unread) {
+                consumer.accept(toSimpleMessage(document));
+                delivered.add(document);
+            }
+        } finally {
+            if (!delivered.isEmpty()) {
+                markAsRead(recipient, delivered);
+            }
+        }
+    }
+
+    @Override
+    public MessagePage getRecentMessages(String recipient, String sender, MessageCursor cursor, Integer limit) {
+        if (recentMessageCache != null) {
+            final List<SimpleMessageDocument> cached = findCachedPage(recipient, sender, cursor, pageSize(limit) + 1);
+            messengerApiMetrics.recordRecentCache(cached != null);
+            if (cached != null) {
+                log.debug("Found {} cached messages for recipient: {} and sender: {}", cached.size(), recipient, sender);
+                return toPage(recipient, cached, pageSize(limit));
+            }
+        }
+        return getPage(recipient, sender, null, null, cursor, limit);
+    }
+
+    // The page from the recipient's buffered recent messages, loading them first if they aren't buffered. Null when the
+    // page reaches past them
+    private List<SimpleMessageDocument> findCachedPage(String recipient, String sender, MessageCursor cursor, int limit) {
+        final List<SimpleMessageDocument> cached = recentMessageCache.findPage(recipient, sender, cursor, limit);
+        if (cached != null || recentMessageCache.contains(recipient)) {
+            return cached;
+        }
+        final long load = recentMessageCache.beginLoad(recipient);
+        try {
+            final List<SimpleMessageDocument> newest = repositoryFor(recipient).findPage(recipient, null, null, null, null, recentMessageCache.getCapacity());
+            messengerApiMetrics.recordQueryResults("findPage", newest.size());
+            recentMessageCache.completeLoad(recipient, load, newest);
+        } catch (RuntimeException e) {
+            recentMessageCache.invalidate(recipient);
+            throw e;
+        }
+        return recentMessageCache.findPage(recipient, sender, cursor, limit);
+    }
+
+    @Override
+    public MessagePage getMessagesInRange(String recipient, String sender, Date from, Date to, MessageCursor cursor, Integer limit) {
+        return getPage(recipient, sender, rangeStart(from), to, cursor, limit);
+    }
+
+    @Override
+    public void streamMessagesInRange(String recipient, String sender, Date from, Date to, Consumer<SimpleMessage> consumer) {
+        // Only a bounded batch of unread messages is held at a time, so memory use doesn't grow with the size of the range
+        final List<SimpleMessageDocument> unread = new ArrayList<>();
+        final Date start = rangeStart(from);
+        int streamed = 0;
+        try (Stream<SimpleMessageDocument> documents = repositoryFor(recipient).streamRange(recipient, sender, start, to);
+             Stream<SimpleMessageDocument> archived = startsBeforeHotWindow(start)
+                     ? repositoryFor(recipient).streamArchivedRange(recipient, sender, start, to) : Stream.empty()) {
+            final Iterator<SimpleMessageDocument> iterator = newestFirst(documents.iterator(), archived.iterator());
+            while (iterator.hasNext()) {
+                final SimpleMessageDocument document = iterator.next();
+                consumer.accept(toSimpleMessage(document));
+                streamed++;
+                if (document.getMessageStatus() == MessageStatus.UNREAD) {
+                    unread.add(document);
+                    if (unread.size() >= streamReadBatchSize) {
+                        markAsRead(recipient, unread);
+                        unread.clear();
+                    }
+                }
+            }
+        }
+        if (!unread.isEmpty()) {
+            markAsRead(recipient, unread);
+        }
+        log.debug("Streamed {} messages for recipient: {} and sender: {}", streamed, recipient, sender);
+        messengerApiMetrics.recordQueryResults("streamRange", streamed);
+    }
+
+    @Override
+    public SyncPage sync(String recipient, MessageCursor cursor, Integer limit) {
+        final int pageSize = pageSize(limit);
+        final Date before = new Date(System.currentTimeMillis() - syncSettleMillis);
+        log.debug("Syncing {} messages for recipient: {} after {}", pageSize, recipient, cursor);
+        List<SimpleMessageDocument> newerMessages = repositoryFor(recipient).findSince(recipient, cursor, before, pageSize + 1);
+        messengerApiMetrics.recordQueryResults("findSince", newerMessages.size());
+        // Read after the messages collection, so a message the archiver moves in between is found in the archive
+        if (startsBeforeHotWindow(cursor == null ? null : new ObjectId(cursor.getId()).getDate())) {
+            final List<SimpleMessageDocument> archived = repositoryFor(recipient).findArchivedSince(recipient, cursor, before, pageSize + 1);
+            messengerApiMetrics.recordQueryResults("findArchivedSince", archived.size());
+            newerMessages = oldestFirst(newerMessages, archived, pageSize + 1);
+        }
+        final boolean more = newerMessages.size() > pageSize;
+        if (more) {
+            newerMessages = newerMessages.subList(0, pageSize);
+        }
+        final MessageCursor nextCursor = newerMessages.isEmpty() ? cursor : MessageCursor.of(newerMessages.get(newerMessages.size() - 1));
+        return new SyncPage(convertSimpleMessageFromDocument(recipient, newerMessages), nextCursor, more);
+    }
+
+    private Date rangeStart(Date from) {
+        return from != null ? from : new Date(System.currentTimeMillis() - (SINGLE_DAY_CONVERSION_MILLIS * defaultRangeDays));
+    }
+
+    private MessagePage getPage(String recipient, String sender, Date from, Date to, MessageCursor cursor, Integer limit) {
+        final int pageSize = pageSize(limit);
+        log.debug("Finding {} messages for recipient: {} and sender: {} between {} and {} after {}", pageSize, recipient, sender, from, to, cursor);
+        // Fetch one extra message to find out whether there is another page without a separate count
+        List<SimpleMessageDocument> matchingMessages = repositoryFor(recipient).findPage(recipient, sender, from, to, cursor, pageSize + 1);
+        messengerApiMetrics.recordQueryResults("findPage", matchingMessages.size());
+        if (reachesArchive(from, matchingMessages, pageSize + 1)) {
+            final List<SimpleMessageDocument> archived = repositoryFor(recipient).findArchivedPage(recipient, sender, from, to, cursor, pageSize + 1);
+            messengerApiMetrics.recordQueryResults("findArchivedPage", archived.size());
+            matchingMessages = newestFirst(matchingMessages, archived, pageSize + 1);
         }
         log.debug("Found {} messages for recipient: {} and sender: {}", matchingMessages.size(), recipient, sender);
+        return toPage(recipient, matchingMessages, pageSize);
+    }
+
+    private int pageSize(Integer limit) {
+        return limit == null ? defaultPageSize : Math.max(1, Math.min(limit, maxPageSize));
+    }
+
+    // Up to pageSize of the matching messages, which hold one extra message when there is another page
+    private MessagePage toPage(String recipient, List<SimpleMessageDocument> matchingMessages, int pageSize) {
+        MessageCursor nextCursor = null;
+        if (matchingMessages.size() > pageSize) {
+            matchingMessages = matchingMessages.subList(0, pageSize);
+            nextCursor = MessageCursor.of(matchingMessages.get(pageSize - 1));
+        }
+        return new MessagePage(convertSimpleMessageFromDocument(recipient, matchingMessages), nextCursor);
+    }
 
-        return convertSimpleMessageFromDocument(matchingMessages);
+    private boolean startsBeforeHotWindow(Date from) {
+        return archiveEnabled && (from == null || from.before(hotWindowStart(hotDays)));
+    }
+
+    // Everything archived was sent before the hot window, so the archive can only add to a page of a range that starts
+    // before the window, and only when the messages collection ran out or reached back past the window before the page
+    // was full. A full page of recent messages never reads the archive
+    private boolean reachesArchive(Date from, List<SimpleMessageDocument> matchingMessages, int limit) {
+        return startsBeforeHotWindow(from)
+                && (matchingMessages.size() < limit || sentBefore(matchingMessages.get(limit - 1), hotWindowStart(hotDays)));
     }
 
     @Override
-    public List<SimpleMessage> getRecentWithinThirtyDays(String recipient, String sender) {
-        List<SimpleMessageDocument> matchingMessages;
-        final Date thirtyDaysPast = new Date(System.currentTimeMillis() - (SINGLE_DAY_CONVERSION_MILLIS * 30)); // TODO make 30 env variable
-        // Sender is optional
-        if (StringUtils.isEmpty(sender)) {
-            log.debug("Sender is null for fetching all messages in past 30 days for {} ", recipient);
-            matchingMessages = messengerApiRepository.findAllByTimestampAfterAndRecipientOrderByTimestampDesc(thirtyDaysPast, recipient);
+    public void sendMessage(SimpleMessage simpleMessage) {
+        final SimpleMessageDocument messageDocument = toUnreadDocument(simpleMessage);
+        log.debug("Saving simple message with id: {}", messageDocument.getId());
+        if (messageWriteBuffer != null) {
+            // The buffer announces the message once it is flushed
+            messageWriteBuffer.enqueue(messageDocument);
         } else {
-            log.debug("Finding all messages within past 30 days for {} from {}", recipient, sender);
-            matchingMessages = messengerApiRepository.findAllByTimestampAfterAndRecipientAndSenderOrderByTimestampDesc(thirtyDaysPast, recipient, sender);
+            repositoryFor(messageDocument.getRecipient()).insertMessage(messageDocument);
+            if (unreadMessageCache != null) {
+                unreadMessageCache.addAll(Collections.singletonList(messageDocument));
+            }
+            if (recentMessageCache != null) {
+                recentMessageCache.addAll(Collections.singletonList(messageDocument));
+            }
+            if (emptyInboxFilter != null) {
+                emptyInboxFilter.add(messageDocument.getRecipient(), 1);
+            }
+            eventPublisher.publishEvent(new MessagesStoredEvent(Collections.singleton(messageDocument.getRecipient())));
         }
-        return convertSimpleMessageFromDocument(matchingMessages);
     }
 
     @Override
-    public void sendMessage(SimpleMessage simpleMessage) {
-        final String id = UUID.randomUUID().toString();
-        log.debug("Saving simple message with id: {}", id);
-        final SimpleMessageDocument messageDocument = new SimpleMessageDocument(id,
+    public List<SendMessageResult> sendMessages(Iterator<SimpleMessage> simpleMessages) {
+        final List<SendMessageResult> results = new ArrayList<>();
+        final List<SimpleMessageDocument> chunk = new ArrayList<>(sendChunkSize);
+        final List<SendMessageResult> chunkResults = new ArrayList<>(sendChunkSize);
+        int index = 0;
+        while (true) {
+            final SimpleMessage simpleMessage;
+            try {
+                if (!simpleMessages.hasNext()) {
+                    break;
+                }
+                simpleMessage = simpleMessages.next();
+            } catch (RuntimeException e) {
+                // The rest of the body can't be read reliably once a message fails to parse
+                log.debug("Stopped reading batch at message {}", index, e);
+                results.add(new SendMessageResult(index, null, false, "Unreadable message: " + e.getMessage()));
+                break;
+            }
+            if (!isSendable(simpleMessage)) {
+                results.add(new SendMessageResult(index++, null, false, MISSING_ADDRESS_ERROR));
+                continue;
+            }
+            final SimpleMessageDocument messageDocument = toUnreadDocument(simpleMessage);
+            chunk.add(messageDocument);
+            final SendMessageResult result = new SendMessageResult(index++, messageDocument.getId(), true, null);
+            chunkResults.add(result);
+            results.add(result);
+            if (chunk.size() >= sendChunkSize) {
+                persistChunk(chunk, chunkResults);
+            }
+        }
+        persistChunk(chunk, chunkResults);
+        log.debug("Processed batch of {} messages", results.size());
+        return results;
+    }
+
+    // Write a chunk of a sendMessages batch and mark any messages that failed. Clears both lists
+    private void persistChunk(List<SimpleMessageDocument> chunk, List<SendMessageResult> chunkResults) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        // A slowly streamed body can take longer than messenger.sync.settle-ms to fill a chunk, so the ids are taken now
+        // rather than when each message was read, or a sync in between would already be past them
+        for (int i = 0; i < chunk.size(); i++) {
+            stampSendTime(chunk.get(i));
+            chunkResults.get(i).setId(chunk.get(i).getId());
+        }
+        if (messageWriteBuffer != null) {
+            for (int i = 0; i < chunk.size(); i++) {
+                try {
+                    messageWriteBuffer.enqueue(chunk.get(i));
+                } catch (WriteBufferFullException e) {
+                    chunkResults.get(i).setAccepted(false);
+                    chunkResults.get(i).setError(e.getMessage());
+                }
+            }
+        } else {
+            insertAll(chunk).forEach((position, error) -> {
+                chunkResults.get(position).setAccepted(false);
+                chunkResults.get(position).setError(error);
+            });
+            final Set<String> recipients = new HashSet<>();
+            final List<SimpleMessageDocument> stored = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                if (chunkResults.get(i).isAccepted()) {
+                    recipients.add(chunk.get(i).getRecipient());
+                    stored.add(chunk.get(i));
+                }
+            }
+            if (unreadMessageCache != null) {
+                unreadMessageCache.addAll(stored);
+            }
+            if (recentMessageCache != null) {
+                recentMessageCache.addAll(stored);
+            }
+            if (emptyInboxFilter != null) {
+                stored.forEach(document -> emptyInboxFilter.add(document.getRecipient(), 1));
+            }
+            if (!recipients.isEmpty()) {
+                eventPublisher.publishEvent(new MessagesStoredEvent(recipients));
+            }
+        }
+        chunk.clear();
+        chunkResults.clear();
+    }
+
+    // Write a chunk with one bulk insert per partition. Returns the error for each message that failed, keyed by its
+    // position in the chunk. A partition that can't be written fails only its own messages
+    private Map<Integer, String> insertAll(List<SimpleMessageDocument> chunk) {
+        final Map<MessengerApiRepositoryCustom, List<Integer>> positionsByRepository = new LinkedHashMap<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            positionsByRepository.computeIfAbsent(repositoryFor(chunk.get(i).getRecipient()), repository -> new ArrayList<>()).add(i);
+        }
+        final Map<Integer, String> failures = new HashMap<>();
+        positionsByRepository.forEach((repository, positions) -> {
+            final List<SimpleMessageDocument> documents = positions.stream().map(chunk::get).collect(Collectors.toList());
+            try {
+                repository.insertAll(documents).forEach((position, error) -> failures.put(positions.get(position), error));
+            } catch (DataAccessException e) {
+                log.error("Failed to write chunk of {} messages", documents.size(), e);
+                positions.forEach(position -> failures.put(position, e.getMessage()));
+            }
+        });
+        return failures;
+    }
+
+    // Every read and write for a recipient goes to the partition that owns it, or the only repository without partitions
+    private MessengerApiRepositoryCustom repositoryFor(String recipient) {
+        return messengerPartitionRouter != null ? messengerPartitionRouter.repositoryFor(recipient) : messengerApiRepository;
+    }
+
+    // Shared with ReactiveMessengerApiServiceImpl
+    static boolean isSendable(SimpleMessage simpleMessage) {
+        return simpleMessage != null && !StringUtils.isEmpty(simpleMessage.getRecipient()) && !StringUtils.isEmpty(simpleMessage.getSender());
+    }
+
+    static SimpleMessageDocument toUnreadDocument(SimpleMessage simpleMessage) {
+        final SimpleMessageDocument document = new SimpleMessageDocument(null,
                 simpleMessage.getText(),
                 simpleMessage.getRecipient(),
                 simpleMessage.getSender(),
                 MessageStatus.UNREAD,
-                new Date());
-        messengerApiRepository.save(messageDocument);
+                null,
+                null);
+        stampSendTime(document);
+        return document;
     }
 
+    // The id is generated from the same instant as the timestamp, so id order is send order
+    static void stampSendTime(SimpleMessageDocument document) {
+        final Date now = new Date();
+        document.setId(new ObjectId(now).toHexString());
+        document.setTimestamp(now);
+    }
 
-    // Convert SimpleMessageDocument (dao) to api response SimpleMessage
-    private List<SimpleMessage> convertSimpleMessageFromDocument(List<SimpleMessageDocument> matchingMessages) {
-        final List<SimpleMessage> mappedResult = matchingMessages.stream()
-                .map(document -> {
-                    // Mark each document as read
-                    document.setMessageStatus(MessageStatus.READ);
-                    return new SimpleMessage(document.getSender(), document.getRecipient(), document.getText());
-                })
-                .collect(Collectors.toList());
-        // Update all messages to READ status in db. This is why we have the id field for SimpleMessageDocuments. Mongo
-        // perform an update if the id exists in the collection
-        log.debug("Updating {} documents to READ status", matchingMessages.size());
-        messengerApiRepository.saveAll(matchingMessages);
+    // Convert SimpleMessageDocument (dao) to api response SimpleMessage. Package-private for MessageMappingBenchmark
+    List<SimpleMessage> convertSimpleMessageFromDocument(String recipient, List<SimpleMessageDocument> matchingMessages) {
+        final List<SimpleMessage> mappedResult = new ArrayList<>(matchingMessages.size());
+        final List<SimpleMessageDocument> unread = new ArrayList<>();
+        for (SimpleMessageDocument document : matchingMessages) {
+            if (document.getMessageStatus() == MessageStatus.UNREAD) {
+                unread.add(document);
+            }
+            mappedResult.add(toSimpleMessage(document));
+        }
+        // Mark every returned message as READ. Skip the round trip if everything was already read
+        if (!unread.isEmpty()) {
+            final long modified = markAsRead(recipient, unread);
+            log.debug("Updated {} of {} documents to READ status", modified, matchingMessages.size());
+        }
         return mappedResult;
     }
+
+    private long markAsRead(String recipient, List<SimpleMessageDocument> unread) {
+        final long filterGeneration = emptyInboxFilter != null ? emptyInboxFilter.generation() : 0;
+        final long modified = repositoryFor(recipient).markAsRead(recipient, unread);
+        messengerApiMetrics.recordMarkedRead("markAsRead", modified);
+        if (unreadMessageCache != null) {
+            unreadMessageCache.removeRead(recipient, unread);
+        }
+        if (recentMessageCache != null) {
+            recentMessageCache.markRead(recipient, unread);
+        }
+        if (emptyInboxFilter != null) {
+            emptyInboxFilter.remove(filterGeneration, recipient, modified);
+        }
+        return modified;
+    }
+
+    // The summary and the messages aren't written atomically, never report a negative count if they drift
+    static ConversationSummary toConversationSummary(ConversationSummaryDocument document) {
+        return new ConversationSummary(document.getSender(), document.getLastText(), document.getLastTimestamp(),
+                Math.max(0, document.getUnread()));
+    }
+
+    static SimpleMessage toSimpleMessage(SimpleMessageDocument document) {
+        return new SimpleMessage(document.getSender(), document.getRecipient(), document.getText());
+    }
+
+    // Start of the hot window, shared with ReactiveMessengerApiServiceImpl like the helpers below
+    static Date hotWindowStart(int hotDays) {
+        return new Date(System.currentTimeMillis() - SINGLE_DAY_CONVERSION_MILLIS * hotDays);
+    }
+
+    // Ids carry the send time to the second. A legacy UUID id doesn't, so it's treated as old
+    static boolean sentBefore(SimpleMessageDocument document, Date date) {
+        return !ObjectId.isValid(document.getId()) || new ObjectId(document.getId()).getDate().before(date);
+    }
+
+    // Merge two newest first lists of messages, up to limit. A message being archived can briefly be in both
+    // collections, it is only returned once
+    static List<SimpleMessageDocument> newestFirst(List<SimpleMessageDocument> hot, List<SimpleMessageDocument> archived, int limit) {
+        final List<SimpleMessageDocument> merged = new ArrayList<>(Math.min(limit, hot.size() + archived.size()));
+        final Iterator<SimpleMessageDocument> iterator = newestFirst(hot.iterator(), archived.iterator());
+        while (iterator.hasNext() && merged.size() < limit) {
+            merged.add(iterator.next());
+        }
+        return merged;
+    }
+
+    // Merge two oldest first lists of messages, up to limit, returning a message in both collections once
+    static List<SimpleMessageDocument> oldestFirst(List<SimpleMessageDocument> hot, List<SimpleMessageDocument> archived, int limit) {
+        if (archived.isEmpty()) {
+            return hot;
+        }
+        // Hex ObjectIds compare as strings in send order
+        final TreeMap<String, SimpleMessageDocument> merged = new TreeMap<>();
+        archived.forEach(document -> merged.put(document.getId(), document));
+        hot.forEach(document -> merged.put(document.getId(), document));
+        return merged.values().stream().limit(limit).collect(Collectors.toList());
+    }
+
+    static Iterator<SimpleMessageDocument> newestFirst(Iterator<SimpleMessageDocument> hot, Iterator<SimpleMessageDocument> archived) {
+        if (!archived.hasNext()) {
+            return hot;
+        }
+        return new Iterator<SimpleMessageDocument>() {
+            private SimpleMessageDocument nextHot = hot.hasNext() ? hot.next() : null;
+            private SimpleMessageDocument nextArchived = archived.next();
+
+            @Override
+            public boolean hasNext() {
+                return nextHot != null || nextArchived != null;
+            }
+
+            @Override
+            public SimpleMessageDocument next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                // Hex ObjectIds compare as strings in send order
+                final int order = nextHot == null ? -1 : nextArchived == null ? 1 : nextHot.getId().compareTo(nextArchived.getId());
+                final SimpleMessageDocument next = order >= 0 ? nextHot : nextArchived;
+                if (order >= 0) {
+                    nextHot = hot.hasNext() ? hot.next() : null;
+                }
+                if (order <= 0) {
+                    nextArchived = archived.hasNext() ? archived.next() : null;
+                }
+                return next;
+            }
+        };
+    }
 }
@@ -0,0 +1,308 @@
+package com.guild.interview.messengerapi.service.impl;
+
+import com.guild.interview.messengerapi.dao.MessageWriteBuffer;
+import com.guild.interview.messengerapi.dao.ReactiveMessengerApiRepository;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.MessagesStoredEvent;
+import com.guild.interview.messengerapi.model.SendMessageResult;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.service.MessengerApiMetrics;
+import com.guild.interview.messengerapi.service.ReactiveMessengerApiService;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Reactive implementation of the Messenger API business logic. Mirrors MessengerApiServiceImpl on top of
+ * ReactiveMessengerApiRepository so no request thread waits on Mongo.
+ */
+@Service
+@Profile("reactive")
+@Slf4j
+public class ReactiveMessengerApiServiceImpl implements ReactiveMessengerApiService {
+    // Hex ObjectIds compare as strings in send order
+    private static final Comparator<SimpleMessageDocument> NEWEST_FIRST = Comparator.comparing(SimpleMessageDocument::getId).reversed();
+
+    @Autowired
+    private ReactiveMessengerApiRepository reactiveMessengerApiRepository;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private MessengerApiMetrics messengerApiMetrics;
+
+    // Only present when messenger.write-behind.enabled is set
+    @Autowired(required = false)
+    private MessageWriteBuffer messageWriteBuffer;
+
+    @Value("${messenger.history.default-page-size:100}")
+    private int defaultPageSize;
+
+    @Value("${messenger.history.max-page-size:1000}")
+    private int maxPageSize;
+
+    @Value("${messenger.history.default-range-days:30}")
+    private int defaultRangeDays;
+
+    @Value("${messenger.history.stream-read-batch-size:1000}")
+    private int streamReadBatchSize;
+
+    @Value("${messenger.send-batch.chunk-size:500}")
+    private int sendChunkSize;
+
+    @Value("${messenger.inbox.default-size:100}")
+    private int defaultInboxSize;
+
+    @Value("${messenger.inbox.max-size:1000}")
+    private int maxInboxSize;
+
+    @Value("${messenger.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    @Value("${messenger.archive.hot-days:90}")
+    private int hotDays;
+
+    @Value("${messenger.unread.atomic-claim:false}")
+    private boolean atomicClaim;
+
+    @Override
+    public Flux<SimpleMessage> getUnreadMessages(String recipient) {
+        if (atomicClaim) {
+            return claimUnreadMessages(recipient);
+        }
+        return reactiveMessengerApiRepository.findAllByRecipientAndMessageStatus(recipient, MessageStatus.UNREAD)
+                .collectList()
+                .doOnNext(unread -> messengerApiMetrics.recordQueryResults("findAllByRecipientAndMessageStatus", unread.size()))
+                .flatMapMany(unread -> markReadAndConvert(recipient, unread));
+    }
+
+    // See MessengerApiServiceImpl#streamUnreadMessages. Each message is only marked READ once it was emitted and the
+    // next one is only emitted after that, so those still to come when the subscriber cancels stay unread
+    @Override
+    public Flux<SimpleMessage> streamUnreadMessages(String recipient) {
+        return reactiveMessengerApiRepository.findAllByRecipientAndMessageStatus(recipient, MessageStatus.UNREAD)
+                .collectList()
+                .doOnNext(unread -> messengerApiMetrics.recordQueryResults("findAllByRecipientAndMessageStatus", unread.size()))
+                .flatMapIterable(unread -> unread)
+                .concatMap(document -> Mono.just(MessengerApiServiceImpl.toSimpleMessage(document))
+                        .concatWith(reactiveMessengerApiRepository.markAsRead(recipient, Collections.singletonList(document))
+                                .doOnNext(modified -> messengerApiMetrics.recordMarkedRead("markAsRead", modified))
+                                .then(Mono.empty())), 1);
+    }
+
+    @Override
+    public Mono<Long> getUnreadCount(String recipient) {
+        return reactiveMessengerApiRepository.countUnread(recipient);
+    }
+
+    // See MessengerApiServiceImpl#getMessagesVersion
+    @Override
+    public Mono<Long> getMessagesVersion(String recipient) {
+        return reactiveMessengerApiRepository.findVersion(recipient);
+    }
+
+    @Override
+    public Flux<ConversationSummary> getInbox(String recipient, Integer limit) {
+        final int size = limit == null ? defaultInboxSize : Math.max(1, Math.min(limit, maxInboxSize));
+        return reactiveMessengerApiRepository.findInbox(recipient, size)
+                .collectList()
+                .doOnNext(conversations -> messengerApiMetrics.recordQueryResults("findInbox", conversations.size()))
+                .flatMapIterable(conversations -> conversations)
+                .map(MessengerApiServiceImpl::toConversationSummary);
+    }
+
+    @Override
+    public Flux<SimpleMessage> claimUnreadMessages(String recipient) {
+        return reactiveMessengerApiRepository.claimUnread(recipient)
+                .collectList()
+                .doOnNext(claimed -> {
+                    messengerApiMetrics.recordQueryResults("claimUnread", claimed.size());
+                    messengerApiMetrics.recordMarkedRead("claimUnread", claimed.size());
+                })
+                .flatMapIterable(claimed -> claimed)
+                .map(MessengerApiServiceImpl::toSimpleMessage);
+    }
+
+    @Override
+    public Mono<MessagePage> getRecentMessages(String recipient, String sender, MessageCursor cursor, Integer limit) {
+        return getPage(recipient, sender, null, null, cursor, limit);
+    }
+
+    @Override
+    public Mono<MessagePage> getMessagesInRange(String recipient, String sender, Date from, Date to, MessageCursor cursor, Integer limit) {
+        return getPage(recipient, sender, rangeStart(from), to, cursor, limit);
+    }
+
+    @Override
+    public Flux<SimpleMessage> streamMessagesInRange(String recipient, String sender, Date from, Date to) {
+        final AtomicInteger streamed = new AtomicInteger();
+        final Date start = rangeStart(from);
+        Flux<SimpleMessageDocument> matching = reactiveMessengerApiRepository.findPage(recipient, sender, start, to, null, 0);
+        if (startsBeforeHotWindow(start)) {
+            // Newest first across both collections, keeping one copy of a message that is being archived
+            matching = Flux.mergeOrdered(NEWEST_FIRST, matching,
+                    reactiveMessengerApiRepository.findArchivedPage(recipient, sender, start, to, null, 0))
+                    .distinctUntilChanged(SimpleMessageDocument::getId);
+        }
+        return matching
+                .doOnNext(document -> streamed.incrementAndGet())
+                .buffer(streamReadBatchSize)
+                .concatMap(documents -> markReadAndConvert(recipient, documents))
+                .doOnComplete(() -> messengerApiMetrics.recordQueryResults("streamRange", streamed.get()));
+    }
+
+    @Override
+    public Mono<Void> sendMessage(SimpleMessage simpleMessage) {
+        final SimpleMessageDocument messageDocument = MessengerApiServiceImpl.toUnreadDocument(simpleMessage);
+        log.debug("Saving simple message with id: {}", messageDocument.getId());
+        if (messageWriteBuffer != null) {
+            // Journaling and waiting for buffer capacity block, so keep them off the event loop
+            return Mono.fromRunnable(() -> messageWriteBuffer.enqueue(messageDocument))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .then();
+        }
+        return reactiveMessengerApiRepository.insertMessage(messageDocument)
+                .then(Mono.fromRunnable(() -> eventPublisher.publishEvent(new MessagesStoredEvent(Collections.singleton(messageDocument.getRecipient())))));
+    }
+
+    @Override
+    public Flux<SendMessageResult> sendMessages(Flux<SimpleMessage> simpleMessages) {
+        final AtomicInteger index = new AtomicInteger();
+        return simpleMessages
+                .map(simpleMessage -> {
+                    if (!MessengerApiServiceImpl.isSendable(simpleMessage)) {
+                        return new PendingSend(new SendMessageResult(index.getAndIncrement(), null, false, MessengerApiServiceImpl.MISSING_ADDRESS_ERROR), null);
+                    }
+                    final SimpleMessageDocument messageDocument = MessengerApiServiceImpl.toUnreadDocument(simpleMessage);
+                    return new PendingSend(new SendMessageResult(index.getAndIncrement(), messageDocument.getId(), true, null), messageDocument);
+                })
+                // The rest of the body can't be read once a message fails to parse. Turn the error into a final result so
+                // the messages already read are still written
+                .onErrorResume(e -> Mono.just(new PendingSend(new SendMessageResult(index.get(), null, false, "Unreadable message: " + e.getMessage()), null)))
+                .buffer(sendChunkSize)
+                .concatMap(this::persistChunk);
+    }
+
+    private Flux<SendMessageResult> persistChunk(List<PendingSend> chunk) {
+        final List<SimpleMessageDocument> documents = new ArrayList<>(chunk.size());
+        final List<SendMessageResult> documentResults = new ArrayList<>(chunk.size());
+        for (PendingSend pending : chunk) {
+            if (pending.document != null) {
+                documents.add(pending.document);
+                documentResults.add(pending.result);
+            }
+        }
+        final Flux<SendMessageResult> results = Flux.fromIterable(chunk).map(pending -> pending.result);
+        if (documents.isEmpty()) {
+            return results;
+        }
+        if (messageWriteBuffer != null) {
+            return Mono.fromRunnable(() -> documents.forEach(messageWriteBuffer::enqueue))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .thenMany(results);
+        }
+        return reactiveMessengerApiRepository.insertAll(documents)
+                .doOnNext(failures -> {
+                    failures.forEach((position, error) -> {
+                        documentResults.get(position).setAccepted(false);
+                        documentResults.get(position).setError(error);
+                    });
+                    final Set<String> recipients = new HashSet<>();
+                    for (int i = 0; i < documents.size(); i++) {
+                        if (documentResults.get(i).isAccepted()) {
+                            recipients.add(documents.get(i).getRecipient());
+                        }
+                    }
+                    if (!recipients.isEmpty()) {
+                        eventPublisher.publishEvent(new MessagesStoredEvent(recipients));
+                    }
+                })
+                .onErrorResume(DataAccessException.class, e -> {
+                    log.error("Failed to write chunk of {} messages", documents.size(), e);
+                    documentResults.forEach(result -> {
+                        result.setAccepted(false);
+                        result.setError(e.getMessage());
+                    });
+                    return Mono.empty();
+                })
+                .thenMany(results);
+    }
+
+    private Mono<MessagePage> getPage(String recipient, String sender, Date from, Date to, MessageCursor cursor, Integer limit) {
+        final int pageSize = limit == null ? defaultPageSize : Math.max(1, Math.min(limit, maxPageSize));
+        // Fetch one extra message to find out whether there is another page without a separate count
+        return reactiveMessengerApiRepository.findPage(recipient, sender, from, to, cursor, pageSize + 1)
+                .collectList()
+                .doOnNext(matchingMessages -> messengerApiMetrics.recordQueryResults("findPage", matchingMessages.size()))
+                .flatMap(matchingMessages -> reachesArchive(from, matchingMessages, pageSize + 1)
+                        ? reactiveMessengerApiRepository.findArchivedPage(recipient, sender, from, to, cursor, pageSize + 1)
+                                .collectList()
+                                .doOnNext(archived -> messengerApiMetrics.recordQueryResults("findArchivedPage", archived.size()))
+                                .map(archived -> MessengerApiServiceImpl.newestFirst(matchingMessages, archived, pageSize + 1))
+                        : Mono.just(matchingMessages))
+                .flatMap(matchingMessages -> {
+                    final List<SimpleMessageDocument> page = matchingMessages.size() > pageSize ? matchingMessages.subList(0, pageSize) : matchingMessages;
+                    final MessageCursor nextCursor = matchingMessages.size() > pageSize ? MessageCursor.of(page.get(pageSize - 1)) : null;
+                    return markReadAndConvert(recipient, page).collectList()
+                            .map(messages -> new MessagePage(messages, nextCursor));
+                });
+    }
+
+    // Mark the unread documents READ, skipped when nothing is unread, then emit them as messages
+    private Flux<SimpleMessage> markReadAndConvert(String recipient, List<SimpleMessageDocument> documents) {
+        final List<SimpleMessageDocument> unread = documents.stream()
+                .filter(document -> document.getMessageStatus() == MessageStatus.UNREAD)
+                .collect(Collectors.toList());
+        final Flux<SimpleMessage> messages = Flux.fromIterable(documents).map(MessengerApiServiceImpl::toSimpleMessage);
+        if (unread.isEmpty()) {
+            return messages;
+        }
+        return reactiveMessengerApiRepository.markAsRead(recipient, unread)
+                .doOnNext(modified -> messengerApiMetrics.recordMarkedRead("markAsRead", modified))
+                .thenMany(messages);
+    }
+
+    // See MessengerApiServiceImpl#reachesArchive
+    private boolean startsBeforeHotWindow(Date from) {
+        return archiveEnabled && (from == null || from.before(MessengerApiServiceImpl.hotWindowStart(hotDays)));
+    }
+
+    private boolean reachesArchive(Date from, List<SimpleMessageDocument> matchingMessages, int limit) {
+        return startsBeforeHotWindow(from) && (matchingMessages.size() < limit
+                || MessengerApiServiceImpl.sentBefore(matchingMessages.get(limit - 1), MessengerApiServiceImpl.hotWindowStart(hotDays)));
+    }
+
+    private Date rangeStart(Date from) {
+        return from != null ? from : new Date(System.currentTimeMillis() - (MessengerApiServiceImpl.SINGLE_DAY_CONVERSION_MILLIS * defaultRangeDays));
+    }
+
+    // A message from a sendMessages batch with its result, and its document unless it was rejected
+    @AllArgsConstructor
+    private static class PendingSend {
+        private final SendMessageResult result;
+        private final SimpleMessageDocument document;
+    }
+}
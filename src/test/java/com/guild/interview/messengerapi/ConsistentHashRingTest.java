@@ -0,0 +1,54 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.ConsistentHashRing;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the recipient to partition placement used by MessengerPartitionRouter.
+ */
+public class ConsistentHashRingTest {
+    private static final int RECIPIENTS = 30_000;
+
+    @Test
+    public void testSpreadsKeysEvenly() {
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes("default", "p1", "p2"), 128);
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            counts.merge(ring.nodeFor("recipient" + i), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        // Each node is within a fifth of an even share
+        counts.values().forEach(count -> assertTrue(Math.abs(count - RECIPIENTS / 3) < RECIPIENTS / 15, counts.toString()));
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesKeysToIt() {
+        final ConsistentHashRing<String> before = new ConsistentHashRing<>(nodes("default", "p1"), 128);
+        // Placement depends on the node names, not on the order they are listed in
+        final ConsistentHashRing<String> after = new ConsistentHashRing<>(nodes("p2", "p1", "default"), 128);
+        int moved = 0;
+        for (int i = 0; i < RECIPIENTS; i++) {
+            final String recipient = "recipient" + i;
+            if (!before.nodeFor(recipient).equals(after.nodeFor(recipient))) {
+                assertEquals("p2", after.nodeFor(recipient));
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - RECIPIENTS / 3) < RECIPIENTS / 15, String.valueOf(moved));
+    }
+
+    private static Map<String, String> nodes(String... names) {
+        final Map<String, String> nodes = new LinkedHashMap<>();
+        for (String name : names) {
+            nodes.put(name, name);
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,124 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.EmptyInboxFilter;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the counting Bloom filter that lets MessengerApiServiceImpl skip polls of empty inboxes.
+ */
+public class EmptyInboxFilterTest {
+    private static final int RECIPIENTS = 10_000;
+
+    @Test
+    public void testTracksUnreadMessages() {
+        final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        final EmptyInboxFilter filter = filter(mongoTemplate);
+        when(mongoTemplate.aggregateStream(any(Aggregation.class), eq(SimpleMessageDocument.class), eq(UnreadCounterDocument.class)))
+                .thenReturn(iterator(Arrays.asList(new UnreadCounterDocument("colorado", 2))));
+        // Every poll is queried until the filter is built
+        assertFalse(filter.isReady());
+        assertFalse(filter.isEmpty("utah"));
+
+        filter.rebuild();
+        assertTrue(filter.isReady());
+        assertFalse(filter.isEmpty("colorado"));
+        assertTrue(filter.isEmpty("utah"));
+
+        filter.add("utah", 1);
+        assertFalse(filter.isEmpty("utah"));
+        filter.remove(filter.generation(), "utah", 1);
+        assertTrue(filter.isEmpty("utah"));
+        filter.remove(filter.generation(), "colorado", 1);
+        assertFalse(filter.isEmpty("colorado"));
+        filter.remove(filter.generation(), "colorado", 1);
+        assertTrue(filter.isEmpty("colorado"));
+    }
+
+    @Test
+    public void testRebuildNeverUndercounts() {
+        final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        final EmptyInboxFilter filter = filter(mongoTemplate);
+        when(mongoTemplate.aggregateStream(any(Aggregation.class), eq(SimpleMessageDocument.class), eq(UnreadCounterDocument.class)))
+                .thenReturn(iterator(Arrays.asList(new UnreadCounterDocument("colorado", 1))));
+        filter.rebuild();
+        final long generation = filter.generation();
+
+        // A message stored while the next build runs, which the aggregation doesn't see, is still counted
+        when(mongoTemplate.aggregateStream(any(Aggregation.class), eq(SimpleMessageDocument.class), eq(UnreadCounterDocument.class)))
+                .thenAnswer(invocation -> {
+                    filter.add("utah", 1);
+                    return iterator(Arrays.asList(new UnreadCounterDocument("colorado", 1)));
+                });
+        filter.rebuild();
+        assertFalse(filter.isEmpty("utah"));
+        // Flipped before the build, which may already have left it out
+        filter.remove(generation, "colorado", 1);
+        assertFalse(filter.isEmpty("colorado"));
+    }
+
+    @Test
+    public void testRulesOutMostEmptyInboxes() {
+        final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        final EmptyInboxFilter filter = filter(mongoTemplate);
+        when(mongoTemplate.aggregateStream(any(Aggregation.class), eq(SimpleMessageDocument.class), eq(UnreadCounterDocument.class)))
+                .thenReturn(iterator(Collections.emptyList()));
+        filter.rebuild();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            filter.add("unread" + i, 1);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < RECIPIENTS; i++) {
+            assertFalse(filter.isEmpty("unread" + i));
+            if (!filter.isEmpty("empty" + i)) {
+                falsePositives++;
+            }
+        }
+        // 3 hashes over 200k cells for 10k recipients, about 0.3% expected
+        assertTrue(falsePositives < RECIPIENTS / 50, String.valueOf(falsePositives));
+    }
+
+    private static EmptyInboxFilter filter(MongoTemplate mongoTemplate) {
+        final EmptyInboxFilter filter = new EmptyInboxFilter();
+        ReflectionTestUtils.setField(filter, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(filter, "cellCount", 200_000);
+        ReflectionTestUtils.setField(filter, "hashes", 3);
+        return filter;
+    }
+
+    private static CloseableIterator<UnreadCounterDocument> iterator(List<UnreadCounterDocument> counts) {
+        final Iterator<UnreadCounterDocument> iterator = counts.iterator();
+        return new CloseableIterator<UnreadCounterDocument>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public UnreadCounterDocument next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
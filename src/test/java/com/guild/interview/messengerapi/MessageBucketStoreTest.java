@@ -0,0 +1,177 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.MessageBucketStore;
+import com.guild.interview.messengerapi.dao.MessengerApiRepositoryImpl;
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageBucketDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for bucketed storage through MessengerApiRepositoryImpl. Mongo is mocked.
+ */
+public class MessageBucketStoreTest {
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private MongoTemplate mongoTemplate;
+    private MessageBucketStore messageBucketStore;
+    private MessengerApiRepositoryImpl messengerApiRepository;
+
+    @BeforeEach
+    public void setup() {
+        mongoTemplate = mock(MongoTemplate.class);
+        messageBucketStore = new MessageBucketStore();
+        ReflectionTestUtils.setField(messageBucketStore, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(messageBucketStore, "environment", new MockEnvironment());
+        ReflectionTestUtils.setField(messageBucketStore, "period", ChronoUnit.HOURS);
+        ReflectionTestUtils.setField(messageBucketStore, "maxMessages", 2);
+
+        messengerApiRepository = new MessengerApiRepositoryImpl();
+        ReflectionTestUtils.setField(messengerApiRepository, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(messengerApiRepository, "messageBucketStore", messageBucketStore);
+    }
+
+    @Test
+    public void testFindPageSortsEachPeriod() {
+        final long hour = System.currentTimeMillis() / HOUR_MILLIS * HOUR_MILLIS;
+        final String id1 = id(hour - HOUR_MILLIS + 1000);
+        final String id2 = id(hour + 1000);
+        final String id3 = id(hour + 2000);
+        final String id4 = id(hour + 3000);
+        // The current hour filled one bucket and continued in a second, with a late append out of order
+        final MessageBucketDocument full = bucket("b1", new Date(hour), message(id2, "denver"), message(id4, "denver"));
+        final MessageBucketDocument overflow = bucket("b2", new Date(hour), message(id3, "denver"));
+        final MessageBucketDocument previous = bucket("b3", new Date(hour - HOUR_MILLIS), message(id1, "denver"));
+        when(mongoTemplate.stream(any(Query.class), eq(MessageBucketDocument.class))).thenReturn(iterator(full, overflow, previous));
+
+        final List<SimpleMessageDocument> page = messengerApiRepository.findPage("colorado", null, null, null, null, 3);
+        assertEquals(Arrays.asList(id4, id3, id2), page.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList()));
+        assertEquals("colorado", page.get(0).getRecipient());
+    }
+
+    @Test
+    public void testFindPageContinuesAfterCursor() {
+        final long hour = System.currentTimeMillis() / HOUR_MILLIS * HOUR_MILLIS;
+        final String id1 = id(hour - HOUR_MILLIS + 1000);
+        final String id2 = id(hour + 1000);
+        final String id3 = id(hour + 2000);
+        when(mongoTemplate.stream(any(Query.class), eq(MessageBucketDocument.class))).thenReturn(iterator(
+                bucket("b1", new Date(hour), message(id2, "denver"), message(id3, "boulder")),
+                bucket("b2", new Date(hour - HOUR_MILLIS), message(id1, "denver"))));
+
+        final List<SimpleMessageDocument> page = messengerApiRepository.findPage("colorado", "denver", null, null, new MessageCursor(id3), 10);
+        assertEquals(Arrays.asList(id2, id1), page.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testFindSinceReadsOldestPeriodsFirst() {
+        final long hour = System.currentTimeMillis() / HOUR_MILLIS * HOUR_MILLIS - HOUR_MILLIS;
+        final String id1 = id(hour - HOUR_MILLIS + 1000);
+        final String id2 = id(hour + 1000);
+        final String id3 = id(hour + 2000);
+        final String id4 = id(hour + 3000);
+        final String id5 = id(hour + HOUR_MILLIS + 1000);
+        when(mongoTemplate.stream(any(Query.class), eq(MessageBucketDocument.class))).thenReturn(iterator(
+                bucket("b1", new Date(hour - HOUR_MILLIS), message(id1, "denver")),
+                bucket("b2", new Date(hour), message(id2, "denver"), message(id4, "denver")),
+                bucket("b3", new Date(hour), message(id3, "boulder")),
+                bucket("b4", new Date(hour + HOUR_MILLIS), message(id5, "denver"))));
+
+        // The cursor's period is read whole and sorted, the page ends before the next one is needed
+        final List<SimpleMessageDocument> page = messengerApiRepository.findSince("colorado", new MessageCursor(id2),
+                new Date(hour + 2 * HOUR_MILLIS), 2);
+        assertEquals(Arrays.asList(id3, id4), page.stream().map(SimpleMessageDocument::getId).collect(Collectors.toList()));
+        assertEquals("colorado", page.get(0).getRecipient());
+    }
+
+    @Test
+    public void testMarkAsReadCountsOnlyFlippedMessages() {
+        final long now = System.currentTimeMillis();
+        final SimpleMessageDocument unread = message(id(now), "denver");
+        final SimpleMessageDocument alreadyRead = message(id(now + 1000), "denver");
+        alreadyRead.setMessageStatus(MessageStatus.READ);
+        final SimpleMessageDocument notRequested = message(id(now + 2000), "denver");
+        final BulkOperations counterOperations = mock(BulkOperations.class, Answers.RETURNS_SELF);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(UnreadCounterDocument.class))).thenReturn(counterOperations);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(ConversationSummaryDocument.class)))
+                .thenReturn(mock(BulkOperations.class, Answers.RETURNS_SELF));
+        when(mongoTemplate.find(any(Query.class), eq(MessageBucketDocument.class)))
+                .thenReturn(Collections.singletonList(bucket("b1", new Date(now), (SimpleMessageDocument[]) null)));
+        // The bucket before the update: only messages that were UNREAD and requested were flipped by this call
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), eq(MessageBucketDocument.class)))
+                .thenReturn(bucket("b1", new Date(now), unread, alreadyRead, notRequested));
+
+        final long read = messengerApiRepository.markAsRead("colorado", Arrays.asList(
+                message(unread.getId(), "denver"), message(alreadyRead.getId(), "denver")));
+        assertEquals(1, read);
+        verify(counterOperations).updateOne(any(Query.class), eq(new Update().inc("unread", -1L).inc("version", 1)));
+    }
+
+    @Test
+    public void testRejectsWriteBehind() {
+        ReflectionTestUtils.setField(messageBucketStore, "environment", new MockEnvironment().withProperty("messenger.write-behind.enabled", "true"));
+        assertThrows(IllegalStateException.class, messageBucketStore::start);
+    }
+
+    private static String id(long millis) {
+        return new ObjectId(new Date(millis)).toHexString();
+    }
+
+    private static SimpleMessageDocument message(String id, String sender) {
+        return new SimpleMessageDocument(id, "hello world", null, sender, MessageStatus.UNREAD, new ObjectId(id).getDate(), null);
+    }
+
+    private static MessageBucketDocument bucket(String id, Date start, SimpleMessageDocument... messages) {
+        return new MessageBucketDocument(id, "colorado", start, messages == null ? 0 : messages.length,
+                messages == null ? null : Arrays.asList(messages));
+    }
+
+    private static CloseableIterator<MessageBucketDocument> iterator(MessageBucketDocument... buckets) {
+        final Iterator<MessageBucketDocument> iterator = Arrays.asList(buckets).iterator();
+        return new CloseableIterator<MessageBucketDocument>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public MessageBucketDocument next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,85 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.model.MessagesStoredEvent;
+import com.guild.interview.messengerapi.service.MessageNotificationHub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the in-process registry of clients waiting for new messages.
+ */
+public class MessageNotificationHubTest {
+    private MessageNotificationHub hub;
+
+    @BeforeEach
+    public void setUp() {
+        hub = new MessageNotificationHub();
+        ReflectionTestUtils.setField(hub, "threads", 2);
+        hub.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        hub.stop();
+    }
+
+    @Test
+    public void testNotifiesListenersOfStoredRecipients() throws InterruptedException {
+        final CountDownLatch colorado = new CountDownLatch(2);
+        final AtomicInteger utah = new AtomicInteger();
+        hub.subscribe("colorado", colorado::countDown);
+        hub.subscribe("colorado", colorado::countDown);
+        hub.subscribe("utah", utah::incrementAndGet);
+
+        hub.onMessagesStored(new MessagesStoredEvent(new HashSet<>(Arrays.asList("colorado", "denver"))));
+        assertTrue(colorado.await(5, TimeUnit.SECONDS));
+        hub.stop();
+        assertTrue(awaitTermination());
+        assertEquals(0, utah.get());
+    }
+
+    @Test
+    public void testUnsubscribeRemovesEmptyRecipients() throws InterruptedException {
+        final AtomicInteger notified = new AtomicInteger();
+        final Runnable first = hub.subscribe("colorado", notified::incrementAndGet);
+        final Runnable second = hub.subscribe("colorado", notified::incrementAndGet);
+
+        first.run();
+        assertTrue(listeners().containsKey("colorado"));
+        second.run();
+        // Nothing is kept for a recipient nobody waits on any more, and unsubscribing twice is harmless
+        assertFalse(listeners().containsKey("colorado"));
+        second.run();
+        assertTrue(listeners().isEmpty());
+
+        hub.onMessagesStored(new MessagesStoredEvent(Collections.singleton("colorado")));
+        hub.stop();
+        assertTrue(awaitTermination());
+        assertEquals(0, notified.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> listeners() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(hub, "listeners");
+    }
+
+    // Waits for listeners already running to finish before checking what ran
+    private boolean awaitTermination() throws InterruptedException {
+        return ((ExecutorService) ReflectionTestUtils.getField(hub, "executor")).awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
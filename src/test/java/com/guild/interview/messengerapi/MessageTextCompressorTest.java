@@ -0,0 +1,101 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.MessageTextCompressor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.MessageTextCodec;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for compressing message bodies on write and inflating them on read.
+ */
+public class MessageTextCompressorTest {
+    private static final String LARGE_TEXT = IntStream.range(0, 100)
+            .mapToObj(i -> "{\"sku\":\"SKU-" + i + "\",\"quantity\":" + (i % 5) + ",\"status\":\"ALLOCATED\"}")
+            .collect(Collectors.joining(",", "[", "]"));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testCompressesLargeBodies() {
+        final SimpleMessageDocument document = compressor(true, "").onBeforeConvert(message(LARGE_TEXT), "messages");
+
+        assertNotNull(document.getCompressedText());
+        assertEquals(MessageTextCodec.DEFLATE, document.getTextCodec());
+        assertTrue(document.getCompressedText().length < LARGE_TEXT.length() / 2);
+        // The body is still readable from the document that was written
+        assertEquals(LARGE_TEXT, document.getText());
+    }
+
+    @Test
+    public void testInflatesBodyWhenRead() {
+        final SimpleMessageDocument written = compressor(true, "").onBeforeConvert(message(LARGE_TEXT), "messages");
+        final SimpleMessageDocument read = message(null);
+        read.compressText(written.getCompressedText(), written.getTextCodec());
+
+        assertEquals(LARGE_TEXT, read.getText());
+        read.setText("edited");
+        assertEquals("edited", read.getText());
+        assertNull(read.getCompressedText());
+        assertNull(read.getTextCodec());
+    }
+
+    @Test
+    public void testLeavesSmallBodiesAndDisabledCompressionAlone() {
+        assertNull(compressor(true, "").onBeforeConvert(message("hello"), "messages").getCompressedText());
+        assertNull(compressor(false, "").onBeforeConvert(message(LARGE_TEXT), "messages").getCompressedText());
+    }
+
+    @Test
+    public void testCompressesAgainstDictionary() throws IOException {
+        final Path dictionary = Files.write(directory.resolve("messages.dict"), LARGE_TEXT.getBytes(StandardCharsets.UTF_8));
+        final SimpleMessageDocument plain = compressor(true, "").onBeforeConvert(message(LARGE_TEXT), "messages");
+        final SimpleMessageDocument withDictionary = compressor(true, dictionary.toString()).onBeforeConvert(message(LARGE_TEXT), "messages");
+
+        assertTrue(withDictionary.getCompressedText().length < plain.getCompressedText().length);
+        assertEquals(LARGE_TEXT, MessageTextCodec.inflate(withDictionary.getCompressedText(), MessageTextCodec.DEFLATE));
+    }
+
+    @Test
+    public void testRejectsUnknownDictionaryAndCodec() {
+        final byte[] unknownDictionary = "not registered anywhere".getBytes(StandardCharsets.UTF_8);
+        final byte[] compressed = MessageTextCodec.deflate(LARGE_TEXT, unknownDictionary, 6);
+
+        assertThrows(IllegalStateException.class, () -> MessageTextCodec.inflate(compressed, MessageTextCodec.DEFLATE));
+        assertThrows(IllegalStateException.class, () -> MessageTextCodec.inflate(compressed, "lz4"));
+        MessageTextCodec.registerDictionary(unknownDictionary);
+        assertEquals(LARGE_TEXT, MessageTextCodec.inflate(compressed, MessageTextCodec.DEFLATE));
+    }
+
+    private static MessageTextCompressor compressor(boolean enabled, String dictionary) {
+        final MessageTextCompressor compressor = new MessageTextCompressor();
+        ReflectionTestUtils.setField(compressor, "enabled", enabled);
+        ReflectionTestUtils.setField(compressor, "thresholdBytes", 1024);
+        ReflectionTestUtils.setField(compressor, "level", 6);
+        ReflectionTestUtils.setField(compressor, "dictionaryPath", dictionary);
+        ReflectionTestUtils.setField(compressor, "previousDictionaryPaths", new String[0]);
+        compressor.start();
+        return compressor;
+    }
+
+    private static SimpleMessageDocument message(String text) {
+        return new SimpleMessageDocument("5f7a1c2e9d3b4a0012345678", text, "colorado", "denver", MessageStatus.UNREAD, new Date(), null);
+    }
+}
@@ -0,0 +1,198 @@
+package com.guild.interview.messengerapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.guild.interview.messengerapi.dao.MessageWriteBuffer;
+import com.guild.interview.messengerapi.dao.WriteBufferFullException;
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import org.bson.BsonDocument;
+import org.bson.BsonMaximumSizeExceededException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the write-behind buffer. Mongo is mocked, the journal is written to a temporary directory.
+ */
+public class MessageWriteBufferTest {
+    @TempDir
+    Path journalDir;
+
+    private MongoTemplate mongoTemplate;
+    private BulkOperations bulkOperations;
+    private BulkOperations counterOperations;
+    private BulkOperations conversationOperations;
+    private MessageWriteBuffer messageWriteBuffer;
+
+    @BeforeEach
+    public void setup() {
+        mongoTemplate = mock(MongoTemplate.class);
+        bulkOperations = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(eq(BulkOperations.BulkMode.UNORDERED), eq(SimpleMessageDocument.class))).thenReturn(bulkOperations);
+        when(bulkOperations.insert(anyList())).thenReturn(bulkOperations);
+        counterOperations = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(eq(BulkOperations.BulkMode.UNORDERED), eq(UnreadCounterDocument.class))).thenReturn(counterOperations);
+        conversationOperations = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(eq(BulkOperations.BulkMode.UNORDERED), eq(ConversationSummaryDocument.class))).thenReturn(conversationOperations);
+
+        messageWriteBuffer = new MessageWriteBuffer();
+        ReflectionTestUtils.setField(messageWriteBuffer, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(messageWriteBuffer, "eventPublisher", mock(ApplicationEventPublisher.class));
+        ReflectionTestUtils.setField(messageWriteBuffer, "batchSize", 2);
+        ReflectionTestUtils.setField(messageWriteBuffer, "maxDelayMillis", 60_000L);
+        ReflectionTestUtils.setField(messageWriteBuffer, "capacity", 10);
+        ReflectionTestUtils.setField(messageWriteBuffer, "journalDir", journalDir.toString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFlushesWhenBatchIsFull() throws Exception {
+        messageWriteBuffer.start();
+        messageWriteBuffer.enqueue(document("id1"));
+        messageWriteBuffer.enqueue(document("id2"));
+
+        // Batch size is reached long before the max delay, so both messages go out in one insert
+        final ArgumentCaptor<List<SimpleMessageDocument>> inserted = ArgumentCaptor.forClass(List.class);
+        verify(bulkOperations, timeout(5_000)).insert(inserted.capture());
+        assertEquals(Arrays.asList("id1", "id2"), inserted.getValue().stream().map(SimpleMessageDocument::getId).collect(Collectors.toList()));
+        // Both messages are added to the recipient's unread counter with one update
+        verify(counterOperations, timeout(5_000)).upsert(any(Query.class), eq(new Update().inc("unread", 2L).inc("version", 1)));
+        // and to the conversation, whose last message becomes the newer one
+        verify(conversationOperations, timeout(5_000)).updateOne(any(Query.class), eq(new Update().set("lastMessageId", "id2")
+                .set("lastText", "hello world").set("lastTimestamp", inserted.getValue().get(1).getTimestamp())));
+        messageWriteBuffer.stop();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplaysJournalOnStart() throws Exception {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final Path leftover = journalDir.resolve("segment-1-000000.journal");
+        Files.write(leftover, Arrays.asList(objectMapper.writeValueAsString(document("id1")), "{\"id\":\"trunc"));
+
+        messageWriteBuffer.start();
+
+        final ArgumentCaptor<List<SimpleMessageDocument>> inserted = ArgumentCaptor.forClass(List.class);
+        verify(bulkOperations).insert(inserted.capture());
+        // The truncated entry is skipped, the complete one is written and the segment removed
+        assertEquals(1, inserted.getValue().size());
+        assertEquals("id1", inserted.getValue().get(0).getId());
+        assertFalse(Files.exists(leftover));
+        messageWriteBuffer.stop();
+    }
+
+    @Test
+    public void testDeadLettersRejectedMessages() throws Exception {
+        final BulkWriteError invalid = new BulkWriteError(121, "Document failed validation", new BsonDocument(), 1);
+        when(bulkOperations.execute()).thenThrow(new BulkOperationException("Bulk write failed",
+                new MongoBulkWriteException(BulkWriteResult.unacknowledged(), Collections.singletonList(invalid), null, new ServerAddress())));
+        messageWriteBuffer.start();
+        messageWriteBuffer.enqueue(document("id1"));
+        messageWriteBuffer.enqueue(document("id2"));
+
+        // Only the accepted message is counted, the rejected one is set aside rather than retried
+        verify(counterOperations, timeout(5_000)).upsert(any(Query.class), eq(new Update().inc("unread", 1L).inc("version", 1)));
+        messageWriteBuffer.stop();
+        verify(bulkOperations, times(1)).execute();
+        final List<String> deadLetters = Files.readAllLines(journalDir.resolve("dead-letter.journal"));
+        assertEquals(1, deadLetters.size());
+        assertTrue(deadLetters.get(0).contains("\"id2\""));
+    }
+
+    @Test
+    public void testInsertsOneAtATimeWhenBatchCantBeEncoded() throws Exception {
+        when(bulkOperations.execute()).thenThrow(new BsonMaximumSizeExceededException("Payload document size is larger than maximum"));
+        when(mongoTemplate.insert(argThat((SimpleMessageDocument document) -> "id2".equals(document.getId()))))
+                .thenThrow(new BsonMaximumSizeExceededException("Payload document size is larger than maximum"));
+        messageWriteBuffer.start();
+        messageWriteBuffer.enqueue(document("id1"));
+        messageWriteBuffer.enqueue(document("id2"));
+
+        verify(counterOperations, timeout(5_000)).upsert(any(Query.class), eq(new Update().inc("unread", 1L).inc("version", 1)));
+        verify(mongoTemplate).insert(argThat((SimpleMessageDocument document) -> "id1".equals(document.getId())));
+        assertTrue(Files.readAllLines(journalDir.resolve("dead-letter.journal")).get(0).contains("\"id2\""));
+
+        // The flusher is still running
+        messageWriteBuffer.enqueue(document("id3"));
+        messageWriteBuffer.enqueue(document("id4"));
+        verify(mongoTemplate, timeout(5_000)).insert(argThat((SimpleMessageDocument document) -> "id4".equals(document.getId())));
+        messageWriteBuffer.stop();
+    }
+
+    @Test
+    public void testRetriesUntilMongoIsAvailable() throws Exception {
+        ReflectionTestUtils.setField(messageWriteBuffer, "maxDelayMillis", 10L);
+        when(bulkOperations.execute())
+                .thenThrow(new DataAccessResourceFailureException("Mongo is unavailable"))
+                .thenThrow(new DataAccessResourceFailureException("Mongo is unavailable"))
+                .thenReturn(null);
+        messageWriteBuffer.start();
+        messageWriteBuffer.enqueue(document("id1"));
+
+        verify(counterOperations, timeout(5_000)).upsert(any(Query.class), eq(new Update().inc("unread", 1L).inc("version", 1)));
+        verify(bulkOperations, times(3)).execute();
+        messageWriteBuffer.stop();
+        assertFalse(Files.exists(journalDir.resolve("dead-letter.journal")));
+    }
+
+    @Test
+    public void testEnqueueFailsWhileBufferIsFull() throws Exception {
+        ReflectionTestUtils.setField(messageWriteBuffer, "batchSize", 10);
+        ReflectionTestUtils.setField(messageWriteBuffer, "capacity", 1);
+        ReflectionTestUtils.setField(messageWriteBuffer, "enqueueTimeoutMillis", 50L);
+        messageWriteBuffer.start();
+        messageWriteBuffer.enqueue(document("id1"));
+
+        // Nothing is flushed before max-delay-ms, so there is no room
+        assertThrows(WriteBufferFullException.class, () -> messageWriteBuffer.enqueue(document("id2")));
+        messageWriteBuffer.stop();
+    }
+
+    @Test
+    public void testRefusesToStartWithSync() {
+        // Replayed and retried messages can be older than a sync cursor
+        ReflectionTestUtils.setField(messageWriteBuffer, "syncEnabled", true);
+        assertThrows(IllegalStateException.class, () -> messageWriteBuffer.start());
+    }
+
+    private static SimpleMessageDocument document(String id) {
+        return new SimpleMessageDocument(id, "hello world", "colorado", "denver", MessageStatus.UNREAD, new Date(), null);
+    }
+}
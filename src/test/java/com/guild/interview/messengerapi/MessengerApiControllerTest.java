@@ -2,24 +2,57 @@ package com.guild.interview.messengerapi;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.guild.interview.messengerapi.dao.MessengerApiRepositoryImpl;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SendMessageResult;
 import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.SyncPage;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import com.guild.interview.messengerapi.service.MessageNotificationHub;
 import com.guild.interview.messengerapi.service.MessengerApiService;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.function.Consumer;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 
@@ -33,6 +66,9 @@ public class MessengerApiControllerTest {
     @MockBean
     private MessengerApiService messengerApiService;
 
+    @MockBean
+    private MessageNotificationHub messageNotificationHub;
+
     @Test
     public void testWriteMessage() throws Exception {
         final SimpleMessage request = new SimpleMessage("sender", "recipient", "hello world!");
@@ -42,6 +78,18 @@ public class MessengerApiControllerTest {
         verify(messengerApiService).sendMessage(request);
     }
 
+    @Test
+    public void testSendMessages_jsonArray() throws Exception {
+        final List<SimpleMessage> request = Arrays.asList(new SimpleMessage("sender", "recipient", "hello"), new SimpleMessage("sender", "recipient", "world"));
+        testSendMessages(request, "application/json", GSON.toJson(request));
+    }
+
+    @Test
+    public void testSendMessages_ndjson() throws Exception {
+        final List<SimpleMessage> request = Arrays.asList(new SimpleMessage("sender", "recipient", "hello"), new SimpleMessage("sender", "recipient", "world"));
+        testSendMessages(request, "application/x-ndjson", GSON.toJson(request.get(0)) + "\n" + GSON.toJson(request.get(1)) + "\n");
+    }
+
     @Test
     public void testGetUnreadMessages() throws Exception {
         final List<SimpleMessage> simpleMessages = Collections.singletonList(new SimpleMessage("sender", "recipient", "hello world!"));
@@ -51,6 +99,73 @@ public class MessengerApiControllerTest {
         assertEquals(simpleMessages, responseMessages);
     }
 
+    @Test
+    public void testGetInbox() throws Exception {
+        final List<ConversationSummary> inbox = Collections.singletonList(new ConversationSummary("sender", "hello world!", null, 2));
+        when(messengerApiService.getInbox("recipient", 20)).thenReturn(inbox);
+        final MvcResult mvcResult = this.controller.perform(get("http://localhost:8080/messenger/getInbox?recipient=recipient&limit=20")).andExpect(status().isOk()).andReturn();
+        assertEquals(inbox, GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<ConversationSummary>>(){}.getType()));
+    }
+
+    @Test
+    public void testPollUnreadMessages_availableImmediately() throws Exception {
+        final List<SimpleMessage> simpleMessages = Collections.singletonList(new SimpleMessage("sender", "recipient", "hello world!"));
+        when(messageNotificationHub.subscribe(eq("recipient"), any())).thenReturn(() -> { });
+        when(messengerApiService.getUnreadMessages("recipient")).thenReturn(simpleMessages);
+        final MvcResult asyncResult = this.controller.perform(get("http://localhost:8080/messenger/pollUnreadMessages?recipient=recipient"))
+                .andExpect(request().asyncStarted()).andReturn();
+        final MvcResult mvcResult = this.controller.perform(asyncDispatch(asyncResult)).andExpect(status().isOk()).andReturn();
+        List<SimpleMessage> responseMessages = GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SimpleMessage>>(){}.getType());
+        assertEquals(simpleMessages, responseMessages);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPollUnreadMessages_deliveredOnNotification() throws Exception {
+        final List<SimpleMessage> simpleMessages = Collections.singletonList(new SimpleMessage("sender", "recipient", "hello world!"));
+        final ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        when(messageNotificationHub.subscribe(eq("recipient"), listener.capture())).thenReturn(() -> { });
+        // Nothing unread when the poll starts, then a message arrives
+        when(messengerApiService.getUnreadMessages("recipient")).thenReturn(Collections.emptyList(), simpleMessages);
+        final MvcResult asyncResult = this.controller.perform(get("http://localhost:8080/messenger/pollUnreadMessages?recipient=recipient"))
+                .andExpect(request().asyncStarted()).andReturn();
+        listener.getValue().run();
+        final MvcResult mvcResult = this.controller.perform(asyncDispatch(asyncResult)).andExpect(status().isOk()).andReturn();
+        List<SimpleMessage> responseMessages = GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SimpleMessage>>(){}.getType());
+        assertEquals(simpleMessages, responseMessages);
+    }
+
+    @Test
+    public void testPollUnreadMessages_timeoutIsCapped() throws Exception {
+        when(messageNotificationHub.subscribe(eq("recipient"), any())).thenReturn(() -> { });
+        when(messengerApiService.getUnreadMessages("recipient")).thenReturn(Collections.emptyList());
+        final MvcResult asyncResult = this.controller.perform(get("http://localhost:8080/messenger/pollUnreadMessages?recipient=recipient&timeoutMillis=86400000"))
+                .andExpect(request().asyncStarted()).andReturn();
+        assertEquals(30000, asyncResult.getRequest().getAsyncContext().getTimeout());
+        final MvcResult negativeResult = this.controller.perform(get("http://localhost:8080/messenger/pollUnreadMessages?recipient=recipient&timeoutMillis=-1"))
+                .andExpect(request().asyncStarted()).andReturn();
+        assertEquals(1, negativeResult.getRequest().getAsyncContext().getTimeout());
+    }
+
+    @Test
+    public void testStreamUnreadMessages() throws Exception {
+        final SimpleMessage message = new SimpleMessage("sender", "recipient", "hello world!");
+        final ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        when(messageNotificationHub.subscribe(eq("recipient"), listener.capture())).thenReturn(() -> { });
+        doAnswer(invocation -> {
+            invocation.<Consumer<SimpleMessage>>getArgument(1).accept(message);
+            return null;
+        }).when(messengerApiService).streamUnreadMessages(eq("recipient"), any());
+        final MvcResult asyncResult = this.controller.perform(get("http://localhost:8080/messenger/streamUnreadMessages?recipient=recipient"))
+                .andExpect(request().asyncStarted()).andReturn();
+        // Sent when the stream opens and again when the recipient is notified
+        listener.getValue().run();
+        final String event = "event:message\ndata:" + GSON.toJson(message) + "\n\n";
+        assertEquals(event + event, asyncResult.getResponse().getContentAsString());
+        verify(messengerApiService, times(2)).streamUnreadMessages(eq("recipient"), any());
+        verify(messengerApiService, never()).getUnreadMessages(any());
+    }
+
     @Test
     public void testGetMessages_withSender() throws Exception {
         testGetMessages("denver", "http://localhost:8080/messenger/getMessages?sender=denver&recipient=colorado");
@@ -71,9 +186,137 @@ public class MessengerApiControllerTest {
         testGetMessagesWithinThirtyDays(null, "http://localhost:8080/messenger/getMessagesWithinThirtyDays?recipient=colorado");
     }
 
+    @SuppressWarnings("unchecked")
+    private void testSendMessages(List<SimpleMessage> request, String contentType, String body) throws Exception {
+        final List<SimpleMessage> received = new ArrayList<>();
+        when(messengerApiService.sendMessages(any())).thenAnswer(invocation -> {
+            ((Iterator<SimpleMessage>) invocation.getArgument(0)).forEachRemaining(received::add);
+            return Arrays.asList(new SendMessageResult(0, "id0", true, null), new SendMessageResult(1, "id1", true, null));
+        });
+        final MvcResult mvcResult = this.controller.perform(post("http://localhost:8080/messenger/sendMessages").contentType(contentType).content(body))
+                .andExpect(status().isOk()).andReturn();
+        assertEquals(request, received);
+        final List<SendMessageResult> results = GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SendMessageResult>>(){}.getType());
+        assertEquals("id1", results.get(1).getId());
+    }
+
+    @Test
+    public void testGetMessages_paged() throws Exception {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        final MessageCursor cursor = new MessageCursor(new ObjectId().toHexString());
+        final MessageCursor nextCursor = new MessageCursor(new ObjectId().toHexString());
+        when(messengerApiService.getRecentMessages("colorado", null, cursor, 10)).thenReturn(new MessagePage(response, nextCursor));
+        final MvcResult mvcResult = this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado&limit=10&cursor=" + cursor.encode()))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", nextCursor.encode()))
+                .andReturn();
+        assertEquals(response, GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    @Test
+    public void testGetMessages_notModified() throws Exception {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        when(messengerApiService.getMessagesVersion("colorado")).thenReturn(7L);
+        when(messengerApiService.getRecentMessages(eq("colorado"), any(), isNull(), isNull())).thenReturn(new MessagePage(response, null));
+        final String etag = this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        // Unchanged, so the messages aren't read again
+        this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag));
+        verify(messengerApiService, times(1)).getRecentMessages("colorado", null, null, null);
+        // Another page, or a new version, is returned in full
+        this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado&sender=denver").header("If-None-Match", etag))
+                .andExpect(status().isOk());
+        when(messengerApiService.getMessagesVersion("colorado")).thenReturn(8L);
+        this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado").header("If-None-Match", etag))
+                .andExpect(status().isOk());
+        verify(messengerApiService, times(2)).getRecentMessages("colorado", null, null, null);
+    }
+
+    @Test
+    public void testGetMessages_failedVersionBump() throws Exception {
+        // The version is read through the repository, with its counter writes failing
+        final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        final BulkOperations counterOperations = mock(BulkOperations.class, Answers.RETURNS_SELF);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(UnreadCounterDocument.class))).thenReturn(counterOperations);
+        when(mongoTemplate.findOne(any(Query.class), eq(UnreadCounterDocument.class))).thenReturn(new UnreadCounterDocument("colorado", 0, 7));
+        when(counterOperations.execute()).thenThrow(new DataAccessResourceFailureException("down"));
+        final MessengerApiRepositoryImpl repository = new MessengerApiRepositoryImpl();
+        ReflectionTestUtils.setField(repository, "mongoTemplate", mongoTemplate);
+        when(messengerApiService.getMessagesVersion("colorado")).thenAnswer(invocation -> repository.findVersion("colorado"));
+
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        when(messengerApiService.getRecentMessages(eq("colorado"), any(), isNull(), isNull())).thenReturn(new MessagePage(response, null));
+        final String etag = this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        // A message is stored but bumping the version fails, so the page is returned in full until it is bumped
+        repository.insertMessage(new SimpleMessageDocument(new ObjectId().toHexString(), "hello again", "colorado", "denver", MessageStatus.UNREAD, new Date(), null));
+        this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado").header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("ETag"));
+        verify(messengerApiService, times(2)).getRecentMessages("colorado", null, null, null);
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        final MessageCursor cursor = new MessageCursor(new ObjectId().toHexString());
+        final MessageCursor nextCursor = new MessageCursor(new ObjectId().toHexString());
+        when(messengerApiService.sync("colorado", cursor, null)).thenReturn(new SyncPage(response, nextCursor, true));
+        final MvcResult mvcResult = this.controller.perform(get("http://localhost:8080/messenger/sync?recipient=colorado&cursor=" + cursor.encode()))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Sync-Cursor", nextCursor.encode()))
+                .andExpect(header().string("X-More-Messages", "true"))
+                .andReturn();
+        assertEquals(response, GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SimpleMessage>>(){}.getType()));
+
+        // A recipient without messages has no cursor yet
+        when(messengerApiService.sync("utah", null, null)).thenReturn(new SyncPage(Collections.emptyList(), null, false));
+        this.controller.perform(get("http://localhost:8080/messenger/sync?recipient=utah"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Sync-Cursor"))
+                .andExpect(header().string("X-More-Messages", "false"));
+    }
+
+    @Test
+    public void testGetMessages_invalidCursor() throws Exception {
+        this.controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=colorado&cursor=not-a-cursor"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testGetMessagesWithinThirtyDays_withRange() throws Exception {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        final Date from = new Date(1600000000000L);
+        final Date to = new Date(1600086400000L);
+        when(messengerApiService.getMessagesInRange("colorado", null, from, to, null, null)).thenReturn(new MessagePage(response, null));
+        final MvcResult mvcResult = this.controller.perform(get("http://localhost:8080/messenger/getMessagesWithinThirtyDays?recipient=colorado&from=2020-09-13T12:26:40.000Z&to=2020-09-14T12:26:40.000Z"))
+                .andExpect(status().isOk()).andReturn();
+        assertEquals(response, GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamMessagesInRange() throws Exception {
+        final List<SimpleMessage> response = Arrays.asList(new SimpleMessage("denver", "colorado", "hello"), new SimpleMessage("denver", "colorado", "world"));
+        doAnswer(invocation -> {
+            response.forEach(invocation.getArgument(4, Consumer.class));
+            return null;
+        }).when(messengerApiService).streamMessagesInRange(eq("colorado"), eq("denver"), isNull(), isNull(), any());
+        final MvcResult asyncResult = this.controller.perform(get("http://localhost:8080/messenger/streamMessagesInRange?recipient=colorado&sender=denver"))
+                .andExpect(request().asyncStarted()).andReturn();
+        final MvcResult mvcResult = this.controller.perform(asyncDispatch(asyncResult)).andExpect(status().isOk()).andReturn();
+        assertEquals(response, GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
     private void testGetMessagesWithinThirtyDays(String sender, String url) throws Exception {
         final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
-        when(messengerApiService.getRecentWithinThirtyDays("colorado", sender)).thenReturn(response);
+        when(messengerApiService.getMessagesInRange("colorado", sender, null, null, null, null)).thenReturn(new MessagePage(response, null));
         final MvcResult mvcResult = this.controller.perform(get(url))
                 .andExpect(status().isOk()).andReturn();
         // Need to deserialize object of type List<SimpleMessage>. Gson (Google) library provides the Type class to accomplish this
@@ -85,7 +328,7 @@ public class MessengerApiControllerTest {
 
     private void testGetMessages(String sender, String url) throws Exception {
         final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
-        when(messengerApiService.getRecentMessages("colorado", sender)).thenReturn(response);
+        when(messengerApiService.getRecentMessages("colorado", sender, null, null)).thenReturn(new MessagePage(response, null));
         final MvcResult mvcResult = this.controller.perform(get(url))
                 .andExpect(status().isOk()).andReturn();
         // Need to deserialize object of type List<SimpleMessage>. Gson (Google) library provides the Type class to accomplish this
@@ -2,26 +2,47 @@ package com.guild.interview.messengerapi;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.guild.interview.messengerapi.dao.ConversationSummaryBackfill;
+import com.guild.interview.messengerapi.dao.MessageArchiver;
+import com.guild.interview.messengerapi.dao.MessageIdMigration;
+import com.guild.interview.messengerapi.dao.MessengerApiRepository;
+import com.guild.interview.messengerapi.dao.UnreadCounterBackfill;
+import com.guild.interview.messengerapi.model.ConversationSummary;
 import com.guild.interview.messengerapi.model.MessageStatus;
 import com.guild.interview.messengerapi.model.SimpleMessage;
 import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCount;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
 import java.lang.reflect.Type;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -31,7 +52,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  * This approach requires no actual Mongo instance and will run significantly faster due to the Mongo server running
  * directly in memory.
  */
-@SpringBootTest
+@SpringBootTest(properties = "messenger.archive.enabled=true")
 @AutoConfigureMockMvc
 public class MessengerApiIT {
     private static final long SINGLE_DAY_MILLIS = 1000 * 60 * 60 * 24;
@@ -46,6 +67,24 @@ public class MessengerApiIT {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private MessengerApiRepository messengerApiRepository;
+
+    @Autowired
+    private MessageIdMigration messageIdMigration;
+
+    @Autowired
+    private UnreadCounterBackfill unreadCounterBackfill;
+
+    @Autowired
+    private ConversationSummaryBackfill conversationSummaryBackfill;
+
+    @Autowired
+    private MessageArchiver messageArchiver;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
     @BeforeEach
     public void setupData() {
         if (!isInitialized) {
@@ -122,9 +161,31 @@ public class MessengerApiIT {
         assertEquals(41, response.size());
         // Entries 10-50 are from littleton to colorado
         for (int i = 10; i < 51; i++) {
-            // Order of insertion should be maintained
-            assertEquals("hello world" + i, response.get(i - 10).getText());
+            // They were stored in the same second, ids keep the later ones first
+            assertEquals("hello world" + (60 - i), response.get(i - 10).getText());
             assertEquals("littleton", response.get(i - 10).getSender());
+            assertEquals("colorado", response.get(i - 10).getRecipient());
+        }
+    }
+
+    @Test
+    public void testGetMessages_paged() throws Exception {
+        // Entries 10-50 from littleton were stored in the same second, so paging relies on the ids to keep them in order
+        final List<SimpleMessage> allPages = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final String url = "http://localhost:8080/messenger/getMessages?sender=littleton&recipient=colorado&limit=20"
+                    + (cursor == null ? "" : "&cursor=" + cursor);
+            final MvcResult mvcResult = controller.perform(get(url)).andExpect(status().isOk()).andReturn();
+            allPages.addAll(GSON.fromJson(mvcResult.getResponse().getContentAsString(), LIST_TYPE));
+            cursor = mvcResult.getResponse().getHeader("X-Next-Cursor");
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(41, allPages.size());
+        for (int i = 10; i < 51; i++) {
+            assertEquals("hello world" + (60 - i), allPages.get(i - 10).getText());
         }
     }
 
@@ -134,14 +195,18 @@ public class MessengerApiIT {
         List<SimpleMessage> response = GSON.fromJson(mvcResult.getResponse().getContentAsString(), LIST_TYPE);
         assertEquals(100, response.size());
         // We stored the first 10 entries in reverse timestamp order (each entry is closer to current date starting with #9)
+        // Sender is read back when not filtered on, recipient comes from the query
+        assertEquals("denver", response.get(0).getSender());
+        assertEquals("colorado", response.get(0).getRecipient());
         int masterCounter = 0;
         for (int i = 9; i >= 0; i--) {
             assertEquals("hello world" + i, response.get(masterCounter).getText());
             masterCounter++;
         }
 
+        // Followed by the older entries, which were stored in the same second and come back latest first
         for (int i = 10; i < 100; i++) {
-            assertEquals("hello world" + i, response.get(i).getText());
+            assertEquals("hello world" + (114 - i), response.get(i).getText());
         }
     }
 
@@ -158,6 +223,17 @@ public class MessengerApiIT {
         assertEquals("hello world0", response.get(4).getText());
     }
 
+    @Test
+    public void testStreamMessagesInRange_withSender() throws Exception {
+        final MvcResult asyncResult = controller.perform(get("http://localhost:8080/messenger/streamMessagesInRange?sender=lakewood&recipient=colorado")).andReturn();
+        final MvcResult mvcResult = controller.perform(asyncDispatch(asyncResult)).andExpect(status().isOk()).andReturn();
+        List<SimpleMessage> response = GSON.fromJson(mvcResult.getResponse().getContentAsString(), LIST_TYPE);
+        assertEquals(5, response.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("hello world" + (4 - i), response.get(i).getText());
+        }
+    }
+
     @Test
     public void testGetRecentWithinThirtyDays_withoutSender() throws Exception {
         final MvcResult mvcResult = controller.perform(get("http://localhost:8080/messenger/getMessagesWithinThirtyDays?sende&recipient=colorado")).andExpect(status().isOk()).andReturn();
@@ -169,4 +245,180 @@ public class MessengerApiIT {
             position++;
         }
     }
+
+    @Test
+    public void testIndexesCreatedOnStartup() {
+        final List<String> indexNames = mongoTemplate.indexOps(SimpleMessageDocument.class).getIndexInfo().stream()
+                .map(IndexInfo::getName)
+                .collect(Collectors.toList());
+        assertTrue(indexNames.contains("recipient_id"));
+        assertTrue(indexNames.contains("recipient_sender_id"));
+        assertTrue(indexNames.contains("recipient_unread"));
+    }
+
+    @Test
+    public void testClaimUnread() {
+        final SimpleMessageDocument unread = new SimpleMessageDocument();
+        unread.setMessageStatus(MessageStatus.UNREAD);
+        unread.setRecipient("golden");
+        unread.setSender("boulder");
+        unread.setText("hello world300");
+        unread.setTimestamp(new Date());
+        mongoTemplate.insert(unread);
+
+        final List<SimpleMessageDocument> claimed = messengerApiRepository.claimUnread("golden");
+        assertEquals(1, claimed.size());
+        assertEquals("hello world300", claimed.get(0).getText());
+        assertEquals(MessageStatus.READ, claimed.get(0).getMessageStatus());
+        // The token only lives for the claim
+        assertNull(mongoTemplate.findById(claimed.get(0).getId(), SimpleMessageDocument.class).getClaimToken());
+        // A second claim must not deliver the same message again
+        assertEquals(0, messengerApiRepository.claimUnread("golden").size());
+    }
+
+    @Test
+    public void testUnreadCount() throws Exception {
+        final SimpleMessage requestMessage = new SimpleMessage("stapleton", "englewood", "hello world600");
+        for (int i = 0; i < 2; i++) {
+            controller.perform(post("http://localhost:8080/messenger/sendMessage").contentType("application/json").content(GSON.toJson(requestMessage)))
+                    .andExpect(status().isOk());
+        }
+        assertEquals(new UnreadCount("englewood", 2), getUnreadCount("englewood"));
+        // Counting leaves the messages unread, reading them clears the count
+        final MvcResult mvcResult = controller.perform(get("http://localhost:8080/messenger/getUnreadMessages?recipient=englewood")).andExpect(status().isOk()).andReturn();
+        final List<SimpleMessage> unread = GSON.fromJson(mvcResult.getResponse().getContentAsString(), LIST_TYPE);
+        assertEquals(2, unread.size());
+        assertEquals(new UnreadCount("englewood", 0), getUnreadCount("englewood"));
+        // A recipient that never received anything has no counter
+        assertEquals(new UnreadCount("nobody", 0), getUnreadCount("nobody"));
+    }
+
+    @Test
+    public void testBackfillUnreadCounters() throws Exception {
+        // The seeded messages were inserted directly, so only the backfill counts them
+        final long unread = mongoTemplate.count(Query.query(where("recipient").is("colorado").and("messageStatus").is(MessageStatus.UNREAD)), SimpleMessageDocument.class);
+        unreadCounterBackfill.backfill();
+        assertEquals(new UnreadCount("colorado", unread), getUnreadCount("colorado"));
+    }
+
+    @Test
+    public void testInbox() throws Exception {
+        for (SimpleMessage message : Arrays.asList(new SimpleMessage("golden", "parker", "hello world700"),
+                new SimpleMessage("boulder", "parker", "hello world701"), new SimpleMessage("golden", "parker", "hello world702"))) {
+            controller.perform(post("http://localhost:8080/messenger/sendMessage").contentType("application/json").content(GSON.toJson(message)))
+                    .andExpect(status().isOk());
+        }
+        List<ConversationSummary> inbox = getInbox("parker");
+        // Most recent conversation first, each with its latest message
+        assertEquals(Arrays.asList("golden", "boulder"), inbox.stream().map(ConversationSummary::getSender).collect(Collectors.toList()));
+        assertEquals("hello world702", inbox.get(0).getLastText());
+        assertEquals(2, inbox.get(0).getUnread());
+        assertEquals(1, inbox.get(1).getUnread());
+
+        // Reading one conversation only clears that conversation's unread count
+        controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=parker&sender=golden")).andExpect(status().isOk());
+        inbox = getInbox("parker");
+        assertEquals(0, inbox.get(0).getUnread());
+        assertEquals(1, inbox.get(1).getUnread());
+    }
+
+    @Test
+    public void testBackfillConversationSummaries() throws Exception {
+        // The seeded messages were inserted directly, so only the backfill summarises them
+        conversationSummaryBackfill.backfill();
+        final List<ConversationSummary> inbox = getInbox("colorado");
+        assertEquals(Arrays.asList("denver", "lakewood", "littleton"), inbox.stream().map(ConversationSummary::getSender).collect(Collectors.toList()));
+        assertEquals("hello world9", inbox.get(0).getLastText());
+        assertEquals("hello world4", inbox.get(1).getLastText());
+    }
+
+    @Test
+    public void testSentMessageIdsAreTimeOrdered() throws Exception {
+        final SimpleMessage requestMessage = new SimpleMessage("stapleton", "wheatridge", "hello world400");
+        controller.perform(post("http://localhost:8080/messenger/sendMessage").contentType("application/json").content(GSON.toJson(requestMessage)))
+                .andExpect(status().isOk());
+        final Document stored = mongoTemplate.getCollection("messages").find(new Document("recipient", "wheatridge")).first();
+        // Stored as a native ObjectId carrying the send time
+        final ObjectId id = stored.getObjectId("_id");
+        assertEquals(stored.getDate("timestamp").getTime() / 1000, id.getTimestamp());
+    }
+
+    @Test
+    public void testMigrateLegacyIds() throws Exception {
+        final Date sent = new Date(System.currentTimeMillis() - SINGLE_DAY_MILLIS);
+        mongoTemplate.insert(new SimpleMessageDocument(UUID.randomUUID().toString(), "hello world500", "arvada", "denver", MessageStatus.UNREAD, sent, null));
+        assertEquals(1, messageIdMigration.migrate());
+        // Running again finds nothing left to migrate
+        assertEquals(0, messageIdMigration.migrate());
+
+        final List<SimpleMessageDocument> migrated = mongoTemplate.find(Query.query(where("recipient").is("arvada")), SimpleMessageDocument.class);
+        assertEquals(1, migrated.size());
+        assertTrue(ObjectId.isValid(migrated.get(0).getId()));
+        assertEquals(sent.getTime() / 1000, new ObjectId(migrated.get(0).getId()).getTimestamp());
+        final MvcResult mvcResult = controller.perform(get("http://localhost:8080/messenger/getMessages?recipient=arvada")).andExpect(status().isOk()).andReturn();
+        List<SimpleMessage> response = GSON.fromJson(mvcResult.getResponse().getContentAsString(), LIST_TYPE);
+        assertEquals("hello world500", response.get(0).getText());
+    }
+
+    @Test
+    public void testMigrateLegacyIdsBeforeBackfill() throws Exception {
+        final Date sent = new Date(System.currentTimeMillis() - SINGLE_DAY_MILLIS);
+        mongoTemplate.insert(new SimpleMessageDocument(UUID.randomUUID().toString(), "hello world700", "golden", "denver", MessageStatus.READ, sent, null));
+        // Run the startup tasks in the order the application does
+        final List<ApplicationRunner> runners = new ArrayList<>(applicationContext.getBeansOfType(ApplicationRunner.class).values());
+        AnnotationAwareOrderComparator.sort(runners);
+        assertTrue(runners.indexOf(messageIdMigration) < runners.indexOf(conversationSummaryBackfill));
+        assertTrue(runners.indexOf(messageIdMigration) < runners.indexOf(unreadCounterBackfill));
+        for (ApplicationRunner runner : runners) {
+            if (runner == messageIdMigration) {
+                messageIdMigration.migrate();
+            } else if (runner == conversationSummaryBackfill) {
+                conversationSummaryBackfill.backfill();
+            }
+        }
+
+        // The backfilled conversation holds the migrated id, so a new send replaces its last message
+        final SimpleMessage requestMessage = new SimpleMessage("denver", "golden", "hello world701");
+        controller.perform(post("http://localhost:8080/messenger/sendMessage").contentType("application/json").content(GSON.toJson(requestMessage)))
+                .andExpect(status().isOk());
+        final List<ConversationSummary> inbox = getInbox("golden");
+        assertEquals(1, inbox.size());
+        assertEquals("hello world701", inbox.get(0).getLastText());
+    }
+
+    @Test
+    public void testArchiveOldReadMessages() throws Exception {
+        final Date old = new Date(System.currentTimeMillis() - 200 * SINGLE_DAY_MILLIS);
+        final Date recent = new Date(System.currentTimeMillis() - SINGLE_DAY_MILLIS);
+        mongoTemplate.insertAll(Arrays.asList(
+                new SimpleMessageDocument(new ObjectId(old).toHexString(), "hello world600", "aurora", "denver", MessageStatus.READ, old, null),
+                new SimpleMessageDocument(new ObjectId(new Date(old.getTime() + 1000)).toHexString(), "hello world601", "aurora", "denver", MessageStatus.UNREAD, new Date(old.getTime() + 1000), null),
+                new SimpleMessageDocument(new ObjectId(recent).toHexString(), "hello world602", "aurora", "denver", MessageStatus.READ, recent, null)));
+        messageArchiver.archive();
+
+        // Only the old READ message moves, the UNREAD one stays however old it is
+        final Query aurora = Query.query(where("recipient").is("aurora"));
+        assertEquals(Arrays.asList("hello world602", "hello world601"), mongoTemplate.find(aurora, SimpleMessageDocument.class).stream()
+                .map(SimpleMessageDocument::getText).sorted(Comparator.reverseOrder()).collect(Collectors.toList()));
+        assertEquals(1, mongoTemplate.count(aurora, "messages_archive"));
+
+        // A range reaching back past the hot window reads both collections, newest first
+        final MvcResult mvcResult = controller.perform(get("http://localhost:8080/messenger/getMessagesWithinThirtyDays?recipient=aurora&from="
+                + Instant.ofEpochMilli(old.getTime() - SINGLE_DAY_MILLIS))).andExpect(status().isOk()).andReturn();
+        final List<SimpleMessage> response = GSON.fromJson(mvcResult.getResponse().getContentAsString(), LIST_TYPE);
+        assertEquals(Arrays.asList("hello world602", "hello world601", "hello world600"),
+                response.stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+    }
+
+    private List<ConversationSummary> getInbox(String recipient) throws Exception {
+        final MvcResult mvcResult = controller.perform(get("http://localhost:8080/messenger/getInbox?recipient=" + recipient))
+                .andExpect(status().isOk()).andReturn();
+        return GSON.fromJson(mvcResult.getResponse().getContentAsString(), new TypeToken<List<ConversationSummary>>(){}.getType());
+    }
+
+    private UnreadCount getUnreadCount(String recipient) throws Exception {
+        final MvcResult mvcResult = controller.perform(get("http://localhost:8080/messenger/getUnreadCount?recipient=" + recipient))
+                .andExpect(status().isOk()).andReturn();
+        return GSON.fromJson(mvcResult.getResponse().getContentAsString(), UnreadCount.class);
+    }
 }
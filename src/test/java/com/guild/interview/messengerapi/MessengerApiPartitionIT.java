@@ -0,0 +1,134 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.MessagePartitionRebalancer;
+import com.guild.interview.messengerapi.dao.MessengerPartitionRouter;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.service.MessengerApiService;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Integration tests for partitioned storage. The default partition is the embedded Mongo server every other IT uses,
+ * p1 and p2 are two more flapdoodle servers started on free ports before the application.
+ */
+@SpringBootTest(properties = {
+        "messenger.partitions.enabled=true",
+        "messenger.partitions.names=default,p1,p2",
+        "messenger.partitions.rebalance.enabled=true"
+})
+public class MessengerApiPartitionIT {
+    private static final List<MongodExecutable> PARTITION_SERVERS = new ArrayList<>();
+
+    @Autowired
+    private MessengerApiService messengerApiService;
+
+    @Autowired
+    private MessengerPartitionRouter messengerPartitionRouter;
+
+    @Autowired
+    private MessagePartitionRebalancer messagePartitionRebalancer;
+
+    @DynamicPropertySource
+    static void partitionUris(DynamicPropertyRegistry registry) throws IOException {
+        for (String name : Arrays.asList("p1", "p2")) {
+            final int port = Network.getFreeServerPort();
+            final MongodExecutable mongod = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                    .version(Version.Main.PRODUCTION)
+                    .net(new Net(port, Network.localhostIsIPv6()))
+                    .build());
+            mongod.start();
+            PARTITION_SERVERS.add(mongod);
+            registry.add("messenger.partitions." + name + ".uri", () -> "mongodb://localhost:" + port + "/messages");
+        }
+    }
+
+    @AfterAll
+    static void stopPartitionServers() {
+        PARTITION_SERVERS.forEach(MongodExecutable::stop);
+    }
+
+    @Test
+    public void testEachRecipientIsStoredOnItsPartition() {
+        final List<String> recipients = IntStream.range(0, 30).mapToObj(i -> "routed" + i).collect(Collectors.toList());
+        messengerApiService.sendMessages(recipients.stream()
+                .map(recipient -> new SimpleMessage("denver", recipient, "hello " + recipient))
+                .iterator());
+
+        for (String recipient : recipients) {
+            final MessengerPartitionRouter.Partition owner = messengerPartitionRouter.partitionFor(recipient);
+            for (MessengerPartitionRouter.Partition partition : messengerPartitionRouter.getPartitions()) {
+                assertEquals(partition == owner ? 1 : 0, partition.getMongoTemplate()
+                        .count(Query.query(where("recipient").is(recipient)), SimpleMessageDocument.class));
+            }
+            assertEquals(1, messengerApiService.getUnreadCount(recipient));
+            final List<SimpleMessage> unread = messengerApiService.getUnreadMessages(recipient);
+            assertEquals("hello " + recipient, unread.get(0).getText());
+            assertEquals(0, messengerApiService.getUnreadCount(recipient));
+        }
+        // With 30 recipients every partition holds some of them
+        for (MessengerPartitionRouter.Partition partition : messengerPartitionRouter.getPartitions()) {
+            assertTrue(partition.getMongoTemplate().exists(Query.query(where("recipient").regex("^routed")), SimpleMessageDocument.class),
+                    partition.getName());
+        }
+    }
+
+    @Test
+    public void testRebalanceMovesRecipientsToTheirPartition() {
+        final String recipient = "rebalanced";
+        final MessengerPartitionRouter.Partition owner = messengerPartitionRouter.partitionFor(recipient);
+        final MessengerPartitionRouter.Partition previous = messengerPartitionRouter.getPartitions().stream()
+                .filter(partition -> partition != owner)
+                .findFirst()
+                .get();
+        // Written before the owner was added: two messages, counter and conversation on another partition
+        final Date sent = new Date(System.currentTimeMillis() - 60_000);
+        previous.getRepository().insertAll(Arrays.asList(
+                new SimpleMessageDocument(new ObjectId(sent).toHexString(), "first", recipient, "denver", MessageStatus.UNREAD, sent, null),
+                new SimpleMessageDocument(new ObjectId(sent).toHexString(), "second", recipient, "denver", MessageStatus.UNREAD, sent, null)));
+        // and one sent since, which went straight to the owner
+        messengerApiService.sendMessage(new SimpleMessage("denver", recipient, "third"));
+        assertEquals(1, messengerApiService.getUnreadCount(recipient));
+
+        assertTrue(messagePartitionRebalancer.rebalance() >= 2);
+
+        assertEquals(0, previous.getMongoTemplate().count(Query.query(where("recipient").is(recipient)), SimpleMessageDocument.class));
+        assertEquals(3, owner.getMongoTemplate().count(Query.query(where("recipient").is(recipient)), SimpleMessageDocument.class));
+        // The moved counter and conversation are added to the owner's, which keeps the newer last message
+        assertEquals(3, messengerApiService.getUnreadCount(recipient));
+        final List<ConversationSummary> inbox = messengerApiService.getInbox(recipient, null);
+        assertEquals(1, inbox.size());
+        assertEquals("third", inbox.get(0).getLastText());
+        assertEquals(3, inbox.get(0).getUnread());
+        assertEquals(Arrays.asList("first", "second", "third"), messengerApiService.getUnreadMessages(recipient).stream()
+                .map(SimpleMessage::getText)
+                .sorted()
+                .collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,135 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.MessengerApiRepositoryCustom;
+import com.guild.interview.messengerapi.dao.MessengerApiRepositoryImpl;
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.UnreadCounterDocument;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Unit tests for the write paths of MessengerApiRepositoryImpl. Mongo is mocked.
+ */
+public class MessengerApiRepositoryTest {
+    private MongoTemplate mongoTemplate;
+    private MessengerApiRepositoryImpl messengerApiRepository;
+    private BulkOperations counterOperations;
+    private BulkOperations conversationOperations;
+
+    @BeforeEach
+    public void setup() {
+        mongoTemplate = mock(MongoTemplate.class);
+        messengerApiRepository = new MessengerApiRepositoryImpl();
+        ReflectionTestUtils.setField(messengerApiRepository, "mongoTemplate", mongoTemplate);
+        counterOperations = mock(BulkOperations.class, Answers.RETURNS_SELF);
+        conversationOperations = mock(BulkOperations.class, Answers.RETURNS_SELF);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(UnreadCounterDocument.class))).thenReturn(counterOperations);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(ConversationSummaryDocument.class))).thenReturn(conversationOperations);
+    }
+
+    @Test
+    public void testMarkAsReadFlipsThePageWithOneUpdate() {
+        final List<SimpleMessageDocument> page = Arrays.asList(message("denver"), message("boulder"), message("golden"), message("denver"));
+        when(mongoTemplate.updateMulti(any(Query.class), any(UpdateDefinition.class), eq(SimpleMessageDocument.class)))
+                .thenReturn(UpdateResult.acknowledged(4, 4L, null));
+
+        assertEquals(4, messengerApiRepository.markAsRead("colorado", page));
+        verify(mongoTemplate, times(1)).updateMulti(any(Query.class), any(UpdateDefinition.class), eq(SimpleMessageDocument.class));
+        verify(counterOperations).updateOne(any(Query.class), eq(new Update().inc("unread", -4L).inc("version", 1)));
+        // One bulk write for the conversations, with each sender's count
+        verify(conversationOperations, times(3)).updateOne(any(Query.class), any(Update.class));
+        verify(conversationOperations).execute();
+    }
+
+    @Test
+    public void testMarkAsReadOnlyTakesOffWhatItModified() {
+        // Another reader flipped one of the messages first
+        final List<SimpleMessageDocument> page = Arrays.asList(message("denver"), message("denver"));
+        when(mongoTemplate.updateMulti(any(Query.class), any(UpdateDefinition.class), eq(SimpleMessageDocument.class)))
+                .thenReturn(UpdateResult.acknowledged(2, 1L, null));
+
+        assertEquals(1, messengerApiRepository.markAsRead("colorado", page));
+        verify(counterOperations).updateOne(any(Query.class), eq(new Update().inc("unread", -1L).inc("version", 1)));
+        verify(conversationOperations, times(1)).updateOne(any(Query.class), any(Update.class));
+    }
+
+    @Test
+    public void testFailedCounterWriteIsRetriedWithTheNext() {
+        when(mongoTemplate.findOne(any(Query.class), eq(UnreadCounterDocument.class))).thenReturn(new UnreadCounterDocument("colorado", 1, 7));
+        when(counterOperations.execute()).thenThrow(new DataAccessResourceFailureException("down"));
+
+        // The message is written, so the send doesn't fail, but its version is unknown until the bump is written
+        messengerApiRepository.insertMessage(message("denver"));
+        assertEquals(MessengerApiRepositoryCustom.UNKNOWN_VERSION, messengerApiRepository.findVersion("colorado"));
+
+        reset(counterOperations);
+        messengerApiRepository.insertMessage(message("boulder"));
+        verify(counterOperations).upsert(any(Query.class), eq(new Update().inc("unread", 2L).inc("version", 1)));
+        assertEquals(7, messengerApiRepository.findVersion("colorado"));
+    }
+
+    @Test
+    public void testOnlyFailedCounterWritesAreRetried() {
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(SimpleMessageDocument.class))).thenReturn(mock(BulkOperations.class, Answers.RETURNS_SELF));
+        final BulkWriteError error = new BulkWriteError(1, "failed", new BsonDocument(), 1);
+        when(counterOperations.execute()).thenThrow(new BulkOperationException("failed", new MongoBulkWriteException(
+                BulkWriteResult.unacknowledged(), Collections.singletonList(error), null, new ServerAddress())));
+        final List<SimpleMessageDocument> documents = Arrays.asList(message("denver"), message("denver"));
+        documents.get(1).setRecipient("utah");
+
+        assertTrue(messengerApiRepository.insertAll(documents).isEmpty());
+        final List<String> recipients = new ArrayList<>();
+        verify(counterOperations, times(2)).upsert(argThat(query -> recipients.add(query.getQueryObject().getString("recipient"))), any(Update.class));
+        assertEquals(MessengerApiRepositoryCustom.UNKNOWN_VERSION, messengerApiRepository.findVersion(recipients.get(1)));
+        assertEquals(0, messengerApiRepository.findVersion(recipients.get(0)));
+
+        // Only the failed recipient's change is written again, along with the next one
+        reset(counterOperations);
+        final SimpleMessageDocument next = message("denver");
+        next.setRecipient("nevada");
+        messengerApiRepository.insertMessage(next);
+        verify(counterOperations, times(2)).upsert(any(Query.class), eq(new Update().inc("unread", 1L).inc("version", 1)));
+        verify(counterOperations).upsert(eq(Query.query(where("recipient").is(recipients.get(1)))), any(Update.class));
+        assertEquals(0, messengerApiRepository.findVersion(recipients.get(1)));
+    }
+
+    private static SimpleMessageDocument message(String sender) {
+        return new SimpleMessageDocument(new ObjectId().toHexString(), "hello", "colorado", sender, MessageStatus.UNREAD, new Date(), null);
+    }
+}
@@ -1,100 +1,333 @@
 package com.guild.interview.messengerapi;
 
+import com.guild.interview.messengerapi.dao.EmptyInboxFilter;
 import com.guild.interview.messengerapi.dao.MessengerApiRepository;
+import com.guild.interview.messengerapi.dao.MessengerApiRepositoryCustom;
+import com.guild.interview.messengerapi.dao.MessengerPartitionRouter;
+import com.guild.interview.messengerapi.dao.RecentMessageCache;
+import com.guild.interview.messengerapi.dao.UnreadMessageCache;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
 import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SendMessageResult;
 import com.guild.interview.messengerapi.model.SimpleMessage;
 import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.model.SyncPage;
+import com.guild.interview.messengerapi.service.MessengerApiMetrics;
 import com.guild.interview.messengerapi.service.impl.MessengerApiServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
 public class MessengerApiServiceTest {
+    private static final long SINGLE_DAY_MILLIS = 1000 * 60 * 60 * 24;
+
     @Autowired
     private MessengerApiServiceImpl messengerApiService;
 
     @MockBean
     private MessengerApiRepository messengerApiRepository;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Test
     public void testGetUnreadMessages() {
-        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date()));
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date(), null));
         when(messengerApiRepository.findAllByRecipientAndMessageStatus("recipient", MessageStatus.UNREAD))
                 .thenReturn(dbResponse);
         final List<SimpleMessage> unreadMessages = messengerApiService.getUnreadMessages("recipient");
-        assertEquals(MessageStatus.READ, dbResponse.get(0).getMessageStatus());
-        verify(messengerApiRepository).saveAll(dbResponse);
+        verify(messengerApiRepository).markAsRead("recipient", dbResponse);
+        assertEquals("hello world", unreadMessages.get(0).getText());
+    }
+
+    @Test
+    public void testGetUnreadMessages_recordsMetrics() {
+        final List<SimpleMessageDocument> dbResponse = Arrays.asList(
+                new SimpleMessageDocument("id1", "hello", "denver", "colorado", MessageStatus.UNREAD, new Date(), null),
+                new SimpleMessageDocument("id2", "world", "denver", "colorado", MessageStatus.UNREAD, new Date(), null));
+        when(messengerApiRepository.findAllByRecipientAndMessageStatus("metrics", MessageStatus.UNREAD)).thenReturn(dbResponse);
+        when(messengerApiRepository.markAsRead("metrics", dbResponse)).thenReturn(2L);
+        final double readBefore = meterRegistry.counter(MessengerApiMetrics.MESSAGES_READ, "source", "markAsRead").count();
+        messengerApiService.getUnreadMessages("metrics");
+        assertEquals(readBefore + 2, meterRegistry.counter(MessengerApiMetrics.MESSAGES_READ, "source", "markAsRead").count());
+        assertTrue(meterRegistry.get(MessengerApiMetrics.QUERY_RESULTS).tag("query", "findAllByRecipientAndMessageStatus").summary().max() >= 2);
+    }
+
+    @Test
+    public void testGetUnreadCount() {
+        when(messengerApiRepository.countUnread("recipient")).thenReturn(3L);
+        assertEquals(3, messengerApiService.getUnreadCount("recipient"));
+        // Counting must not read or flip the messages themselves
+        verify(messengerApiRepository, never()).findAllByRecipientAndMessageStatus(any(), any());
+        verify(messengerApiRepository, never()).markAsRead(any(), anyList());
+    }
+
+    @Test
+    public void testGetInbox() {
+        final List<ConversationSummaryDocument> dbResponse = Collections.singletonList(
+                new ConversationSummaryDocument("c1", "recipient", "denver", "id1", "hello world", new Date(0), 2));
+        when(messengerApiRepository.findInbox("recipient", 100)).thenReturn(dbResponse);
+        final List<ConversationSummary> inbox = messengerApiService.getInbox("recipient", null);
+        assertEquals(Collections.singletonList(new ConversationSummary("denver", "hello world", new Date(0), 2)), inbox);
+        verify(messengerApiRepository, never()).markAsRead(any(), anyList());
+    }
+
+    @Test
+    public void testClaimUnreadMessages() {
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.READ, new Date(), "token"));
+        when(messengerApiRepository.claimUnread("recipient")).thenReturn(dbResponse);
+        final List<SimpleMessage> unreadMessages = messengerApiService.claimUnreadMessages("recipient");
+        // The claim already flipped the messages to READ, so no further write is needed
+        verify(messengerApiRepository, never()).markAsRead(any(), anyList());
         assertEquals("hello world", unreadMessages.get(0).getText());
     }
 
     @Test
     public void testGetRecentMessages_withSender() {
-        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date()));
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date(), null));
 
-        when(messengerApiRepository.findTop100ByRecipientAndSenderOrderByTimestampDesc("denver", "colorado"))
+        when(messengerApiRepository.findPage("denver", "colorado", null, null, null, 101))
                 .thenReturn(dbResponse);
-        final List<SimpleMessage> recentMessages = messengerApiService.getRecentMessages("denver", "colorado");
-        assertEquals(MessageStatus.READ, dbResponse.get(0).getMessageStatus());
-        verify(messengerApiRepository).saveAll(dbResponse);
-        assertEquals("hello world", recentMessages.get(0).getText());
+        final MessagePage recentMessages = messengerApiService.getRecentMessages("denver", "colorado", null, null);
+        verify(messengerApiRepository).markAsRead("denver", dbResponse);
+        assertEquals("hello world", recentMessages.getMessages().get(0).getText());
+        assertNull(recentMessages.getNextCursor());
     }
 
     @Test
     public void testGetRecentMessages_withoutSender() {
-        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date()));
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date(), null));
 
-        when(messengerApiRepository.findTop100ByRecipientOrderByTimestampDesc("denver"))
+        when(messengerApiRepository.findPage("denver", null, null, null, null, 101))
                 .thenReturn(dbResponse);
-        final List<SimpleMessage> recentMessages = messengerApiService.getRecentMessages("denver", null);
-        assertEquals(MessageStatus.READ, dbResponse.get(0).getMessageStatus());
-        verify(messengerApiRepository).saveAll(dbResponse);
-        assertEquals("hello world", recentMessages.get(0).getText());
+        final MessagePage recentMessages = messengerApiService.getRecentMessages("denver", null, null, null);
+        verify(messengerApiRepository).markAsRead("denver", dbResponse);
+        assertEquals("hello world", recentMessages.getMessages().get(0).getText());
     }
 
     @Test
-    public void testGetRecentWithinThirtyDays_withSender() {
-        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date()));
-        when(messengerApiRepository.findAllByTimestampAfterAndRecipientAndSenderOrderByTimestampDesc(any(), eq("denver"), eq("colorado")))
+    public void testGetRecentMessages_nextPage() {
+        final Date newest = new Date();
+        final List<SimpleMessageDocument> dbResponse = Arrays.asList(
+                new SimpleMessageDocument("id1", "hello", "denver", "colorado", MessageStatus.READ, newest, null),
+                new SimpleMessageDocument("id2", "world", "denver", "colorado", MessageStatus.READ, new Date(newest.getTime() - 1000), null),
+                new SimpleMessageDocument("id3", "again", "denver", "colorado", MessageStatus.READ, new Date(newest.getTime() - 2000), null));
+        final MessageCursor cursor = new MessageCursor("id0");
+
+        // A page of 2 fetches 3 so the service can tell there is another page
+        when(messengerApiRepository.findPage("denver", null, null, null, cursor, 3))
                 .thenReturn(dbResponse);
-        final List<SimpleMessage> recentWithinThirtyDays = messengerApiService.getRecentWithinThirtyDays("denver", "colorado");
-        verify(messengerApiRepository).saveAll(dbResponse);
-        assertEquals(MessageStatus.READ, dbResponse.get(0).getMessageStatus());
-        assertEquals("hello world", recentWithinThirtyDays.get(0).getText());
+        final MessagePage page = messengerApiService.getRecentMessages("denver", null, cursor, 2);
+        assertEquals(2, page.getMessages().size());
+        assertEquals(new MessageCursor("id2"), page.getNextCursor());
     }
 
     @Test
-    public void testGetRecentWithinThirtyDays_withoutSender() {
-        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date()));
-        when(messengerApiRepository.findAllByTimestampAfterAndRecipientOrderByTimestampDesc(any(), eq("denver")))
+    public void testGetRecentMessages_mergesArchive() {
+        final String newest = new ObjectId(new Date()).toHexString();
+        final String moving = new ObjectId(new Date(System.currentTimeMillis() - 200 * SINGLE_DAY_MILLIS)).toHexString();
+        final String oldest = new ObjectId(new Date(System.currentTimeMillis() - 300 * SINGLE_DAY_MILLIS)).toHexString();
+        final List<SimpleMessageDocument> hot = Arrays.asList(
+                new SimpleMessageDocument(newest, "hello", "archive", "colorado", MessageStatus.UNREAD, null, null),
+                new SimpleMessageDocument(moving, "world", "archive", "colorado", MessageStatus.READ, null, null));
+        // The archiver copied the older message but hasn't removed it from the messages collection yet
+        final List<SimpleMessageDocument> archived = Arrays.asList(
+                new SimpleMessageDocument(moving, "world", "archive", "colorado", MessageStatus.READ, null, null),
+                new SimpleMessageDocument(oldest, "again", "archive", "colorado", MessageStatus.READ, null, null));
+        when(messengerApiRepository.findPage("archive", null, null, null, null, 11)).thenReturn(hot);
+        when(messengerApiRepository.findArchivedPage("archive", null, null, null, null, 11)).thenReturn(archived);
+        ReflectionTestUtils.setField(messengerApiService, "archiveEnabled", true);
+        try {
+            final MessagePage page = messengerApiService.getRecentMessages("archive", null, null, 10);
+            assertEquals(Arrays.asList("hello", "world", "again"), page.getMessages().stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+            // Archived messages are all READ, only the hot one is marked
+            verify(messengerApiRepository).markAsRead("archive", hot.subList(0, 1));
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "archiveEnabled", false);
+        }
+    }
+
+    @Test
+    public void testSync() {
+        final MessageCursor cursor = new MessageCursor(new ObjectId().toHexString());
+        final List<SimpleMessageDocument> dbResponse = Arrays.asList(
+                new SimpleMessageDocument(new ObjectId().toHexString(), "hello", "sync", "colorado", MessageStatus.UNREAD, null, null),
+                new SimpleMessageDocument(new ObjectId().toHexString(), "world", "sync", "colorado", MessageStatus.READ, null, null),
+                new SimpleMessageDocument(new ObjectId().toHexString(), "again", "sync", "colorado", MessageStatus.UNREAD, null, null));
+        final ArgumentCaptor<Date> before = ArgumentCaptor.forClass(Date.class);
+        when(messengerApiRepository.findSince(eq("sync"), eq(cursor), before.capture(), eq(3))).thenReturn(dbResponse);
+
+        final long now = System.currentTimeMillis();
+        final SyncPage page = messengerApiService.sync("sync", cursor, 2);
+        assertEquals(Arrays.asList("hello", "world"), page.getMessages().stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+        assertEquals(MessageCursor.of(dbResponse.get(1)), page.getCursor());
+        assertTrue(page.isMore());
+        // Messages still settling are left for the next sync
+        assertTrue(before.getValue().getTime() <= now - 5000);
+        verify(messengerApiRepository).markAsRead("sync", dbResponse.subList(0, 1));
+
+        // Nothing new keeps the cursor where it was
+        when(messengerApiRepository.findSince(eq("sync"), eq(page.getCursor()), any(), eq(3))).thenReturn(Collections.emptyList());
+        final SyncPage empty = messengerApiService.sync("sync", page.getCursor(), 2);
+        assertEquals(page.getCursor(), empty.getCursor());
+        assertFalse(empty.isMore());
+    }
+
+    @Test
+    public void testSync_mergesArchive() {
+        final String oldest = new ObjectId(new Date(System.currentTimeMillis() - 300 * SINGLE_DAY_MILLIS)).toHexString();
+        final String moving = new ObjectId(new Date(System.currentTimeMillis() - 200 * SINGLE_DAY_MILLIS)).toHexString();
+        final String newest = new ObjectId(new Date(System.currentTimeMillis() - 10_000)).toHexString();
+        final List<SimpleMessageDocument> hot = Arrays.asList(
+                new SimpleMessageDocument(moving, "world", "archivesync", "colorado", MessageStatus.READ, null, null),
+                new SimpleMessageDocument(newest, "again", "archivesync", "colorado", MessageStatus.UNREAD, null, null));
+        final List<SimpleMessageDocument> archived = Arrays.asList(
+                new SimpleMessageDocument(oldest, "hello", "archivesync", "colorado", MessageStatus.READ, null, null),
+                new SimpleMessageDocument(moving, "world", "archivesync", "colorado", MessageStatus.READ, null, null));
+        when(messengerApiRepository.findSince(eq("archivesync"), isNull(), any(), eq(11))).thenReturn(hot);
+        when(messengerApiRepository.findArchivedSince(eq("archivesync"), isNull(), any(), eq(11))).thenReturn(archived);
+        ReflectionTestUtils.setField(messengerApiService, "archiveEnabled", true);
+        try {
+            final SyncPage page = messengerApiService.sync("archivesync", null, 10);
+            assertEquals(Arrays.asList("hello", "world", "again"), page.getMessages().stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+            assertEquals(new MessageCursor(newest), page.getCursor());
+            assertFalse(page.isMore());
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "archiveEnabled", false);
+        }
+    }
+
+    @Test
+    public void testGetRecentMessages_fullPageSkipsArchive() {
+        final List<SimpleMessageDocument> hot = Arrays.asList(
+                new SimpleMessageDocument(new ObjectId().toHexString(), "hello", "hot", "colorado", MessageStatus.READ, null, null),
+                new SimpleMessageDocument(new ObjectId().toHexString(), "world", "hot", "colorado", MessageStatus.READ, null, null));
+        when(messengerApiRepository.findPage("hot", null, null, null, null, 2)).thenReturn(hot);
+        ReflectionTestUtils.setField(messengerApiService, "archiveEnabled", true);
+        try {
+            final MessagePage page = messengerApiService.getRecentMessages("hot", null, null, 1);
+            assertEquals(1, page.getMessages().size());
+            // The page was filled from within the hot window, so nothing archived can be part of it
+            verify(messengerApiRepository, never()).findArchivedPage(any(), any(), any(), any(), any(), anyInt());
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "archiveEnabled", false);
+        }
+    }
+
+    @Test
+    public void testGetMessagesInRange_withSender() {
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date(), null));
+        when(messengerApiRepository.findPage(eq("denver"), eq("colorado"), any(), isNull(), isNull(), eq(101)))
                 .thenReturn(dbResponse);
-        final List<SimpleMessage> recentWithinThirtyDays = messengerApiService.getRecentWithinThirtyDays("denver", null);
-        verify(messengerApiRepository).saveAll(dbResponse);
-        assertEquals(MessageStatus.READ, dbResponse.get(0).getMessageStatus());
-        assertEquals("hello world", recentWithinThirtyDays.get(0).getText());
+        final MessagePage recentWithinThirtyDays = messengerApiService.getMessagesInRange("denver", "colorado", null, null, null, null);
+        verify(messengerApiRepository).markAsRead("denver", dbResponse);
+        assertEquals("hello world", recentWithinThirtyDays.getMessages().get(0).getText());
+    }
+
+    @Test
+    public void testGetMessagesInRange_withoutSender() {
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.UNREAD, new Date(), null));
+        final ArgumentCaptor<Date> fromCaptor = ArgumentCaptor.forClass(Date.class);
+        when(messengerApiRepository.findPage(eq("denver"), isNull(), fromCaptor.capture(), isNull(), isNull(), eq(101)))
+                .thenReturn(dbResponse);
+        final MessagePage recentWithinThirtyDays = messengerApiService.getMessagesInRange("denver", null, null, null, null, null);
+        verify(messengerApiRepository).markAsRead("denver", dbResponse);
+        assertEquals("hello world", recentWithinThirtyDays.getMessages().get(0).getText());
+        // Defaults to the past 30 days
+        final long thirtyDaysMillis = 30L * 24 * 60 * 60 * 1000;
+        assertTrue(Math.abs(System.currentTimeMillis() - thirtyDaysMillis - fromCaptor.getValue().getTime()) < 60_000);
+    }
+
+    @Test
+    public void testStreamMessagesInRange() {
+        final List<SimpleMessageDocument> dbResponse = Arrays.asList(
+                new SimpleMessageDocument("id1", "hello", "denver", "colorado", MessageStatus.UNREAD, new Date(), null),
+                new SimpleMessageDocument("id2", "world", "denver", "colorado", MessageStatus.READ, new Date(), null));
+        when(messengerApiRepository.streamRange(eq("denver"), eq("colorado"), any(), isNull()))
+                .thenReturn(dbResponse.stream());
+        final List<SimpleMessage> streamed = new ArrayList<>();
+        messengerApiService.streamMessagesInRange("denver", "colorado", null, null, streamed::add);
+        assertEquals(Arrays.asList("hello", "world"), streamed.stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+        verify(messengerApiRepository).markAsRead("denver", Collections.singletonList(dbResponse.get(0)));
+    }
+
+    @Test
+    public void testStreamUnreadMessages_onlyMarksDeliveredMessages() {
+        final List<SimpleMessageDocument> dbResponse = Arrays.asList(
+                new SimpleMessageDocument("id1", "hello", "denver", "streamed", MessageStatus.UNREAD, new Date(), null),
+                new SimpleMessageDocument("id2", "world", "denver", "streamed", MessageStatus.UNREAD, new Date(), null));
+        when(messengerApiRepository.findAllByRecipientAndMessageStatus("streamed", MessageStatus.UNREAD)).thenReturn(dbResponse);
+        final List<SimpleMessage> streamed = new ArrayList<>();
+        // The client goes away while the second message is being sent
+        final IllegalStateException disconnected = new IllegalStateException("disconnected");
+        final IllegalStateException thrown = assertThrows(IllegalStateException.class, () ->
+                messengerApiService.streamUnreadMessages("streamed", message -> {
+                    if (!streamed.isEmpty()) {
+                        throw disconnected;
+                    }
+                    streamed.add(message);
+                }));
+        assertEquals(disconnected, thrown);
+        assertEquals(Collections.singletonList("hello"), streamed.stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+        verify(messengerApiRepository).markAsRead("streamed", Collections.singletonList(dbResponse.get(0)));
+    }
+
+    @Test
+    public void testGetRecentMessages_alreadyRead() {
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument("id", "hello world", "denver", "colorado", MessageStatus.READ, new Date(), null));
+
+        when(messengerApiRepository.findPage("denver", null, null, null, null, 101))
+                .thenReturn(dbResponse);
+        final MessagePage recentMessages = messengerApiService.getRecentMessages("denver", null, null, null);
+        // Nothing changed so no write should be issued
+        verify(messengerApiRepository, never()).markAsRead(any(), anyList());
+        assertEquals("hello world", recentMessages.getMessages().get(0).getText());
     }
 
     @Test
     public void testSendMessage() {
         final SimpleMessage simpleMessage = new SimpleMessage("denver", "colorado", "hello world");
 
-        // This is used to verify that the save CRUD repository method was invoked with correct input
+        // This is used to verify that the insertMessage repository method was invoked with correct input
         final ArgumentCaptor<SimpleMessageDocument> simpleMessageArgumentCaptor = ArgumentCaptor.forClass(SimpleMessageDocument.class);
         messengerApiService.sendMessage(simpleMessage);
-        verify(messengerApiRepository).save(simpleMessageArgumentCaptor.capture());
+        verify(messengerApiRepository).insertMessage(simpleMessageArgumentCaptor.capture());
 
         final SimpleMessageDocument result = simpleMessageArgumentCaptor.getValue();
 
@@ -105,4 +338,168 @@ public class MessengerApiServiceTest {
         assertEquals("colorado", result.getRecipient());
         assertNotNull(result.getTimestamp());
     }
+
+    @Test
+    public void testSendMessages() {
+        final List<SimpleMessage> request = Arrays.asList(new SimpleMessage("denver", "colorado", "hello"),
+                new SimpleMessage(null, "colorado", "no sender"),
+                new SimpleMessage("denver", "colorado", "world"));
+        // The second written document (third message) fails on insert. The chunk is reused once written, so keep a copy
+        final List<SimpleMessageDocument> written = new ArrayList<>();
+        when(messengerApiRepository.insertAll(anyList())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return Collections.singletonMap(1, "duplicate key");
+        });
+
+        final List<SendMessageResult> results = messengerApiService.sendMessages(request.iterator());
+
+        verify(messengerApiRepository).insertAll(anyList());
+        assertEquals(Arrays.asList("hello", "world"), written.stream().map(SimpleMessageDocument::getText).collect(Collectors.toList()));
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isAccepted());
+        assertFalse(results.get(1).isAccepted());
+        assertFalse(results.get(2).isAccepted());
+        assertEquals("duplicate key", results.get(2).getError());
+        assertEquals(2, results.stream().filter(result -> result.getId() != null).count());
+    }
+
+    @Test
+    public void testSendMessages_idsTakenWhenWritten() {
+        final List<String> syncCursors = new ArrayList<>();
+        // A sync runs while the body is still being read, after the first message was parsed
+        final Iterator<SimpleMessage> body = Arrays.asList(new SimpleMessage("denver", "slow", "hello"),
+                new SimpleMessage("denver", "slow", "world")).iterator();
+        final Iterator<SimpleMessage> slowBody = new Iterator<SimpleMessage>() {
+            @Override
+            public boolean hasNext() {
+                return body.hasNext();
+            }
+
+            @Override
+            public SimpleMessage next() {
+                syncCursors.add(new ObjectId().toHexString());
+                return body.next();
+            }
+        };
+        final List<SimpleMessageDocument> written = new ArrayList<>();
+        when(messengerApiRepository.insertAll(anyList())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return Collections.emptyMap();
+        });
+
+        final List<SendMessageResult> results = messengerApiService.sendMessages(slowBody);
+
+        // Both messages are stored with ids newer than the cursor, so the next sync still returns them
+        assertEquals(2, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertTrue(written.get(i).getId().compareTo(syncCursors.get(1)) > 0, written.get(i).getId());
+            assertEquals(written.get(i).getId(), results.get(i).getId());
+        }
+    }
+
+    @Test
+    public void testSendMessages_writesEachPartition() {
+        final MessengerPartitionRouter router = mock(MessengerPartitionRouter.class);
+        final MessengerApiRepositoryCustom colorado = mock(MessengerApiRepositoryCustom.class);
+        final MessengerApiRepositoryCustom utah = mock(MessengerApiRepositoryCustom.class);
+        when(router.repositoryFor("colorado")).thenReturn(colorado);
+        when(router.repositoryFor("utah")).thenReturn(utah);
+        // The second message written to colorado's partition fails, utah's partition can't be reached
+        when(colorado.insertAll(anyList())).thenReturn(Collections.singletonMap(1, "duplicate key"));
+        when(utah.insertAll(anyList())).thenThrow(new DataAccessResourceFailureException("partition down"));
+        ReflectionTestUtils.setField(messengerApiService, "messengerPartitionRouter", router);
+        try {
+            final List<SendMessageResult> results = messengerApiService.sendMessages(Arrays.asList(
+                    new SimpleMessage("denver", "colorado", "hello"),
+                    new SimpleMessage("denver", "utah", "hello"),
+                    new SimpleMessage("denver", "colorado", "world")).iterator());
+            assertTrue(results.get(0).isAccepted());
+            assertEquals("partition down", results.get(1).getError());
+            assertEquals("duplicate key", results.get(2).getError());
+            verify(messengerApiRepository, never()).insertAll(anyList());
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "messengerPartitionRouter", null);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetUnreadMessages_servedFromCache() {
+        final UnreadMessageCache cache = new UnreadMessageCache();
+        ReflectionTestUtils.setField(cache, "environment", new MockEnvironment());
+        ReflectionTestUtils.setField(cache, "maxBytes", 1_000_000L);
+        ReflectionTestUtils.setField(cache, "maxStalenessMillis", 60_000L);
+        cache.start();
+        when(messengerApiRepository.findAllByRecipientAndMessageStatus("cached", MessageStatus.UNREAD)).thenReturn(Collections.emptyList());
+        ReflectionTestUtils.setField(messengerApiService, "unreadMessageCache", cache);
+        try {
+            // The first poll loads the recipient, later ones are answered from memory
+            assertTrue(messengerApiService.getUnreadMessages("cached").isEmpty());
+            assertTrue(messengerApiService.getUnreadMessages("cached").isEmpty());
+            messengerApiService.sendMessage(new SimpleMessage("denver", "cached", "hello"));
+            final List<SimpleMessage> unread = messengerApiService.getUnreadMessages("cached");
+            assertEquals("hello", unread.get(0).getText());
+            assertTrue(messengerApiService.getUnreadMessages("cached").isEmpty());
+
+            verify(messengerApiRepository, times(1)).findAllByRecipientAndMessageStatus("cached", MessageStatus.UNREAD);
+            final ArgumentCaptor<List<SimpleMessageDocument>> read = ArgumentCaptor.forClass(List.class);
+            verify(messengerApiRepository).markAsRead(eq("cached"), read.capture());
+            assertEquals("hello", read.getValue().get(0).getText());
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "unreadMessageCache", null);
+        }
+    }
+
+    @Test
+    public void testGetRecentMessages_servedFromCache() {
+        final RecentMessageCache cache = new RecentMessageCache();
+        ReflectionTestUtils.setField(cache, "environment", new MockEnvironment());
+        ReflectionTestUtils.setField(cache, "capacity", 200);
+        ReflectionTestUtils.setField(cache, "maxBytes", 1_000_000L);
+        ReflectionTestUtils.setField(cache, "maxStalenessMillis", 60_000L);
+        cache.start();
+        final List<SimpleMessageDocument> dbResponse = Collections.singletonList(new SimpleMessageDocument(new ObjectId().toHexString(), "hello", "recent", "denver", MessageStatus.UNREAD, new Date(), null));
+        when(messengerApiRepository.findPage("recent", null, null, null, null, 200)).thenReturn(dbResponse);
+        ReflectionTestUtils.setField(messengerApiService, "recentMessageCache", cache);
+        try {
+            // The first request loads the recipient's recent messages, the rest are answered from memory
+            assertEquals("hello", messengerApiService.getRecentMessages("recent", null, null, null).getMessages().get(0).getText());
+            messengerApiService.sendMessage(new SimpleMessage("utah", "recent", "world"));
+            final MessagePage fromUtah = messengerApiService.getRecentMessages("recent", "utah", null, null);
+            assertEquals(Collections.singletonList("world"), fromUtah.getMessages().stream().map(SimpleMessage::getText).collect(Collectors.toList()));
+            assertNull(fromUtah.getNextCursor());
+
+            verify(messengerApiRepository, times(1)).findPage(any(), any(), any(), any(), any(), anyInt());
+            // Each message is only marked READ the first time it is returned
+            verify(messengerApiRepository, times(2)).markAsRead(eq("recent"), anyList());
+            messengerApiService.getRecentMessages("recent", null, null, null);
+            verify(messengerApiRepository, times(2)).markAsRead(eq("recent"), anyList());
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "recentMessageCache", null);
+        }
+    }
+
+    @Test
+    public void testGetUnreadMessages_skipsEmptyInbox() {
+        final EmptyInboxFilter filter = mock(EmptyInboxFilter.class);
+        when(filter.isReady()).thenReturn(true);
+        when(filter.isEmpty("empty")).thenReturn(true);
+        when(messengerApiRepository.findAllByRecipientAndMessageStatus("maybe", MessageStatus.UNREAD)).thenReturn(Collections.emptyList());
+        ReflectionTestUtils.setField(messengerApiService, "emptyInboxFilter", filter);
+        try {
+            final double skippedBefore = meterRegistry.counter(MessengerApiMetrics.EMPTY_INBOX_FILTER, "result", MessengerApiMetrics.FILTER_SKIPPED).count();
+            assertTrue(messengerApiService.getUnreadMessages("empty").isEmpty());
+            verify(messengerApiRepository, never()).findAllByRecipientAndMessageStatus(eq("empty"), any());
+            assertEquals(skippedBefore + 1, meterRegistry.counter(MessengerApiMetrics.EMPTY_INBOX_FILTER, "result", MessengerApiMetrics.FILTER_SKIPPED).count());
+
+            // Not ruled out, but nothing unread
+            assertTrue(messengerApiService.getUnreadMessages("maybe").isEmpty());
+            assertTrue(meterRegistry.get(MessengerApiMetrics.EMPTY_INBOX_FILTER_FALSE_POSITIVE_RATE).gauge().value() > 0);
+
+            messengerApiService.sendMessage(new SimpleMessage("denver", "maybe", "hello"));
+            verify(filter).add("maybe", 1);
+        } finally {
+            ReflectionTestUtils.setField(messengerApiService, "emptyInboxFilter", null);
+        }
+    }
 }
@@ -0,0 +1,221 @@
+package com.guild.interview.messengerapi;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessagePage;
+import com.guild.interview.messengerapi.model.SendMessageResult;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.UnreadCount;
+import com.guild.interview.messengerapi.service.MessageNotificationHub;
+import com.guild.interview.messengerapi.service.ReactiveMessengerApiService;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@WebFluxTest(ReactiveMessengerApiController.class)
+@ActiveProfiles("reactive")
+public class ReactiveMessengerApiControllerTest {
+    private static final Gson GSON = new Gson();
+
+    @Autowired
+    private WebTestClient controller;
+
+    @MockBean
+    private ReactiveMessengerApiService reactiveMessengerApiService;
+
+    @MockBean
+    private MessageNotificationHub messageNotificationHub;
+
+    @Test
+    public void testWriteMessage() {
+        final SimpleMessage request = new SimpleMessage("sender", "recipient", "hello world!");
+        when(reactiveMessengerApiService.sendMessage(request)).thenReturn(Mono.empty());
+        this.controller.post().uri("/messenger/sendMessage").contentType(MediaType.APPLICATION_JSON).bodyValue(GSON.toJson(request))
+                .exchange().expectStatus().isOk();
+        verify(reactiveMessengerApiService).sendMessage(request);
+    }
+
+    @Test
+    public void testSendMessages_jsonArray() {
+        final List<SimpleMessage> request = Arrays.asList(new SimpleMessage("sender", "recipient", "hello"), new SimpleMessage("sender", "recipient", "world"));
+        testSendMessages(request, "application/json", GSON.toJson(request));
+    }
+
+    @Test
+    public void testSendMessages_ndjson() {
+        final List<SimpleMessage> request = Arrays.asList(new SimpleMessage("sender", "recipient", "hello"), new SimpleMessage("sender", "recipient", "world"));
+        testSendMessages(request, "application/x-ndjson", GSON.toJson(request.get(0)) + "\n" + GSON.toJson(request.get(1)) + "\n");
+    }
+
+    @Test
+    public void testGetUnreadMessages() {
+        final List<SimpleMessage> simpleMessages = Collections.singletonList(new SimpleMessage("sender", "recipient", "hello world!"));
+        when(reactiveMessengerApiService.getUnreadMessages("recipient")).thenReturn(Flux.fromIterable(simpleMessages));
+        final String body = this.controller.get().uri("/messenger/getUnreadMessages?recipient=recipient")
+                .exchange().expectStatus().isOk().expectBody(String.class).returnResult().getResponseBody();
+        assertEquals(simpleMessages, GSON.fromJson(body, new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    @Test
+    public void testGetUnreadCount() {
+        when(reactiveMessengerApiService.getUnreadCount("recipient")).thenReturn(Mono.just(3L));
+        this.controller.get().uri("/messenger/getUnreadCount?recipient=recipient")
+                .exchange().expectStatus().isOk().expectBody(UnreadCount.class).isEqualTo(new UnreadCount("recipient", 3));
+    }
+
+    @Test
+    public void testGetInbox() {
+        final List<ConversationSummary> inbox = Collections.singletonList(new ConversationSummary("sender", "hello world!", null, 2));
+        when(reactiveMessengerApiService.getInbox("recipient", null)).thenReturn(Flux.fromIterable(inbox));
+        final String body = this.controller.get().uri("/messenger/getInbox?recipient=recipient")
+                .exchange().expectStatus().isOk().expectBody(String.class).returnResult().getResponseBody();
+        assertEquals(inbox, GSON.fromJson(body, new TypeToken<List<ConversationSummary>>(){}.getType()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPollUnreadMessages_deliveredOnNotification() {
+        final List<SimpleMessage> simpleMessages = Collections.singletonList(new SimpleMessage("sender", "recipient", "hello world!"));
+        // Nothing unread when the poll starts, then a message arrives shortly after subscribing
+        when(messageNotificationHub.subscribe(eq("recipient"), any())).thenAnswer(invocation -> {
+            final Runnable listener = invocation.getArgument(1);
+            Mono.delay(Duration.ofMillis(100)).subscribe(tick -> listener.run());
+            return (Runnable) () -> { };
+        });
+        when(reactiveMessengerApiService.getUnreadMessages("recipient")).thenReturn(Flux.empty(), Flux.fromIterable(simpleMessages));
+        final String body = this.controller.get().uri("/messenger/pollUnreadMessages?recipient=recipient&timeoutMillis=5000")
+                .exchange().expectStatus().isOk().expectBody(String.class).returnResult().getResponseBody();
+        assertEquals(simpleMessages, GSON.fromJson(body, new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    @Test
+    public void testPollUnreadMessages_timesOut() {
+        when(messageNotificationHub.subscribe(eq("recipient"), any())).thenReturn(() -> { });
+        when(reactiveMessengerApiService.getUnreadMessages("recipient")).thenReturn(Flux.empty());
+        this.controller.get().uri("/messenger/pollUnreadMessages?recipient=recipient&timeoutMillis=100")
+                .exchange().expectStatus().isOk().expectBody().json("[]");
+    }
+
+    @Test
+    public void testStreamUnreadMessages_cancelledMidBatch() throws InterruptedException {
+        final SimpleMessage message = new SimpleMessage("sender", "recipient", "hello world!");
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        when(messageNotificationHub.subscribe(eq("recipient"), any())).thenReturn(() -> { });
+        // The rest of the batch is still to come when the client disconnects
+        when(reactiveMessengerApiService.streamUnreadMessages("recipient"))
+                .thenReturn(Flux.just(message).concatWith(Flux.never()).doOnCancel(cancelled::countDown));
+        final String data = this.controller.get().uri("/messenger/streamUnreadMessages?recipient=recipient")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .exchange().expectStatus().isOk()
+                .returnResult(String.class).getResponseBody()
+                .blockFirst(Duration.ofSeconds(5));
+        assertEquals(message, GSON.fromJson(data, SimpleMessage.class));
+        // Disconnecting cancels the service's stream, so nothing after the sent message is marked READ
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        verify(reactiveMessengerApiService, never()).getUnreadMessages(any());
+    }
+
+    @Test
+    public void testGetMessages_paged() {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        final MessageCursor cursor = new MessageCursor(new ObjectId().toHexString());
+        when(reactiveMessengerApiService.getMessagesVersion("colorado")).thenReturn(Mono.just(0L));
+        when(reactiveMessengerApiService.getRecentMessages(eq("colorado"), isNull(), eq(cursor), eq(1))).thenReturn(Mono.just(new MessagePage(response, cursor)));
+        final String body = this.controller.get().uri("/messenger/getMessages?recipient=colorado&limit=1&cursor=" + cursor.encode())
+                .exchange().expectStatus().isOk().expectHeader().valueEquals("X-Next-Cursor", cursor.encode())
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertEquals(response, GSON.fromJson(body, new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    @Test
+    public void testGetMessages_notModified() {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        when(reactiveMessengerApiService.getMessagesVersion("colorado")).thenReturn(Mono.just(7L));
+        when(reactiveMessengerApiService.getRecentMessages(eq("colorado"), any(), isNull(), isNull())).thenReturn(Mono.just(new MessagePage(response, null)));
+        final String etag = this.controller.get().uri("/messenger/getMessages?recipient=colorado")
+                .exchange().expectStatus().isOk()
+                .returnResult(String.class).getResponseHeaders().getETag();
+
+        // Unchanged, so the page isn't returned again
+        this.controller.get().uri("/messenger/getMessages?recipient=colorado").header("If-None-Match", etag)
+                .exchange().expectStatus().isNotModified().expectHeader().valueEquals("ETag", etag).expectBody().isEmpty();
+        verify(reactiveMessengerApiService, times(1)).getRecentMessages("colorado", null, null, null);
+        // Another page, or a new version, is returned in full
+        this.controller.get().uri("/messenger/getMessages?recipient=colorado&sender=denver").header("If-None-Match", etag)
+                .exchange().expectStatus().isOk();
+        when(reactiveMessengerApiService.getMessagesVersion("colorado")).thenReturn(Mono.just(8L));
+        final String body = this.controller.get().uri("/messenger/getMessages?recipient=colorado").header("If-None-Match", etag)
+                .exchange().expectStatus().isOk().expectBody(String.class).returnResult().getResponseBody();
+        assertEquals(response, GSON.fromJson(body, new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    @Test
+    public void testGetMessages_unknownVersion() {
+        final List<SimpleMessage> response = Collections.singletonList(new SimpleMessage("denver", "colorado", "hello world!"));
+        when(reactiveMessengerApiService.getMessagesVersion("colorado")).thenReturn(Mono.just(7L));
+        when(reactiveMessengerApiService.getRecentMessages(eq("colorado"), any(), isNull(), isNull())).thenReturn(Mono.just(new MessagePage(response, null)));
+        final String etag = this.controller.get().uri("/messenger/getMessages?recipient=colorado")
+                .exchange().expectStatus().isOk()
+                .returnResult(String.class).getResponseHeaders().getETag();
+
+        // See MessengerApiControllerTest#testGetMessages_unknownVersion
+        when(reactiveMessengerApiService.getMessagesVersion("colorado")).thenReturn(Mono.just(-1L));
+        this.controller.get().uri("/messenger/getMessages?recipient=colorado").header("If-None-Match", etag)
+                .exchange().expectStatus().isOk().expectHeader().doesNotExist("ETag");
+        verify(reactiveMessengerApiService, times(2)).getRecentMessages("colorado", null, null, null);
+    }
+
+    @Test
+    public void testGetMessages_invalidCursor() {
+        this.controller.get().uri("/messenger/getMessages?recipient=colorado&cursor=not-a-cursor")
+                .exchange().expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void testStreamMessagesInRange() {
+        final List<SimpleMessage> response = Arrays.asList(new SimpleMessage("denver", "colorado", "hello"), new SimpleMessage("boulder", "colorado", "world"));
+        when(reactiveMessengerApiService.streamMessagesInRange(eq("colorado"), isNull(), isNull(), isNull())).thenReturn(Flux.fromIterable(response));
+        final String body = this.controller.get().uri("/messenger/streamMessagesInRange?recipient=colorado")
+                .exchange().expectStatus().isOk().expectBody(String.class).returnResult().getResponseBody();
+        assertEquals(response, GSON.fromJson(body, new TypeToken<List<SimpleMessage>>(){}.getType()));
+    }
+
+    private void testSendMessages(List<SimpleMessage> request, String contentType, String body) {
+        final Flux<SendMessageResult> results = Flux.just(new SendMessageResult(0, "id0", true, null), new SendMessageResult(1, "id1", true, null));
+        when(reactiveMessengerApiService.sendMessages(any())).thenAnswer(invocation -> {
+            final Flux<SimpleMessage> received = invocation.getArgument(0);
+            return received.collectList().doOnNext(messages -> assertEquals(request, messages)).thenMany(results);
+        });
+        final String response = this.controller.post().uri("/messenger/sendMessages").contentType(MediaType.valueOf(contentType)).bodyValue(body)
+                .exchange().expectStatus().isOk().expectBody(String.class).returnResult().getResponseBody();
+        final List<SendMessageResult> parsed = GSON.fromJson(response, new TypeToken<List<SendMessageResult>>(){}.getType());
+        assertEquals(2, parsed.size());
+        assertEquals("id1", parsed.get(1).getId());
+    }
+}
@@ -0,0 +1,177 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.ReactiveMessengerApiRepository;
+import com.guild.interview.messengerapi.model.ConversationSummary;
+import com.guild.interview.messengerapi.model.ConversationSummaryDocument;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessage;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import com.guild.interview.messengerapi.service.MessengerApiMetrics;
+import com.guild.interview.messengerapi.service.impl.ReactiveMessengerApiServiceImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the reactive service. The reactive repository is mocked.
+ */
+public class ReactiveMessengerApiServiceTest {
+    private ReactiveMessengerApiRepository reactiveMessengerApiRepository;
+    private ReactiveMessengerApiServiceImpl reactiveMessengerApiService;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setup() {
+        reactiveMessengerApiRepository = mock(ReactiveMessengerApiRepository.class);
+        reactiveMessengerApiService = new ReactiveMessengerApiServiceImpl();
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "reactiveMessengerApiRepository", reactiveMessengerApiRepository);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "eventPublisher", mock(ApplicationEventPublisher.class));
+        meterRegistry = new SimpleMeterRegistry();
+        final MessengerApiMetrics messengerApiMetrics = new MessengerApiMetrics();
+        ReflectionTestUtils.setField(messengerApiMetrics, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "messengerApiMetrics", messengerApiMetrics);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "defaultPageSize", 1);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "maxPageSize", 10);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "defaultRangeDays", 30);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "streamReadBatchSize", 10);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "sendChunkSize", 10);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "defaultInboxSize", 5);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "maxInboxSize", 10);
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "hotDays", 90);
+    }
+
+    @Test
+    public void testGetUnreadMessages() {
+        final SimpleMessageDocument unread = document("id", MessageStatus.UNREAD);
+        when(reactiveMessengerApiRepository.findAllByRecipientAndMessageStatus("colorado", MessageStatus.UNREAD))
+                .thenReturn(Flux.just(unread));
+        when(reactiveMessengerApiRepository.markAsRead("colorado", Collections.singletonList(unread))).thenReturn(Mono.just(1L));
+        StepVerifier.create(reactiveMessengerApiService.getUnreadMessages("colorado"))
+                .expectNext(new SimpleMessage("denver", "colorado", "hello world"))
+                .verifyComplete();
+        verify(reactiveMessengerApiRepository).markAsRead("colorado", Collections.singletonList(unread));
+        assertEquals(1, meterRegistry.get(MessengerApiMetrics.MESSAGES_READ).tag("source", "markAsRead").counter().count());
+        assertEquals(1, meterRegistry.get(MessengerApiMetrics.QUERY_RESULTS).tag("query", "findAllByRecipientAndMessageStatus").summary().totalAmount());
+    }
+
+    @Test
+    public void testGetUnreadCount() {
+        when(reactiveMessengerApiRepository.countUnread("colorado")).thenReturn(Mono.just(3L));
+        StepVerifier.create(reactiveMessengerApiService.getUnreadCount("colorado"))
+                .expectNext(3L)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testGetInbox() {
+        // The limit is capped at messenger.inbox.max-size and negative unread counts are reported as 0
+        when(reactiveMessengerApiRepository.findInbox("colorado", 10)).thenReturn(Flux.just(
+                new ConversationSummaryDocument("c1", "colorado", "denver", "id2", "hello", new Date(0), 2),
+                new ConversationSummaryDocument("c2", "colorado", "boulder", "id1", "world", new Date(0), -1)));
+        StepVerifier.create(reactiveMessengerApiService.getInbox("colorado", 50))
+                .expectNext(new ConversationSummary("denver", "hello", new Date(0), 2))
+                .expectNext(new ConversationSummary("boulder", "world", new Date(0), 0))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testGetRecentMessages_nextCursor() {
+        // One more message than the page size means there is a next page
+        when(reactiveMessengerApiRepository.findPage("colorado", null, null, null, null, 2))
+                .thenReturn(Flux.just(document("id1", MessageStatus.READ), document("id2", MessageStatus.READ)));
+        StepVerifier.create(reactiveMessengerApiService.getRecentMessages("colorado", null, null, null))
+                .expectNextMatches(page -> page.getMessages().size() == 1 && "id1".equals(page.getNextCursor().getId()))
+                .verifyComplete();
+        // Nothing on the page was unread
+        verify(reactiveMessengerApiRepository, never()).markAsRead(any(), anyList());
+    }
+
+    @Test
+    public void testSendMessages_rejectsMissingAddress() {
+        when(reactiveMessengerApiRepository.insertAll(anyList())).thenReturn(Mono.just(Collections.emptyMap()));
+        StepVerifier.create(reactiveMessengerApiService.sendMessages(Flux.just(
+                new SimpleMessage("denver", "colorado", "hello"), new SimpleMessage(null, "colorado", "world"))))
+                .expectNextMatches(result -> result.getIndex() == 0 && result.isAccepted())
+                .expectNextMatches(result -> result.getIndex() == 1 && !result.isAccepted())
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSendMessages_reportsInsertFailures() {
+        when(reactiveMessengerApiRepository.insertAll(anyList())).thenReturn(Mono.just(Collections.singletonMap(1, "duplicate key")));
+        StepVerifier.create(reactiveMessengerApiService.sendMessages(Flux.fromIterable(Arrays.asList(
+                new SimpleMessage("denver", "colorado", "hello"), new SimpleMessage("denver", "colorado", "world")))))
+                .expectNextMatches(result -> result.isAccepted())
+                .expectNextMatches(result -> !result.isAccepted() && "duplicate key".equals(result.getError()))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testStreamMessagesInRange() {
+        final SimpleMessageDocument unread = document("id1", MessageStatus.UNREAD);
+        when(reactiveMessengerApiRepository.findPage(eq("colorado"), isNull(), eq(new Date(0)), isNull(), isNull(), eq(0)))
+                .thenReturn(Flux.just(unread, document("id2", MessageStatus.READ)));
+        when(reactiveMessengerApiRepository.markAsRead("colorado", Collections.singletonList(unread))).thenReturn(Mono.just(1L));
+        StepVerifier.create(reactiveMessengerApiService.streamMessagesInRange("colorado", null, new Date(0), null))
+                .expectNextCount(2)
+                .verifyComplete();
+        verify(reactiveMessengerApiRepository).markAsRead("colorado", Collections.singletonList(unread));
+    }
+
+    @Test
+    public void testStreamMessagesInRange_mergesArchive() {
+        ReflectionTestUtils.setField(reactiveMessengerApiService, "archiveEnabled", true);
+        when(reactiveMessengerApiRepository.findPage(eq("colorado"), isNull(), eq(new Date(0)), isNull(), isNull(), eq(0)))
+                .thenReturn(Flux.just(document("id3", MessageStatus.READ, "hello"), document("id1", MessageStatus.READ, "again")));
+        // id1 is being archived, so it is in both collections
+        when(reactiveMessengerApiRepository.findArchivedPage(eq("colorado"), isNull(), eq(new Date(0)), isNull(), isNull(), eq(0)))
+                .thenReturn(Flux.just(document("id2", MessageStatus.READ, "world"), document("id1", MessageStatus.READ, "again")));
+        StepVerifier.create(reactiveMessengerApiService.streamMessagesInRange("colorado", null, new Date(0), null).map(SimpleMessage::getText))
+                .expectNext("hello", "world", "again")
+                .verifyComplete();
+        verify(reactiveMessengerApiRepository, never()).markAsRead(any(), anyList());
+    }
+
+    @Test
+    public void testStreamUnreadMessages_onlyMarksEmittedMessages() {
+        final SimpleMessageDocument first = document("id1", MessageStatus.UNREAD, "hello");
+        final SimpleMessageDocument second = document("id2", MessageStatus.UNREAD, "world");
+        when(reactiveMessengerApiRepository.findAllByRecipientAndMessageStatus("colorado", MessageStatus.UNREAD)).thenReturn(Flux.just(first, second));
+        when(reactiveMessengerApiRepository.markAsRead(eq("colorado"), anyList())).thenReturn(Mono.just(1L));
+
+        // The subscriber goes away after the first message
+        StepVerifier.create(reactiveMessengerApiService.streamUnreadMessages("colorado"), 1)
+                .expectNextMatches(message -> "hello".equals(message.getText()))
+                .thenCancel()
+                .verify();
+        verify(reactiveMessengerApiRepository).markAsRead("colorado", Collections.singletonList(first));
+        verify(reactiveMessengerApiRepository, never()).markAsRead("colorado", Collections.singletonList(second));
+    }
+
+    private static SimpleMessageDocument document(String id, MessageStatus messageStatus, String text) {
+        return new SimpleMessageDocument(id, text, "colorado", "denver", messageStatus, new Date(), null);
+    }
+
+    private static SimpleMessageDocument document(String id, MessageStatus messageStatus) {
+        return new SimpleMessageDocument(id, "hello world", "colorado", "denver", messageStatus, new Date(), null);
+    }
+}
@@ -0,0 +1,119 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.RecentMessageCache;
+import com.guild.interview.messengerapi.model.MessageCursor;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the per-recipient ring buffer of recent messages used by MessengerApiServiceImpl.
+ */
+public class RecentMessageCacheTest {
+    private static final long NOW = System.currentTimeMillis();
+
+    @Test
+    public void testServesWholeHistoryOfSmallMailbox() {
+        final RecentMessageCache cache = cache(5, 1_000_000, false);
+        assertNull(cache.findPage("colorado", null, null, 10));
+        final List<SimpleMessageDocument> history = Arrays.asList(message(3, "denver"), message(2, "utah"), message(1, "denver"));
+        cache.completeLoad("colorado", cache.beginLoad("colorado"), history);
+
+        assertEquals(texts(history), texts(cache.findPage("colorado", null, null, 10)));
+        assertEquals(Arrays.asList("3", "1"), texts(cache.findPage("colorado", "denver", null, 10)));
+        assertEquals(Collections.singletonList("1"), texts(cache.findPage("colorado", null, MessageCursor.of(history.get(1)), 10)));
+        // Sent since the load, and returned first
+        cache.addAll(Collections.singletonList(message(4, "utah")));
+        assertEquals(Arrays.asList("4", "3"), texts(cache.findPage("colorado", null, null, 2)));
+    }
+
+    @Test
+    public void testFullBufferOnlyServesPagesItHolds() {
+        final RecentMessageCache cache = cache(3, 1_000_000, false);
+        final long load = cache.beginLoad("colorado");
+        // Written while the load's query ran, and out of order
+        cache.addAll(Arrays.asList(message(5, "denver"), message(4, "denver")));
+        cache.completeLoad("colorado", load, Arrays.asList(message(3, "utah"), message(2, "denver"), message(1, "denver")));
+
+        assertEquals(Arrays.asList("5", "4", "3"), texts(cache.findPage("colorado", null, null, 3)));
+        // Older messages were dropped, so anything reaching past the buffer goes to Mongo
+        assertNull(cache.findPage("colorado", null, null, 4));
+        assertNull(cache.findPage("colorado", "utah", null, 2));
+    }
+
+    @Test
+    public void testArchiveMakesBufferIncomplete() {
+        final RecentMessageCache cache = cache(5, 1_000_000, true);
+        cache.completeLoad("colorado", cache.beginLoad("colorado"), Collections.singletonList(message(1, "denver")));
+        assertNull(cache.findPage("colorado", null, null, 2));
+        assertEquals(Collections.singletonList("1"), texts(cache.findPage("colorado", null, null, 1)));
+    }
+
+    @Test
+    public void testTracksReadMessagesWithoutSharingDocuments() {
+        final RecentMessageCache cache = cache(5, 1_000_000, false);
+        final SimpleMessageDocument sent = message(1, "denver");
+        cache.completeLoad("colorado", cache.beginLoad("colorado"), Collections.singletonList(sent));
+        final SimpleMessageDocument served = cache.findPage("colorado", null, null, 1).get(0);
+        served.setMessageStatus(MessageStatus.READ);
+        assertEquals(MessageStatus.UNREAD, cache.findPage("colorado", null, null, 1).get(0).getMessageStatus());
+
+        cache.markRead("colorado", Collections.singletonList(sent));
+        assertEquals(MessageStatus.READ, cache.findPage("colorado", null, null, 1).get(0).getMessageStatus());
+        assertEquals(MessageStatus.UNREAD, sent.getMessageStatus());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyReadRecipients() {
+        final RecentMessageCache cache = cache(10, 16 * 20_000, false);
+        for (int i = 0; i < 5_000; i++) {
+            final List<SimpleMessageDocument> history = new ArrayList<>();
+            for (int j = 10; j > 0; j--) {
+                history.add(message(j, "denver", "recipient" + i));
+            }
+            cache.completeLoad("recipient" + i, cache.beginLoad("recipient" + i), history);
+        }
+        assertTrue(cache.estimatedBytes() <= 16 * 20_000, String.valueOf(cache.estimatedBytes()));
+        assertNull(cache.findPage("recipient0", null, null, 1));
+        assertEquals(10, cache.findPage("recipient4999", null, null, 10).size());
+    }
+
+    private static RecentMessageCache cache(int capacity, long maxBytes, boolean archiveEnabled) {
+        final RecentMessageCache cache = new RecentMessageCache();
+        ReflectionTestUtils.setField(cache, "environment", new MockEnvironment());
+        ReflectionTestUtils.setField(cache, "capacity", capacity);
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxStalenessMillis", 60_000L);
+        ReflectionTestUtils.setField(cache, "archiveEnabled", archiveEnabled);
+        cache.start();
+        return cache;
+    }
+
+    // The n-th message sent to colorado, with n as its text
+    private static SimpleMessageDocument message(int n, String sender) {
+        return message(n, sender, "colorado");
+    }
+
+    private static SimpleMessageDocument message(int n, String sender, String recipient) {
+        final Date sent = new Date(NOW - 1000L * (100 - n));
+        return new SimpleMessageDocument(new ObjectId(sent).toHexString(), String.valueOf(n), recipient, sender, MessageStatus.UNREAD, sent, null);
+    }
+
+    private static List<String> texts(List<SimpleMessageDocument> documents) {
+        return documents.stream().map(SimpleMessageDocument::getText).collect(Collectors.toList());
+    }
+}
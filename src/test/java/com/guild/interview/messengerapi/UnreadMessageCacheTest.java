@@ -0,0 +1,101 @@
+package com.guild.interview.messengerapi;
+
+import com.guild.interview.messengerapi.dao.UnreadMessageCache;
+import com.guild.interview.messengerapi.model.MessageStatus;
+import com.guild.interview.messengerapi.model.SimpleMessageDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the per-recipient unread message cache used by MessengerApiServiceImpl.
+ */
+public class UnreadMessageCacheTest {
+
+    @Test
+    public void testServesMessagesWrittenAfterLoad() {
+        final UnreadMessageCache cache = cache(new MockEnvironment(), 1_000_000, 60_000);
+        assertNull(cache.take("colorado"));
+        cache.completeLoad("colorado", cache.beginLoad("colorado"));
+
+        assertEquals(Collections.emptyList(), cache.take("colorado"));
+        final SimpleMessageDocument message = message("colorado", "hello");
+        cache.addAll(Arrays.asList(message, message("utah", "not cached")));
+        assertEquals(Collections.singletonList(message), cache.take("colorado"));
+        // Taking leaves the entry empty, and recipients that were never loaded aren't cached
+        assertEquals(Collections.emptyList(), cache.take("colorado"));
+        assertNull(cache.take("utah"));
+    }
+
+    @Test
+    public void testLoadKeepsMessagesWrittenDuringIt() {
+        final UnreadMessageCache cache = cache(new MockEnvironment(), 1_000_000, 60_000);
+        final long load = cache.beginLoad("colorado");
+        final SimpleMessageDocument foundByLoad = message("colorado", "found");
+        final SimpleMessageDocument sentSince = message("colorado", "sent since");
+        cache.addAll(Arrays.asList(foundByLoad, sentSince));
+        // Not served before the load completes, then without what the load marked READ
+        assertNull(cache.take("colorado"));
+        cache.removeRead("colorado", Collections.singletonList(foundByLoad));
+        cache.completeLoad("colorado", load);
+
+        assertEquals(Collections.singletonList(sentSince), cache.take("colorado"));
+    }
+
+    @Test
+    public void testInvalidatedOrReplacedLoadIsNotServed() {
+        final UnreadMessageCache cache = cache(new MockEnvironment(), 1_000_000, 60_000);
+        final long first = cache.beginLoad("colorado");
+        final long second = cache.beginLoad("colorado");
+        cache.completeLoad("colorado", first);
+        assertNull(cache.take("colorado"));
+        cache.completeLoad("colorado", second);
+        cache.invalidate("colorado");
+        assertNull(cache.take("colorado"));
+    }
+
+    @Test
+    public void testExpiresAndEvicts() {
+        final UnreadMessageCache expiring = cache(new MockEnvironment(), 1_000_000, 0);
+        expiring.completeLoad("colorado", expiring.beginLoad("colorado"));
+        assertNull(expiring.take("colorado"));
+
+        // Room for a few hundred empty entries per segment
+        final UnreadMessageCache small = cache(new MockEnvironment(), 16 * 50_000, 60_000);
+        for (int i = 0; i < 10_000; i++) {
+            small.completeLoad("recipient" + i, small.beginLoad("recipient" + i));
+        }
+        assertTrue(small.estimatedBytes() <= 16 * 50_000, String.valueOf(small.estimatedBytes()));
+        assertNull(small.take("recipient0"));
+        assertEquals(Collections.emptyList(), small.take("recipient9999"));
+    }
+
+    @Test
+    public void testRejectsAtomicClaims() {
+        assertThrows(IllegalStateException.class,
+                () -> cache(new MockEnvironment().withProperty("messenger.unread.atomic-claim", "true"), 1_000_000, 60_000));
+    }
+
+    private static UnreadMessageCache cache(MockEnvironment environment, long maxBytes, long maxStalenessMillis) {
+        final UnreadMessageCache cache = new UnreadMessageCache();
+        ReflectionTestUtils.setField(cache, "environment", environment);
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxStalenessMillis", maxStalenessMillis);
+        cache.start();
+        return cache;
+    }
+
+    private static SimpleMessageDocument message(String recipient, String text) {
+        return new SimpleMessageDocument(new ObjectId().toHexString(), text, recipient, "denver", MessageStatus.UNREAD, new Date(), null);
+    }
+}